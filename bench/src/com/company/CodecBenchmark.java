@@ -0,0 +1,55 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Frame codec, the hex String API used by Main next to the byte[] TwcCodec it is built on
+// Run with -prof gc to see the allocation per frame of each
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    // a slave heartbeat with an escaped C0 in it and two frames run together, as read from the bus
+    static final String HEARTBEAT = "C0FDE06388777709051404DBDC000000009FC0FC";
+    static final String CONCATENATED = "C0FDE26388610C800000000000000000BAC0FC" + HEARTBEAT;
+    static final String MESSAGE = "FBE0777763880906400000000000";
+
+    private final byte[] message = Main.hexStringToByteArray(MESSAGE);
+    private final byte[] frame = Main.hexStringToByteArray(HEARTBEAT);
+    private final byte[] out = new byte[TwcCodec.MAX_FRAME_LENGTH];
+
+    @Benchmark
+    public String buildBlock() {
+        return Main.buildBlock(MESSAGE);
+    }
+
+    @Benchmark
+    public int encodeFrame() {
+        return TwcCodec.encodeFrame(message, 0, message.length, out, 0);
+    }
+
+    @Benchmark
+    public boolean isValidBlock() {
+        return Main.isValidBlock(HEARTBEAT);
+    }
+
+    @Benchmark
+    public boolean isValidFrame() {
+        return TwcCodec.isValidFrame(frame, 0, frame.length);
+    }
+
+    @Benchmark
+    public String cleanUpBlock() {
+        return Main.cleanUpBlock(CONCATENATED);
+    }
+
+    @Benchmark
+    public String assembleMasterHeartbeat() {
+        return Main.assembleMasterHeartbeat("7777", "6388", 9, 16, 32);
+    }
+}
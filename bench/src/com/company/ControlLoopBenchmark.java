@@ -0,0 +1,61 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// What the control loop does for every frame coming in: decode the slave heartbeat, maybe adjust the current,
+// and publish the state for the web server, which renders it when asked
+// Logging is off (warnings only) like on a Pi that runs without /loggingon
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ControlLoopBenchmark {
+
+    static final String LINKREADY_1 = "C0FDE26388950C800000000000000000EEC0FC";
+    static final String LINKREADY_2 = "C0FDE26389950C800000000000000000EFC0FC";
+    static final String HEARTBEAT = "C0FDE06388777701051404D200000000B1C0FC";
+
+    @Setup
+    public void setup() {
+        Main.setLogging(false);
+        Main.MASTER_ID = "7777";
+        Main.ampAllocator = new FairShareAllocator();
+        Main.registerSlave(LINKREADY_1);
+        Main.registerSlave(LINKREADY_2);
+        Main.startTime = Main.clock.nanoTime();
+    }
+
+    @Benchmark
+    public void displayBlockProperties() {
+        Main.displayBlockProperties(HEARTBEAT);
+    }
+
+    @Benchmark
+    public void respondToBlock() {
+        Main.respondToBlock();
+    }
+
+    @Benchmark
+    public ControllerSnapshot publishSnapshot() {
+        // what the control loop pays per frame
+        Main.publishSnapshot();
+        return Main.snapshot.get();
+    }
+
+    @Benchmark
+    public String renderStatus() {
+        // a new snapshot rendered once, what a status page request costs the web server thread
+        Main.publishSnapshot();
+        return Main.snapshot.get().text();
+    }
+
+    @Benchmark
+    public String renderCachedStatus() {
+        // the same snapshot asked for again
+        return Main.snapshot.get().text();
+    }
+}
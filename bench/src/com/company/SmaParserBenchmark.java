@@ -0,0 +1,51 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// SMA Speedwire packets of an energy meter (600 bytes) and a home manager 2 (608 bytes, with the firmware version record)
+// parseSmaResponse is the BigDecimal adapter, parse the zero-copy parser the SMA thread uses
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SmaParserBenchmark {
+
+    @Param({"600", "608"})
+    public int length;
+
+    private byte[] packet;
+    private ByteBuffer buffer;
+    private final SmaRecord record = new SmaRecord();
+
+    @Setup
+    public void setup() {
+        byte[] full = new byte[SmaPacketBuilder.PACKET_LENGTH];
+        SmaPacketBuilder.build(ByteBuffer.wrap(full), 3004908651L, 123456, new int[]{54321, 21000, 18000, 15321},
+                new long[]{4000000000L, 1500000000L, 1300000000L, 1200000000L}, new int[]{0, 9130, 7826, 6661}, new int[]{0, 230100, 229800, 231000});
+        if (length == SmaPacketBuilder.PACKET_LENGTH) {
+            packet = full;
+        } else {
+            // the energy meter has no version record: drop it (8 bytes) and fix the data length
+            packet = new byte[length];
+            System.arraycopy(full, 0, packet, 0, length - 4);
+            ByteBuffer.wrap(packet).putShort(12, (short) (ByteBuffer.wrap(full).getShort(12) - 8));
+        }
+        buffer = ByteBuffer.wrap(packet);
+    }
+
+    @Benchmark
+    public Main.smaResponseData parseSmaResponse() {
+        return Main.parseSmaResponse(packet);
+    }
+
+    @Benchmark
+    public SmaRecord parse() {
+        SmaParser.parse(buffer, packet.length, record);
+        return record;
+    }
+}
@@ -0,0 +1,81 @@
+package com.company;
+
+// Fixed size ring of min/avg/max buckets of a fixed duration, aligned to the epoch (so 15 minute buckets start at :00, :15, ...)
+// Updated incrementally for every sample, so nothing needs to be recomputed when the history is read
+public class AggregateRing {
+
+    final long bucketMs;
+    private final long[] starts;
+    private final int[] min;
+    private final int[] max;
+    private final long[] sum;
+    private final int[] count;
+    private int head = -1;
+    private int size = 0;
+
+    public AggregateRing(long bucketMs, int capacity) {
+        this.bucketMs = bucketMs;
+        starts = new long[capacity];
+        min = new int[capacity];
+        max = new int[capacity];
+        sum = new long[capacity];
+        count = new int[capacity];
+    }
+
+    public synchronized void add(long timeMs, int value) {
+        long bucket = timeMs - Math.floorMod(timeMs, bucketMs);
+        if ((size == 0) || (bucket > starts[head])) {
+            head = (head + 1) % starts.length;
+            starts[head] = bucket;
+            min[head] = value;
+            max[head] = value;
+            sum[head] = value;
+            count[head] = 1;
+            if (size < starts.length) size++;
+        } else {
+            // same bucket, or the clock went back a bit: merge into the newest bucket
+            if (value < min[head]) min[head] = value;
+            if (value > max[head]) max[head] = value;
+            sum[head] += value;
+            count[head]++;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void writeCsv(long fromMs, long toMs, StringBuilder sb) {
+        sb.append("t,min,avg,max,n").append(Main.NEW_LINE);
+        for (int i = 0; i < size; i++) {
+            int index = (head - size + 1 + i + starts.length) % starts.length;
+            if ((starts[index] + bucketMs <= fromMs) || (starts[index] > toMs)) continue;
+            sb.append(starts[index]).append(',').append(min[index]).append(',').append(sum[index] / count[index]).append(',');
+            sb.append(max[index]).append(',').append(count[index]).append(Main.NEW_LINE);
+        }
+    }
+
+    public synchronized void writeJson(long fromMs, long toMs, StringBuilder sb) {
+        StringBuilder t = new StringBuilder("\"t\":[");
+        StringBuilder mn = new StringBuilder("\"min\":[");
+        StringBuilder avg = new StringBuilder("\"avg\":[");
+        StringBuilder mx = new StringBuilder("\"max\":[");
+        boolean first = true;
+        for (int i = 0; i < size; i++) {
+            int index = (head - size + 1 + i + starts.length) % starts.length;
+            if ((starts[index] + bucketMs <= fromMs) || (starts[index] > toMs)) continue;
+            if (!first) {
+                t.append(',');
+                mn.append(',');
+                avg.append(',');
+                mx.append(',');
+            }
+            first = false;
+            t.append(starts[index]);
+            mn.append(min[index]);
+            avg.append(sum[index] / count[index]);
+            mx.append(max[index]);
+        }
+        sb.append(t).append("],").append(mn).append("],").append(avg).append("],").append(mx).append(']');
+    }
+}
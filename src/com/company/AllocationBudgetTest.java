@@ -0,0 +1,185 @@
+package com.company;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+// Bytes allocated per iteration of the hot paths, as ThreadMXBean counts them for the thread that runs them
+// openjdk-8-jre-zero on the Pi has no JIT, there every object in these paths costs real time, so they get a budget
+// The control loop runs controlLoopOnce against a MemoryBus, the SMA path onPacket with packets from SmaPacketBuilder,
+// on a clock that goes half a second per frame and a second per packet. What the stand-ins do is not counted
+// The measured bytes per iteration are printed as the baseline, -Dtwc.alloc.<path>=<bytes> sets another budget
+public class AllocationBudgetTest {
+
+    static final int WARMUP = 2000;
+    static final int ITERATIONS = 5000;
+    static final int BATCH = 32;  // frames on the bus before the control loop takes them
+    static final String LINKREADY_1 = "C0FDE26388950C800000000000000000EEC0FC";
+    static final String LINKREADY_2 = "C0FDE26389950C800000000000000000EFC0FC";
+
+    interface Iteration {
+        void run(int i) throws Exception;
+    }
+
+    private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final long threadId = Thread.currentThread().getId();
+    private final ClockTestSupport clock = new ClockTestSupport();
+    private TwcReceiver receiver;
+    private Thread reader;
+    private MemoryBus.Endpoint master;
+    private MemoryBus.Endpoint chargers;
+    // the state of Main these tests change, put back afterwards as the other tests run in the same JVM
+    private String masterId;
+    private AmpAllocator allocator;
+    private long startTime;
+    private int maxAmps;
+    private int twcAmps;
+    private int twcUsedAmps;
+    private double powerConsumption;
+    private double[] phaseAmps;
+    private long responseNanos;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        masterId = Main.MASTER_ID;
+        allocator = Main.ampAllocator;
+        startTime = Main.startTime;
+        maxAmps = Main.maxAmps;
+        twcAmps = Main.currentTWCamps;
+        twcUsedAmps = Main.currentTWCUsedAmps;
+        powerConsumption = Main.currentPowerConsumption;
+        phaseAmps = Main.gridPhaseAmps;
+        responseNanos = Main.lastResponseNanos;
+        Main.setLogging(false);
+        Main.clock = clock;
+        Main.MASTER_ID = "7777";
+        Main.ampAllocator = new FairShareAllocator();
+        Main.registerSlave(LINKREADY_1);
+        Main.registerSlave(LINKREADY_2);
+        Main.startTime = clock.nanoTime();
+    }
+
+    @After
+    public void cleanUp() throws InterruptedException {
+        if (reader != null) {
+            reader.interrupt();
+            reader.join(2000);
+            Main.workers.remove(reader);
+        }
+        Main.slaves.remove("6388");
+        Main.slaves.remove("6389");
+        if (master != null) Main.lastSendNanos.remove(master);
+        Main.MASTER_ID = masterId;
+        Main.ampAllocator = allocator;
+        Main.startTime = startTime;
+        Main.maxAmps = maxAmps;
+        Main.currentTWCamps = twcAmps;
+        Main.currentTWCUsedAmps = twcUsedAmps;
+        Main.currentPowerConsumption = powerConsumption;
+        Main.gridPhaseAmps = phaseAmps;
+        Main.lastResponseNanos = responseNanos;
+        Main.clock = TwcClock.SYSTEM;
+        Main.setLogging(true);
+    }
+
+    @Test
+    public void controlLoopTest() throws Exception {
+        // a heartbeat of each slave in turn, the used current changes every 50 frames, the current is set every 60 s
+        MemoryBus bus = new MemoryBus();
+        master = bus.attach("master");
+        chargers = bus.attach("chargers");
+        receiver = new TwcReceiver(master);
+        receiver.start();
+        reader = Main.workers.get(Main.workers.size() - 1);
+        byte[][] frames = new byte[4][];
+        for (int i = 0; i < frames.length; i++) {
+            String slave = (i % 2 == 0) ? "6388" : "6389";
+            String used = (i < 2) ? "04D2" : "0578";
+            frames[i] = Main.hexStringToByteArray(Main.buildBlock("FDE0" + slave + "7777" + "01" + "0514" + used + "000000") + "FC");
+        }
+        Iteration feed = i -> {
+            if (i % BATCH != 0) return;
+            for (int n = i; n < i + BATCH; n++) {
+                byte[] frame = frames[(n % 2) + ((n / 50) % 2) * 2];
+                chargers.write(frame, 0, frame.length);
+            }
+            long deadline = System.nanoTime() + 2000000000L;
+            while ((receiver.framesReceived < i + BATCH) && (System.nanoTime() - deadline < 0)) Thread.sleep(1);
+        };
+        long framesBefore = Main.events.events;
+        long perIteration = measure(feed, i -> {
+            clock.nanos += 500000000L;
+            Assert.assertTrue(Main.controlLoopOnce(receiver));
+        });
+        Assert.assertTrue("change events only", Main.events.events - framesBefore < (WARMUP + ITERATIONS) / 10);
+        check("controlLoop", perIteration, 320);  // 217 bytes: the snapshot for the web server, every 60 s the new split
+    }
+
+    @Test
+    public void handleMessageTest() throws Exception {
+        // decoding and handling a heartbeat on its own, the part that used to cut up hex strings
+        byte[] frame = Main.hexStringToByteArray("C0FDE06388777701051404D200000000B1C0FC");
+        long perIteration = measure(i -> { }, i -> {
+            clock.nanos += 500000000L;
+            Main.message.decode(frame, 0, frame.length, clock.nanos, null);
+            Main.message.millis = clock.currentTimeMillis();
+            Main.handleMessage(Main.message);
+        });
+        check("handleMessage", perIteration, 16);  // nothing
+    }
+
+    @Test
+    public void smaPacketTest() throws Exception {
+        // a packet of the main meter every second, the grid power changes with every one
+        Main.SmaThread sma = new Main.SmaThread("test");
+        sma.meters = new SmaMeterTable("3004908651");
+        byte[][] packets = new byte[16][];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = new byte[SmaPacketBuilder.PACKET_LENGTH];
+            int watts = 20000 + 1500 * i;
+            SmaPacketBuilder.build(ByteBuffer.wrap(packets[i]), 3004908651L, i * 1000L, new int[]{watts, watts / 3, watts / 3, watts / 3},
+                    new long[4], new int[]{0, 2900, 2900, 2900}, new int[]{0, 230000, 230000, 230000});
+        }
+        byte[] buffer = new byte[1024];
+        ByteBuffer packet = ByteBuffer.wrap(buffer);
+        Iteration receive = i -> System.arraycopy(packets[i % packets.length], 0, buffer, 0, SmaPacketBuilder.PACKET_LENGTH);
+        long perIteration = measure(receive, i -> {
+            clock.nanos += 1000000000L;
+            Assert.assertTrue(sma.onPacket(packet, SmaPacketBuilder.PACKET_LENGTH));
+        });
+        check("smaPacket", perIteration, 200);  // 144 bytes: the phase currents and the snapshot with the grid power
+    }
+
+    private long measure(Iteration prepare, Iteration body) throws Exception {
+        // bytes per iteration of body after WARMUP iterations, less what reading the counter costs
+        for (int i = 0; i < WARMUP; i++) {
+            prepare.run(i);
+            body.run(i);
+        }
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 100; i++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            overhead = Math.min(overhead, threads.getThreadAllocatedBytes(threadId) - before);
+        }
+        long total = 0;
+        for (int i = WARMUP; i < WARMUP + ITERATIONS; i++) {
+            prepare.run(i);
+            long before = threads.getThreadAllocatedBytes(threadId);
+            body.run(i);
+            total += threads.getThreadAllocatedBytes(threadId) - before - overhead;
+        }
+        return total / ITERATIONS;
+    }
+
+    private static void check(String path, long perIteration, long defaultBudget) {
+        long budget = Long.getLong("twc.alloc." + path, defaultBudget);
+        System.out.printf("Allocation baseline %s: %d bytes per iteration, budget %d%n", path, perIteration, budget);
+        Assert.assertTrue(path + " allocates " + perIteration + " bytes per iteration, the budget is " + budget, perIteration <= budget);
+    }
+}
@@ -0,0 +1,27 @@
+package com.company;
+
+import java.util.List;
+
+// Splits the total charging current the grid allows over the chargers that want it
+// allocate returns the amps for every slave in the list, in the same order, each either 0 or at least the minimum charging amps
+public interface AmpAllocator {
+
+    int[] allocate(int totalAmps, List<TwcSlave> slaves);
+
+    static AmpAllocator forName(String name, String priorityList) {
+        if ("priority".equalsIgnoreCase(name)) return new PriorityAllocator(priorityList);
+        return new FairShareAllocator();
+    }
+
+    static int capOf(TwcSlave slave) {
+        // the most a slave can use: its own rating and the car limit
+        // when the car charges well below what it was given (full battery, car side limit), the reported amps
+        // are fed back so the unused part goes to the other chargers
+        int cap = Main.MAX_CAR_CHARGE;
+        if (slave.maxAmps > 0) cap = Math.min(cap, slave.maxAmps);
+        if ((slave.usedAmps >= 1.0) && (slave.usedAmps < slave.allocatedAmps - 2.0)) {
+            cap = Math.min(cap, (int) Math.ceil(slave.usedAmps) + 2);
+        }
+        return Math.max(cap, Main.settings.minChargingAmps);
+    }
+}
@@ -0,0 +1,44 @@
+package com.company;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class AmpAllocatorTest {
+
+    private static TwcSlave slave(String id, int maxAmps, double usedAmps, int allocatedAmps) {
+        TwcSlave slave = new TwcSlave(id, "00", maxAmps);
+        slave.usedAmps = usedAmps;
+        slave.allocatedAmps = allocatedAmps;
+        return slave;
+    }
+
+    @Test
+    public void fairShareTest() {
+        List<TwcSlave> slaves = Arrays.asList(slave("6388", 32, 0, 0), slave("1234", 32, 0, 0));
+        AmpAllocator allocator = new FairShareAllocator();
+        Assert.assertArrayEquals(new int[]{10, 10}, allocator.allocate(20, slaves));
+        Assert.assertArrayEquals(new int[]{11, 10}, allocator.allocate(21, slaves));
+        Assert.assertArrayEquals(new int[]{24, 24}, allocator.allocate(60, slaves));  // car limit
+        Assert.assertArrayEquals(new int[]{10, 0}, allocator.allocate(10, slaves));  // not enough for 2 x 6A
+        Assert.assertArrayEquals(new int[]{0, 0}, allocator.allocate(5, slaves));
+    }
+
+    @Test
+    public void fairShareFeedbackTest() {
+        // first car only takes 7A of the 12A it was given, the rest goes to the second one
+        List<TwcSlave> slaves = Arrays.asList(slave("6388", 32, 7.0, 12), slave("1234", 32, 12.0, 12));
+        Assert.assertArrayEquals(new int[]{9, 15}, new FairShareAllocator().allocate(24, slaves));
+    }
+
+    @Test
+    public void priorityTest() {
+        List<TwcSlave> slaves = Arrays.asList(slave("6388", 32, 0, 0), slave("1234", 32, 0, 0));
+        AmpAllocator allocator = AmpAllocator.forName("priority", "1234, 6388");
+        Assert.assertArrayEquals(new int[]{0, 20}, allocator.allocate(20, slaves));
+        Assert.assertArrayEquals(new int[]{6, 24}, allocator.allocate(30, slaves));
+        Assert.assertArrayEquals(new int[]{0, 24}, allocator.allocate(29, slaves));  // 5A left is below the minimum
+    }
+}
@@ -0,0 +1,179 @@
+package com.company;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Reads the daily files of archive_dir and prints a line per day: grid energy, peak, time over max_power_from_mains,
+// the highest quarter hour and what the chargers took
+// Usage: java -cp TWCtestv3.jar com.company.ArchiveReport <archive dir> [--from 2026-10-01] [--to 2026-10-31] [--max-power 10000] [--csv grid|twc]
+// With --csv the rows themselves go to stdout instead, for a spreadsheet or pandas
+public class ArchiveReport {
+
+    static final long MAX_GAP_MS = 10000;  // a longer gap between two samples is a meter or controller outage, not counted
+
+    // totals of one day
+    static class Day implements SampleArchive.BlockListener {
+        final double maxPower;
+        long gridSamples = 0;
+        long reports = 0;
+        double fromGridWh = 0;
+        double toGridWh = 0;
+        double maxWatts = Double.NaN;
+        double overSeconds = 0;
+        double chargedAmpHours = 0;
+        double highestQuarterWatts = 0;
+        private long lastGridMillis = Long.MIN_VALUE;
+        private double lastWatts;
+        private long quarter = Long.MIN_VALUE;
+        private double quarterWh = 0;
+        private final Map<Long, long[]> lastReport = new HashMap<>();  // per slave: millis, used current in 0.01 A
+
+        Day(double maxPower) {
+            this.maxPower = maxPower;
+        }
+
+        @Override
+        public void onBlock(byte kind, int rows, long[][] columns) {
+            if (kind == SampleArchive.GRID) {
+                for (int row = 0; row < rows; row++) grid(columns[0][row], columns[1][row] / 10.0);
+            } else if (kind == SampleArchive.REPORT) {
+                for (int row = 0; row < rows; row++) report(columns[0][row], columns[1][row], columns[4][row]);
+            }
+        }
+
+        void grid(long millis, double watts) {
+            // the last reading holds until the next one
+            gridSamples++;
+            maxWatts = Double.isNaN(maxWatts) ? watts : Math.max(maxWatts, watts);
+            if ((lastGridMillis != Long.MIN_VALUE) && (millis > lastGridMillis) && (millis - lastGridMillis <= MAX_GAP_MS)) {
+                double seconds = (millis - lastGridMillis) / 1000.0;
+                double wh = lastWatts * seconds / 3600.0;
+                if (wh > 0) fromGridWh += wh;
+                else toGridWh -= wh;
+                if (lastWatts > maxPower) overSeconds += seconds;
+                long lastQuarter = Math.floorDiv(lastGridMillis, PeakBudget.QUARTER_MS);
+                if (lastQuarter != quarter) closeQuarter(lastQuarter);
+                quarterWh += wh;
+            }
+            lastGridMillis = millis;
+            lastWatts = watts;
+        }
+
+        private void closeQuarter(long next) {
+            highestQuarterWatts = Math.max(highestQuarterWatts, quarterWh * 4);
+            quarter = next;
+            quarterWh = 0;
+        }
+
+        void report(long millis, long slave, long usedCentiAmps) {
+            reports++;
+            long[] last = lastReport.get(slave);
+            if (last == null) {
+                lastReport.put(slave, new long[]{millis, usedCentiAmps});
+                return;
+            }
+            if ((millis > last[0]) && (millis - last[0] <= MAX_GAP_MS)) chargedAmpHours += last[1] / 100.0 * (millis - last[0]) / 3600000.0;
+            last[0] = millis;
+            last[1] = usedCentiAmps;
+        }
+
+        void finish() {
+            closeQuarter(Long.MIN_VALUE);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: ArchiveReport <archive dir> [--from yyyy-mm-dd] [--to yyyy-mm-dd] [--max-power <Watt>] [--csv grid|twc]");
+            return;
+        }
+        File dir = new File(args[0]);
+        LocalDate from = null;
+        LocalDate to = null;
+        double maxPower = ControlSettings.DEFAULTS.maxPowerFromMains;
+        String csv = null;
+        for (int i = 1; i < args.length; i++) {
+            if ("--from".equals(args[i]) && (i + 1 < args.length)) from = LocalDate.parse(args[++i]);
+            else if ("--to".equals(args[i]) && (i + 1 < args.length)) to = LocalDate.parse(args[++i]);
+            else if ("--max-power".equals(args[i]) && (i + 1 < args.length)) maxPower = Double.parseDouble(args[++i]);
+            else if ("--csv".equals(args[i]) && (i + 1 < args.length)) csv = args[++i];
+        }
+        // without a range all days in the directory
+        File[] files = dir.listFiles((d, name) -> name.matches("twc-\\d{4}-\\d{2}-\\d{2}\\.twa"));
+        if ((files == null) || (files.length == 0)) {
+            System.out.println("No archive files in " + dir);
+            return;
+        }
+        LocalDate first = null;
+        LocalDate last = null;
+        for (File file : files) {
+            LocalDate day = LocalDate.parse(file.getName().substring(4, 14));
+            if ((first == null) || day.isBefore(first)) first = day;
+            if ((last == null) || day.isAfter(last)) last = day;
+        }
+        if (from == null) from = first;
+        if (to == null) to = last;
+        if (csv != null) {
+            csv(dir, from, to, csv, System.out);
+            return;
+        }
+        report(dir, from, to, maxPower, System.out);
+    }
+
+    static void report(File dir, LocalDate from, LocalDate to, double maxPower, PrintStream out) throws Exception {
+        long start = System.nanoTime();
+        long blocks = 0;
+        long rows = 0;
+        Day total = new Day(maxPower);
+        for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1)) {
+            Day day = new Day(maxPower);
+            long[] counts = SampleArchive.scan(dir, date, date, day);
+            blocks += counts[0];
+            rows += counts[2];
+            day.finish();
+            if ((day.gridSamples == 0) && (day.reports == 0)) continue;
+            out.println(date + "  " + line(day));
+            total.gridSamples += day.gridSamples;
+            total.reports += day.reports;
+            total.fromGridWh += day.fromGridWh;
+            total.toGridWh += day.toGridWh;
+            total.maxWatts = Double.isNaN(total.maxWatts) ? day.maxWatts : Math.max(total.maxWatts, day.maxWatts);
+            total.overSeconds += day.overSeconds;
+            total.chargedAmpHours += day.chargedAmpHours;
+            total.highestQuarterWatts = Math.max(total.highestQuarterWatts, day.highestQuarterWatts);
+        }
+        out.println("total       " + line(total));
+        out.println(String.format(Locale.ROOT, "%d blocks, %d rows read in %d ms", blocks, rows, (System.nanoTime() - start) / 1000000L));
+    }
+
+    static String line(Day day) {
+        return String.format(Locale.ROOT, "%d grid samples, %.1f kWh from grid, %.1f kWh to grid, max %.0f W, %.0f s over %.0f W, highest quarter %.0f W, charged %.1f kWh (%.1f Ah)",
+                day.gridSamples, day.fromGridWh / 1000.0, day.toGridWh / 1000.0, Double.isNaN(day.maxWatts) ? 0.0 : day.maxWatts, day.overSeconds, day.maxPower,
+                day.highestQuarterWatts, day.chargedAmpHours * Main.WATTS_PER_AMP / 1000.0, day.chargedAmpHours);
+    }
+
+    static void csv(File dir, LocalDate from, LocalDate to, String kind, PrintStream out) throws Exception {
+        boolean grid = "grid".equals(kind);
+        StringBuilder line = new StringBuilder();
+        out.println(grid ? "time_ms,power_w,l1_a,l2_a,l3_a" : "time_ms,slave,status,set_a,used_a");
+        SampleArchive.scan(dir, from, to, (blockKind, rows, columns) -> {
+            if (blockKind != (grid ? SampleArchive.GRID : SampleArchive.REPORT)) return;
+            for (int row = 0; row < rows; row++) {
+                line.setLength(0);
+                line.append(columns[0][row]).append(',');
+                if (grid) {
+                    line.append(columns[1][row] / 10.0).append(',').append(columns[2][row] / 1000.0).append(',')
+                            .append(columns[3][row] / 1000.0).append(',').append(columns[4][row] / 1000.0);
+                } else {
+                    line.append(String.format("%04X", columns[1][row])).append(',').append(String.format("%02X", columns[2][row])).append(',')
+                            .append(columns[3][row] / 100.0).append(',').append(columns[4][row] / 100.0);
+                }
+                out.println(line);
+            }
+        });
+    }
+}
@@ -0,0 +1,195 @@
+package com.company;
+
+import java.io.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.zip.GZIPOutputStream;
+
+// java.util.logging handler that never does I/O on the calling thread
+// publish only puts the LogRecord on a lock-free queue, a background thread formats the message (so parameters
+// are only turned into text there), writes it to the log file and the console, and rotates the file when it gets too big
+// Old segments are gzipped: TWC.log is the active file, TWC.log.1.gz the most recent old one, and so on
+// When the queue is full the record is either dropped or the caller waits, both are counted
+public class AsyncLogHandler extends Handler {
+
+    static final int DEFAULT_QUEUE_SIZE = 4096;
+    static final long DEFAULT_MAX_FILE_BYTES = 1024 * 1024;
+    static final int DEFAULT_SEGMENTS = 5;
+
+    private final File file;
+    private final int capacity;
+    private volatile long maxFileBytes;
+    private volatile int segments;
+    private volatile boolean blockWhenFull;
+    private final boolean console;
+    private final ConcurrentLinkedQueue<LogRecord> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Thread writerThread;
+    private volatile boolean closed = false;
+    private Writer out;
+    private long fileBytes;
+    final AtomicLong published = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    final AtomicLong blocked = new AtomicLong();
+    volatile long written = 0;
+    volatile long rotations = 0;
+
+    public AsyncLogHandler(String fileName, int capacity, boolean blockWhenFull, long maxFileBytes, int segments, boolean console) throws IOException {
+        this.file = new File(fileName);
+        this.capacity = capacity;
+        this.blockWhenFull = blockWhenFull;
+        this.maxFileBytes = maxFileBytes;
+        this.segments = segments;
+        this.console = console;
+        openFile();
+        writerThread = new Thread(this::drain, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public void configure(boolean blockWhenFull, long maxFileBytes, int segments) {
+        // can be changed while running, the config file is only read after logging has started
+        this.blockWhenFull = blockWhenFull;
+        this.maxFileBytes = maxFileBytes;
+        this.segments = segments;
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) return;
+        while (queued.get() >= capacity) {
+            if (!blockWhenFull) {
+                dropped.incrementAndGet();
+                return;
+            }
+            blocked.incrementAndGet();
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(1000000L);
+            if (closed) return;
+        }
+        queue.offer(record);
+        published.incrementAndGet();
+        if (queued.getAndIncrement() == 0) LockSupport.unpark(writerThread);  // only wake the writer when it may be idle
+    }
+
+    @Override
+    public void flush() {
+        LockSupport.unpark(writerThread);
+    }
+
+    @Override
+    public void close() {
+        // lets the writer empty the queue, then closes the file
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int queueSize() {
+        return queued.get();
+    }
+
+    private void drain() {
+        while (true) {
+            LogRecord record = queue.poll();
+            if (record == null) {
+                flushFile();
+                if (closed && queue.isEmpty()) break;  // re-check, a record may have come in just before close
+                if (closed) continue;
+                LockSupport.parkNanos(100000000L);
+                continue;
+            }
+            queued.decrementAndGet();
+            write(record);
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            reportError("Could not close " + file, e, ErrorManager.CLOSE_FAILURE);
+        }
+    }
+
+    private void write(LogRecord record) {
+        String line;
+        try {
+            line = getFormatter().format(record);
+        } catch (RuntimeException e) {
+            reportError("Could not format log record", e, ErrorManager.FORMAT_FAILURE);
+            return;
+        }
+        if (console) System.out.print(line);
+        try {
+            int bytes = utf8Length(line);
+            if (fileBytes + bytes > maxFileBytes) rotate();
+            out.write(line);
+            fileBytes += bytes;
+            written++;
+        } catch (IOException e) {
+            reportError("Could not write to " + file, e, ErrorManager.WRITE_FAILURE);
+        }
+    }
+
+    static int utf8Length(String line) {
+        // bytes the line takes in the file, a slave id or a status text is ASCII but a message or a path may not be
+        int bytes = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c < 0x80) bytes++;
+            else if (c < 0x800) bytes += 2;
+            else if (Character.isSurrogate(c)) bytes += 2;  // 4 for the pair
+            else bytes += 3;
+        }
+        return bytes;
+    }
+
+    private void flushFile() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            reportError("Could not flush " + file, e, ErrorManager.FLUSH_FAILURE);
+        }
+    }
+
+    private void openFile() throws IOException {
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 16384);
+        fileBytes = file.length();
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        try {
+            File oldest = segment(segments);
+            if (oldest.exists() && !oldest.delete()) throw new IOException("Could not delete " + oldest);
+            for (int i = segments - 1; i >= 1; i--) {
+                File segment = segment(i);
+                if (segment.exists() && !segment.renameTo(segment(i + 1))) throw new IOException("Could not rename " + segment);
+            }
+            compress(file, segment(1));
+            if (!file.delete()) throw new IOException("Could not delete " + file);
+            rotations++;
+        } finally {
+            openFile();  // when rotation failed we keep appending to the current file
+        }
+    }
+
+    private File segment(int number) {
+        return new File(file.getPath() + "." + number + ".gz");
+    }
+
+    private static void compress(File source, File target) throws IOException {
+        byte[] buffer = new byte[16384];
+        try (InputStream in = new FileInputStream(source); OutputStream gz = new GZIPOutputStream(new FileOutputStream(target), 16384)) {
+            int count;
+            while ((count = in.read(buffer)) != -1) gz.write(buffer, 0, count);
+        }
+    }
+}
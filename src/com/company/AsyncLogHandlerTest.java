@@ -0,0 +1,76 @@
+package com.company;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.zip.GZIPInputStream;
+
+public class AsyncLogHandlerTest {
+
+    private static final Formatter LINE_FORMATTER = new Formatter() {
+        @Override
+        public String format(LogRecord record) {
+            return formatMessage(record) + "\n";
+        }
+    };
+
+    @Test
+    public void rotationInBytesTest() throws IOException {
+        // 20 characters but 54 bytes per line: the file never gets over the 120 bytes
+        File dir = Files.createTempDirectory("twclog").toFile();
+        String fileName = new File(dir, "TWC.log").getPath();
+        AsyncLogHandler handler = new AsyncLogHandler(fileName, 1000, true, 120, 2, false);
+        handler.setFormatter(LINE_FORMATTER);
+        for (int i = 0; i < 10; i++) handler.publish(new LogRecord(Level.INFO, "\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\ud83d\udd0c" + (i % 10)));
+        handler.close();
+        Assert.assertEquals(54, AsyncLogHandler.utf8Length("\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\ud83d\udd0c0\n"));
+        Assert.assertEquals(108, new File(fileName).length());  // two lines
+        Assert.assertTrue(handler.rotations >= 4);
+        for (File file : dir.listFiles()) file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void lazyFormattingAndRotationTest() throws IOException {
+        File dir = Files.createTempDirectory("twclog").toFile();
+        String fileName = new File(dir, "TWC.log").getPath();
+        AsyncLogHandler handler = new AsyncLogHandler(fileName, 1000, true, 100, 2, false);
+        handler.setFormatter(LINE_FORMATTER);
+        for (int i = 0; i < 30; i++) {
+            LogRecord record = new LogRecord(Level.INFO, "line {0}");
+            record.setParameters(new Object[]{i});
+            handler.publish(record);
+        }
+        handler.close();
+        Assert.assertEquals(30, handler.written);
+        Assert.assertEquals(0, handler.dropped.get());
+        Assert.assertTrue(handler.rotations >= 2);
+        Assert.assertTrue(new File(fileName + ".1.gz").exists());
+        Assert.assertTrue(new File(fileName + ".2.gz").exists());
+        Assert.assertFalse(new File(fileName + ".3.gz").exists());  // only 2 segments kept
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(fileName + ".1.gz"))))) {
+            Assert.assertTrue(in.readLine().startsWith("line "));
+        }
+        try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+            String last = null;
+            for (String line = in.readLine(); line != null; line = in.readLine()) last = line;
+            Assert.assertEquals("line 29", last);
+        }
+    }
+
+    @Test
+    public void dropWhenFullTest() throws IOException {
+        File dir = Files.createTempDirectory("twclog").toFile();
+        AsyncLogHandler handler = new AsyncLogHandler(new File(dir, "TWC.log").getPath(), 1, false, 1 << 20, 1, false);
+        handler.setFormatter(LINE_FORMATTER);
+        for (int i = 0; i < 1000; i++) handler.publish(new LogRecord(Level.INFO, "x"));
+        handler.close();
+        Assert.assertEquals(1000, handler.written + handler.dropped.get());
+        Assert.assertEquals(handler.published.get(), handler.written);
+    }
+}
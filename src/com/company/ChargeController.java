@@ -0,0 +1,16 @@
+package com.company;
+
+// Decides the total charging current from the grid power, every update_interval_sec
+// The SMA thread hands every grid sample (the sma_formula result) to onGridSample, the control loop calls update
+// update returns the new total in A, Main then applies the minimum charging current and what the chargers can take
+public interface ChargeController {
+
+    void onGridSample(long nanos, double gridWatts);
+
+    int update(long nanos, ControlSettings s, int setAmps, int usedAmps, int capAmps);
+
+    static ChargeController forName(String name) {
+        if ("pi".equalsIgnoreCase(name)) return new PiController();
+        return new StepController();
+    }
+}
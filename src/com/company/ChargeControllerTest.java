@@ -0,0 +1,54 @@
+package com.company;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ChargeControllerTest {
+
+    @After
+    public void cleanUp() {
+        Main.currentPowerConsumption = 0.0;
+        Main.setLogging(true);
+    }
+
+    @Test
+    public void stepTest() {
+        Main.setLogging(false);
+        ControlSettings s = ControlSettings.DEFAULTS;
+        ChargeController step = ChargeController.forName("step");
+        Main.currentPowerConsumption = 5000.0;  // 7 A room under 10 kW
+        Assert.assertEquals(13, step.update(0, s, 10, 10, 32));  // max_amp_step up
+        Assert.assertEquals(7, step.update(0, s, 10, 0, 32));  // not charging, straight to the room
+        Main.currentPowerConsumption = 10000.0 + 2 / Main.AMPS_PER_GRID_WATT;
+        Assert.assertEquals(8, step.update(0, s, 10, 10, 32));
+    }
+
+    @Test
+    public void piTest() {
+        // house load plus a car that takes what it is given, a meter sample every second, an update every 5 seconds
+        Main.setLogging(false);
+        ControlSettings s = ControlSettings.DEFAULTS.withUpdateIntervalSec(5);
+        ChargeController pi = ChargeController.forName("pi");
+        double house = 3000.0;
+        int set = 0;
+        int previous = 0;
+        int maxRise = 0;
+        for (int second = 1; second <= 1800; second++) {
+            if (second == 900) house = 6000.0;  // oven on
+            if (second == 1200) house = 3000.0;  // and off again
+            Main.currentPowerConsumption = house + set / Main.AMPS_PER_GRID_WATT;
+            pi.onGridSample(second * 1000000000L, Main.currentPowerConsumption);
+            if (second % 5 != 0) continue;
+            previous = set;
+            set = pi.update(second * 1000000000L, s, set, set, 32);
+            Assert.assertTrue("over the limit at " + second + " s", house + set / Main.AMPS_PER_GRID_WATT <= 10000.0 + 1.0);
+            if (second > 60) maxRise = Math.max(maxRise, set - previous);
+            if (second == 895) Assert.assertEquals(10, set);  // 7000 W of room is 10 A
+            if (second == 900) Assert.assertTrue(set <= 5);  // backed off in the first update after the oven came on
+            if (second == 1195) Assert.assertEquals(5, set);
+        }
+        Assert.assertEquals(10, set);
+        Assert.assertTrue(maxRise <= 1);  // 6 A per minute is half an amp per update
+    }
+}
@@ -0,0 +1,251 @@
+package com.company;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// The energy of every charge session, per slave
+// A session starts when the status byte says a car is plugged in (01, 03, 04 or 08) and ends when the charger is ready without a car (00)
+// The used current is integrated in fixed point, 0.01 A times microseconds in a long, so a long session loses nothing to rounding
+// It only hears about a slave when something changes (see TwcEvents): a current holds from the heartbeat that reported it up to the
+// last heartbeat heard before the next change, update catches up to slave.lastSeenNanos for the ones that did not change.
+// A silence over TwcEvents.SILENCE_NANOS (heardAgain) is not counted
+// Start, end and a checkpoint every CHECKPOINT_NANOS go to the SessionJournal, the checkpoints from the journal thread just before
+// it commits. After a restart the journal gives the sessions back, a session that was running goes on from its last checkpoint
+// once its slave is heard again, unless that is only after SessionState.MAX_AGE_MS
+// Records: start <slave> <ms>, check <slave> <ms> <0.01 A us>, end <slave> <ms> <0.01 A us>
+// Called from the control loop, read by the web server
+public class ChargeSessions implements TwcEvents.Listener {
+
+    static final long CHECKPOINT_NANOS = 60 * 1000000000L;
+    static final double UNITS_PER_AMP_HOUR = 100 * 3600e6;
+
+    public static final class Session {
+        final String slave;
+        final long startMillis;
+        volatile long endMillis = 0;  // 0 while running
+        volatile long centiAmpMicros = 0;
+        TwcSlave twc;  // null for a session from the journal until its slave is heard
+        long lastMillis;  // of the last record or heartbeat the session heard about
+        long heardNanos;  // of that heartbeat
+        long lastNanos;  // counted up to here
+        int lastCentiAmps = 0;
+        long checkpointNanos;
+
+        Session(String slave, long startMillis) {
+            this.slave = slave;
+            this.startMillis = startMillis;
+            this.lastMillis = startMillis;
+        }
+
+        public boolean running() {
+            return endMillis == 0;
+        }
+
+        public double ampHours() {
+            return centiAmpMicros / UNITS_PER_AMP_HOUR;
+        }
+
+        public double wattHours() {
+            return ampHours() * Main.WATTS_PER_AMP;
+        }
+    }
+
+    private final SessionJournal journal;  // null keeps the sessions in memory only
+    private final Map<String, Session> running = new TreeMap<>();
+    private final List<Session> sessions = new ArrayList<>();  // all of them, oldest first
+    private long endedCentiAmpMicros = 0;
+
+    public ChargeSessions(SessionJournal journal) {
+        this.journal = journal;
+        if (journal != null) {
+            replay(journal.recovered());
+            journal.beforeCommit = this::update;
+        }
+    }
+
+    private void replay(List<String> records) {
+        for (String record : records) {
+            String[] fields = record.split(" ");
+            try {
+                String slave = fields[1];
+                long millis = Long.parseLong(fields[2]);
+                Session session = running.get(slave);
+                if ("start".equals(fields[0])) {
+                    if (session != null) end(session, session.lastMillis, false);  // the end got lost
+                    start(slave, millis, false);
+                } else if ((session != null) && "check".equals(fields[0])) {
+                    session.centiAmpMicros = Long.parseLong(fields[3]);
+                    session.lastMillis = millis;
+                } else if ((session != null) && "end".equals(fields[0])) {
+                    session.centiAmpMicros = Long.parseLong(fields[3]);
+                    end(session, millis, false);
+                }
+            } catch (RuntimeException e) {
+                Main.logger.warning("Session journal: record " + record + " not understood");
+            }
+        }
+        if (!sessions.isEmpty() && Main.logging) {
+            Main.logger.info("Session journal: " + sessions.size() + " charge sessions, " + running.size() + " still running");
+        }
+    }
+
+    @Override
+    public synchronized void heardAgain(TwcSlave slave, TwcMessage message) {
+        Session session = session(slave, message);
+        if (session == null) return;
+        count(session, slave.lastSeenNanos);  // up to the last heartbeat before the silence
+        heard(session, message);
+    }
+
+    @Override
+    public synchronized void statusChanged(TwcSlave slave, int previous, TwcMessage message) {
+        Session session = session(slave, message);
+        if (session == null) {
+            if (!TwcSlave.carPluggedIn(message.status)) return;
+            session = start(slave.id, message.millis, true);
+            session.twc = slave;
+            session.lastCentiAmps = message.usedCentiAmps;
+            session.checkpointNanos = message.nanos;
+            heard(session, message);
+        }
+        count(session, message.nanos);
+        if (message.status == 0x00) end(session, message.millis, true);
+    }
+
+    @Override
+    public synchronized void currentChanged(TwcSlave slave, TwcMessage message) {
+        Session session = session(slave, message);
+        if (session == null) return;
+        count(session, message.nanos);
+        session.lastCentiAmps = message.usedCentiAmps;
+        checkpointIfDue(session);
+    }
+
+    private Session session(TwcSlave slave, TwcMessage message) {
+        // the running session of the slave, a session from the journal gets its slave here
+        Session session = running.get(slave.id);
+        if ((session == null) || (session.twc == slave)) return session;
+        if ((session.twc == null) && (message.millis - session.lastMillis > SessionState.MAX_AGE_MS)) {
+            end(session, session.lastMillis, true);  // from before a restart, too long ago to be the same car
+            return null;
+        }
+        session.twc = slave;
+        session.lastCentiAmps = message.usedCentiAmps;
+        session.checkpointNanos = message.nanos;
+        heard(session, message);
+        return session;
+    }
+
+    private static void heard(Session session, TwcMessage message) {
+        session.lastNanos = message.nanos;
+        session.heardNanos = message.nanos;
+        session.lastMillis = message.millis;
+    }
+
+    private static long millis(Session session) {
+        // wall clock time of lastNanos
+        return session.lastMillis + (session.lastNanos - session.heardNanos) / 1000000L;
+    }
+
+    private static void count(Session session, long nanos) {
+        // the current of the last change up to nanos
+        long micros = (nanos - session.lastNanos) / 1000;
+        if (micros <= 0) return;
+        session.centiAmpMicros += session.lastCentiAmps * micros;
+        session.lastNanos += micros * 1000;  // the rest of a microsecond counts the next time
+    }
+
+    private void checkpointIfDue(Session session) {
+        if (session.lastNanos - session.checkpointNanos < CHECKPOINT_NANOS) return;
+        session.checkpointNanos = session.lastNanos;
+        if (journal != null) journal.append("check " + session.slave + " " + millis(session) + " " + session.centiAmpMicros);
+    }
+
+    public synchronized void update() {
+        // the running sessions up to the last heartbeat of their slave, the journal thread calls this before every commit
+        for (Session session : running.values()) {
+            if (session.twc == null) continue;
+            count(session, session.twc.lastSeenNanos);
+            checkpointIfDue(session);
+        }
+    }
+
+    private Session start(String slave, long millis, boolean record) {
+        Session session = new Session(slave, millis);
+        running.put(slave, session);
+        sessions.add(session);
+        if (record) {
+            if (journal != null) journal.append("start " + slave + " " + millis);
+            if (Main.logging) Main.logger.info("Slave " + slave + ": car plugged in, charge session started");
+        }
+        return session;
+    }
+
+    private void end(Session session, long millis, boolean record) {
+        session.endMillis = Math.max(millis, session.startMillis + 1);
+        running.remove(session.slave);
+        endedCentiAmpMicros += session.centiAmpMicros;
+        if (record) {
+            if (journal != null) journal.append("end " + session.slave + " " + millis + " " + session.centiAmpMicros);
+            if (Main.logging) Main.logger.info(String.format("Slave %s: charge session ended, %.2f kWh", session.slave, session.wattHours() / 1000));
+        }
+    }
+
+    public synchronized void checkpoint() {
+        // at shutdown, so a restart goes on with all of the energy of the running sessions
+        if (journal == null) return;
+        update();
+        for (Session session : running.values()) journal.append("check " + session.slave + " " + millis(session) + " " + session.centiAmpMicros);
+    }
+
+    public synchronized List<Session> runningSessions() {
+        update();
+        return new ArrayList<>(running.values());
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    public synchronized double totalWattHours() {
+        update();
+        long total = endedCentiAmpMicros;
+        for (Session session : running.values()) total += session.centiAmpMicros;
+        return total / UNITS_PER_AMP_HOUR * Main.WATTS_PER_AMP;
+    }
+
+    public synchronized String json(int limit) {
+        // /api/sessions: the totals per slave and the last sessions, newest first
+        update();
+        Map<String, long[]> perSlave = new LinkedHashMap<>();  // sessions, 0.01 A us
+        List<Session> sorted = new ArrayList<>(sessions);
+        Collections.sort(sorted, (a, b) -> a.slave.compareTo(b.slave));
+        for (Session session : sorted) {
+            long[] totals = perSlave.computeIfAbsent(session.slave, id -> new long[2]);
+            totals[0]++;
+            totals[1] += session.centiAmpMicros;
+        }
+        StringBuilder sb = new StringBuilder(256 + Math.min(limit, sessions.size()) * 96);
+        sb.append("{\"wattsPerAmp\":").append(Main.WATTS_PER_AMP).append(",\"sessions\":").append(sessions.size());
+        sb.append(",\"totalWattHours\":").append(totalWattHours()).append(",\"slaves\":[");
+        int i = 0;
+        for (Map.Entry<String, long[]> entry : perSlave.entrySet()) {
+            if (i++ > 0) sb.append(',');
+            sb.append("{\"id\":\"").append(entry.getKey()).append("\",\"sessions\":").append(entry.getValue()[0]);
+            sb.append(",\"wattHours\":").append(entry.getValue()[1] / UNITS_PER_AMP_HOUR * Main.WATTS_PER_AMP).append('}');
+        }
+        sb.append("],\"last\":[");
+        for (int n = sessions.size() - 1; (n >= 0) && (sessions.size() - n <= limit); n--) {
+            Session session = sessions.get(n);
+            if (n < sessions.size() - 1) sb.append(',');
+            sb.append("{\"slave\":\"").append(session.slave).append("\",\"start\":").append(session.startMillis);
+            sb.append(",\"end\":").append(session.running() ? "null" : Long.toString(session.endMillis));
+            sb.append(",\"ampHours\":").append(session.ampHours()).append(",\"wattHours\":").append(session.wattHours()).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+}
@@ -0,0 +1,115 @@
+package com.company;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class ChargeSessionsTest {
+
+    static final long SECOND = 1000000000L;
+
+    @After
+    public void cleanUp() {
+        Main.setLogging(true);
+    }
+
+    static final TwcMessage message = new TwcMessage();
+
+    static void heartbeat(TwcEvents events, TwcSlave slave, int status, int usedCentiAmps, long nanos, long millis) {
+        // an FDE0 of the slave as it comes off the bus
+        byte[] body = {(byte) 0xFD, (byte) 0xE0, (byte) (slave.number >> 8), (byte) slave.number, 0x77, 0x77, (byte) status,
+                0x06, 0x40, (byte) (usedCentiAmps >> 8), (byte) usedCentiAmps, 0, 0, 0, 0};
+        byte[] frame = new byte[TwcCodec.MAX_FRAME_LENGTH];
+        int length = TwcCodec.encodeFrame(body, 0, body.length, frame, 0);
+        message.decode(frame, 0, length, nanos, null);
+        message.millis = millis;
+        events.onHeartbeat(slave, message);
+    }
+
+    @Test
+    public void sessionTest() {
+        // plugged in at 16 A for an hour in reports 0.7 s apart, the 2 A trickle before the car is there does not count
+        Main.setLogging(false);
+        ChargeSessions sessions = new ChargeSessions(null);
+        TwcEvents events = new TwcEvents(sessions);
+        TwcSlave slave = new TwcSlave("1A01", "95", 32);
+        long nanos = slave.lastSeenNanos + 5 * SECOND;
+        long millis = 1790000000000L;
+        heartbeat(events, slave, 0x00, 200, nanos, millis);
+        Assert.assertEquals(0, sessions.size());
+        heartbeat(events, slave, 0x04, 0, nanos += 700000000L, millis += 700);
+        for (int i = 0; i < 5143; i++) heartbeat(events, slave, (i % 10 == 0) ? 0x09 : 0x01, 1600, nanos += 700000000L, millis += 700);
+        heartbeat(events, slave, 0x01, 0, nanos += 700000000L, millis += 700);
+        // the car goes before the next report, 16 A x 3600.1 s, then unplugged
+        heartbeat(events, slave, 0x00, 0, nanos += 5 * SECOND, millis += 5000);
+        Assert.assertEquals(1, sessions.size());
+        Assert.assertTrue(sessions.runningSessions().isEmpty());
+        Assert.assertEquals(16.0 * 3600.1 / 3600 * Main.WATTS_PER_AMP, sessions.totalWattHours(), 1e-6);
+        // a gap of a minute (the bus was gone) is not counted, the last second is, without a change
+        TwcSlave second = new TwcSlave("1A02", "95", 32);
+        heartbeat(events, second, 0x01, 1000, nanos, millis);
+        heartbeat(events, second, 0x01, 1000, nanos += 60 * SECOND, millis += 60000);
+        heartbeat(events, second, 0x01, 1000, nanos += SECOND, millis += 1000);
+        Assert.assertEquals(10.0 / 3600 * Main.WATTS_PER_AMP, sessions.runningSessions().get(0).wattHours(), 1e-9);
+        Assert.assertTrue(sessions.json(10).contains("\"last\":[{\"slave\":\"1A02\",\"start\":"));
+    }
+
+    @Test
+    public void journalTest() throws Exception {
+        // checkpoints and the session end survive a restart, a half written record at the end is dropped
+        Main.setLogging(false);
+        File file = File.createTempFile("twc", ".sessions");
+        try {
+            SessionJournal journal = new SessionJournal(file);
+            ChargeSessions sessions = new ChargeSessions(journal);
+            TwcEvents events = new TwcEvents(sessions);
+            TwcSlave first = new TwcSlave("1A01", "95", 32);
+            TwcSlave second = new TwcSlave("1A02", "95", 32);
+            long nanos = first.lastSeenNanos;
+            long millis = 1790000000000L;
+            // the journal thread commits every 10 s here, that is when the checkpoints are taken
+            for (int i = 0; i <= 200; i++) {
+                heartbeat(events, first, 0x01, 2000, nanos += SECOND, millis += 1000);
+                if (i % 10 == 0) journal.commit();
+            }
+            heartbeat(events, first, 0x00, 0, nanos += SECOND, millis += 1000);
+            for (int i = 0; i <= 130; i++) {
+                heartbeat(events, second, 0x01, 800, nanos += SECOND, millis += 1000);
+                if (i % 10 == 0) journal.commit();
+            }
+            journal.commit();
+            Assert.assertEquals(2 + 3 + 1 + 2, journal.records);  // two starts, checkpoints at 60, 120 and 180 s and 60 and 120 s, one end
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write("check 1A02 1790000999000 12".getBytes(StandardCharsets.US_ASCII));  // the power went in the middle of this one
+            }
+            journal.close();
+
+            SessionJournal reopened = new SessionJournal(file);
+            Assert.assertEquals(27, reopened.truncatedBytes);
+            Assert.assertEquals(8, reopened.recovered().size());
+            ChargeSessions restarted = new ChargeSessions(reopened);
+            events = new TwcEvents(restarted);
+            Assert.assertEquals(2, restarted.size());
+            Assert.assertEquals(1, restarted.runningSessions().size());
+            Assert.assertEquals((20.0 * 201 + 8.0 * 120) / 3600 * Main.WATTS_PER_AMP, restarted.totalWattHours(), 1e-6);
+            // the car on 1A02 is still there: its session goes on from the checkpoint
+            TwcSlave again = new TwcSlave("1A02", "95", 32);
+            heartbeat(events, again, 0x01, 800, again.lastSeenNanos + 7 * SECOND, millis += 30000);
+            heartbeat(events, again, 0x00, 0, again.lastSeenNanos + 10 * SECOND, millis += 10000);
+            Assert.assertEquals(2, restarted.size());
+            Assert.assertEquals((20.0 * 201 + 8.0 * 130) / 3600 * Main.WATTS_PER_AMP, restarted.totalWattHours(), 1e-6);
+            reopened.close();
+            SessionJournal last = new SessionJournal(file);
+            Assert.assertEquals(9, last.recovered().size());  // and the end of the second session
+            last.close();
+            Assert.assertTrue(new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).startsWith("start 1A01 1790000001000 "));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.company;
+
+// A TwcClock for tests that only moves when the test sets nanos, the wall clock follows it from a fixed date
+// Test support, compiled with the tests only (see the *TestSupport.java pattern in pom.xml)
+public class ClockTestSupport implements TwcClock {
+
+    volatile long nanos = 1000000000L;
+
+    @Override
+    public long nanoTime() {
+        return nanos;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return 1790000000000L + nanos / 1000000L;
+    }
+}
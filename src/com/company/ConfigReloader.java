@@ -0,0 +1,182 @@
+package com.company;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.company.Main.*;
+
+// Watches config.txt and serves /api/config, so settings change without a restart (and without a new TWC handshake)
+// After a change to the file it is read again: the control settings (see ControlSettings) and the log settings are applied live,
+// the other keys (ports, ids, meter serial, files) are only read at start, a change to them is logged as needing a restart
+// /api/config: GET gives the control settings, POST with key = value lines in the body changes them
+// POST needs the api_token of config.txt as 'Authorization: Bearer <token>', without an api_token POST is refused
+// Changes accepted by POST are also written to config.txt, so they survive a restart
+public class ConfigReloader implements Runnable {
+
+    static final long SETTLE_MS = 500;  // editors often write a file in more than one go
+    static final String[] RESTART_KEYS = {"http_port", "master_id", "rs485_port", "sma_serial", "sma_formula", "load_sharing", "slave_priority", "controller",
+            "capture_file", "state_file", "session_journal", "archive_dir", "peer_group"};
+    static final String[] LOG_KEYS = {"log_max_size_kb", "log_segments", "log_full_policy"};
+
+    private final File file;
+    private volatile Properties current;
+    volatile long reloads = 0;
+    volatile long rejected = 0;
+    volatile long restartsNeeded = 0;
+
+    public ConfigReloader(File file, Properties initial) {
+        this.file = file;
+        this.current = initial;
+    }
+
+    static Properties read(File file) throws IOException {
+        Properties props = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.ISO_8859_1)) {
+            props.load(reader);
+        }
+        return props;
+    }
+
+    @Override
+    public void run() {
+        Path dir = file.getAbsoluteFile().toPath().getParent();
+        Path name = file.toPath().getFileName();
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (!programStopCalled) {
+                WatchKey key = watcher.poll(1, TimeUnit.SECONDS);
+                if (key == null) continue;
+                boolean changed = containsFile(key, name);
+                key.reset();
+                if (!changed) continue;
+                Thread.sleep(SETTLE_MS);
+                while ((key = watcher.poll()) != null) key.reset();  // the rest of the same save
+                reload();
+            }
+        } catch (IOException e) {
+            logger.warning("Could not watch " + file + " for changes: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean containsFile(WatchKey key, Path name) {
+        boolean found = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (name.equals(event.context())) found = true;
+        }
+        return found;
+    }
+
+    synchronized void reload() {
+        Properties props;
+        try {
+            props = read(file);
+        } catch (IOException e) {
+            logger.warning("Could not read " + file + ": " + e.getMessage());
+            return;
+        }
+        reloads++;
+        try {
+            // a key that was taken out of the file goes back to its default, as after a restart
+            ControlSettings next = ControlSettings.parse(props, ControlSettings.DEFAULTS);
+            if (!next.equals(latestSettings())) {
+                submitSettings(next);
+                logger.warning(file + " changed, control settings " + next + " apply from the next update");
+            }
+        } catch (IllegalArgumentException e) {
+            rejected++;
+            logger.warning(file + " changed but not applied, " + e.getMessage());
+        }
+        if (changed(props, LOG_KEYS)) {
+            try {
+                configureLogging(props);
+                logger.warning(file + " changed, the log settings apply right away");
+            } catch (NumberFormatException e) {
+                rejected++;
+                logger.warning(file + " changed but the log settings not applied, " + e.getMessage());
+            }
+        }
+        for (String key : RESTART_KEYS) {
+            if (!Objects.equals(current.getProperty(key), props.getProperty(key))) {
+                restartsNeeded++;
+                logger.warning(key + " changed in " + file + ", this needs a restart");
+            }
+        }
+        current = props;
+    }
+
+    private boolean changed(Properties props, String[] keys) {
+        for (String key : keys) {
+            if (!Objects.equals(current.getProperty(key), props.getProperty(key))) return true;
+        }
+        return false;
+    }
+
+    public HttpServer.Response handleApi(HttpServer.Request request) {
+        if ("GET".equals(request.method)) return HttpServer.Response.ok("application/json", latestSettings().toJson());
+        if (!"POST".equals(request.method) && !"PUT".equals(request.method)) return HttpServer.Response.error(405, "Method Not Allowed");
+        String token = current.getProperty("api_token", "").trim();
+        if (token.isEmpty()) return HttpServer.Response.error(403, "Forbidden", "Set api_token in config.txt to allow changes");
+        String authorization = request.header("Authorization");
+        if ((authorization == null) || !MessageDigest.isEqual(("Bearer " + token).getBytes(StandardCharsets.UTF_8), authorization.getBytes(StandardCharsets.UTF_8))) {
+            return HttpServer.Response.error(401, "Unauthorized");
+        }
+        Properties changes = new Properties();
+        try {
+            changes.load(new StringReader(request.body));
+        } catch (IOException | IllegalArgumentException e) {
+            return HttpServer.Response.error(400, "Bad Request", "Body must be key = value lines: " + e.getMessage());
+        }
+        List<String> live = Arrays.asList(ControlSettings.KEYS);
+        for (String key : changes.stringPropertyNames()) {
+            if (!live.contains(key)) return HttpServer.Response.error(400, "Bad Request", key + " can not be changed while running, only " + live);
+        }
+        ControlSettings next;
+        synchronized (this) {
+            try {
+                next = ControlSettings.parse(changes, latestSettings());
+            } catch (IllegalArgumentException e) {
+                rejected++;
+                return HttpServer.Response.error(400, "Bad Request", e.getMessage());
+            }
+            submitSettings(next);
+            try {
+                store(changes);
+            } catch (IOException e) {
+                logger.warning("Settings applied but not saved to " + file + ": " + e.getMessage());
+            }
+        }
+        logger.warning("Control settings " + next + " set through /api/config, apply from the next update");
+        return HttpServer.Response.ok("application/json", next.toJson());
+    }
+
+    private void store(Properties changes) throws IOException {
+        // rewrites only the lines of the changed keys, so the comments in config.txt stay
+        List<String> lines = file.exists() ? Files.readAllLines(file.toPath(), StandardCharsets.ISO_8859_1) : new ArrayList<>();
+        Set<String> done = new HashSet<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            for (String key : changes.stringPropertyNames()) {
+                if (line.startsWith(key) && line.substring(key.length()).trim().matches("^[=:].*")) {
+                    lines.set(i, key + " = " + changes.getProperty(key).trim());
+                    done.add(key);
+                }
+            }
+        }
+        for (String key : changes.stringPropertyNames()) {
+            if (!done.contains(key)) lines.add(key + " = " + changes.getProperty(key).trim());
+        }
+        Path temp = file.getAbsoluteFile().toPath().resolveSibling(file.getName() + ".tmp");
+        Files.write(temp, lines, StandardCharsets.ISO_8859_1);
+        Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Properties props = new Properties();
+        props.putAll(current);
+        props.putAll(changes);
+        current = props;  // so the file watcher sees no restart keys changed
+    }
+}
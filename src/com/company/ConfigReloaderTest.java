@@ -0,0 +1,118 @@
+package com.company;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+public class ConfigReloaderTest {
+
+    private File file;
+
+    @After
+    public void cleanUp() {
+        if (file != null) file.delete();
+        Main.pendingSettings.set(null);
+        Main.settings = ControlSettings.DEFAULTS;
+    }
+
+    private ConfigReloader reloader(String contents) throws IOException {
+        file = File.createTempFile("config", ".txt");
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.ISO_8859_1));
+        return new ConfigReloader(file, ConfigReloader.read(file));
+    }
+
+    private static HttpServer.Request post(String authorization, String body) {
+        Map<String, String> headers = new HashMap<>();
+        if (authorization != null) headers.put("authorization", authorization);
+        return new HttpServer.Request("POST", "/api/config", headers, body);
+    }
+
+    @Test
+    public void settingsValidationTest() {
+        Properties props = new Properties();
+        props.setProperty("max_amp_step", "5");
+        ControlSettings s = ControlSettings.parse(props, ControlSettings.DEFAULTS);
+        Assert.assertEquals(5, s.maxAmpStep);
+        Assert.assertEquals(ControlSettings.DEFAULTS.maxPowerFromMains, s.maxPowerFromMains, 0);
+        for (String[] bad : new String[][]{{"max_amp_step", "0"}, {"max_amp_step", "2.5"}, {"min_charging_amps", "40"}, {"max_power_from_mains", "lots"}}) {
+            props = new Properties();
+            props.setProperty(bad[0], bad[1]);
+            try {
+                ControlSettings.parse(props, ControlSettings.DEFAULTS);
+                Assert.fail(bad[0] + " = " + bad[1]);
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage().startsWith(bad[0]));
+            }
+        }
+        // at startup only the bad keys go back to their default
+        props = new Properties();
+        props.setProperty("max_amp_step", "5");
+        props.setProperty("min_charging_amps", "4");
+        props.setProperty("max_power_from_mains", "lots");
+        props.setProperty("update_interval_sec", "10");
+        Main.setLogging(false);
+        s = ControlSettings.parseOrDefault(props, ControlSettings.DEFAULTS);
+        Main.setLogging(true);
+        Assert.assertEquals(5, s.maxAmpStep);
+        Assert.assertEquals(10, s.updateIntervalSec);
+        Assert.assertEquals(ControlSettings.DEFAULTS.minChargingAmps, s.minChargingAmps);
+        Assert.assertEquals(ControlSettings.DEFAULTS.maxPowerFromMains, s.maxPowerFromMains, 0);
+    }
+
+    @Test
+    public void apiTest() throws IOException {
+        ConfigReloader closed = reloader("api_token = \n");
+        Assert.assertEquals(403, closed.handleApi(post("Bearer x", "max_amp_step = 5")).status);
+        file.delete();
+        ConfigReloader reloader = reloader("# power\r\nmax_power_from_mains = 10000.0\r\napi_token = secret\r\n");
+        Assert.assertEquals(401, reloader.handleApi(post(null, "max_amp_step = 5")).status);
+        Assert.assertEquals(401, reloader.handleApi(post("Bearer wrong", "max_amp_step = 5")).status);
+        Assert.assertEquals(400, reloader.handleApi(post("Bearer secret", "max_amp_step = 0")).status);
+        Assert.assertEquals(400, reloader.handleApi(post("Bearer secret", "http_port = 80")).status);
+        Assert.assertNull(Main.pendingSettings.get());
+        HttpServer.Response response = reloader.handleApi(post("Bearer secret", "max_power_from_mains = 7000\nmax_amp_step = 5"));
+        Assert.assertEquals(200, response.status);
+        Assert.assertEquals(7000.0, Main.latestSettings().maxPowerFromMains, 0);
+        Assert.assertEquals(ControlSettings.DEFAULTS, Main.settings);  // not before the next tick
+        Main.applyPendingSettings();
+        Assert.assertEquals(5, Main.settings.maxAmpStep);
+        // saved, with the comment and the other lines kept
+        Assert.assertEquals(java.util.Arrays.asList("# power", "max_power_from_mains = 7000", "api_token = secret", "max_amp_step = 5"),
+                Files.readAllLines(file.toPath(), StandardCharsets.ISO_8859_1));
+        Assert.assertEquals(200, reloader.handleApi(new HttpServer.Request("GET", "/api/config", Collections.emptyMap(), "")).status);
+    }
+
+    @Test
+    public void reloadTest() throws IOException {
+        ConfigReloader reloader = reloader("max_power_from_mains = 10000.0\n");
+        Files.write(file.toPath(), "max_power_from_mains = 8000\nupdate_interval_sec = 30\n".getBytes(StandardCharsets.ISO_8859_1));
+        reloader.reload();
+        Assert.assertEquals(8000.0, Main.latestSettings().maxPowerFromMains, 0);
+        Assert.assertEquals(30, Main.latestSettings().updateIntervalSec);
+        Files.write(file.toPath(), "max_power_from_mains = -1\n".getBytes(StandardCharsets.ISO_8859_1));
+        reloader.reload();
+        Assert.assertEquals(8000.0, Main.latestSettings().maxPowerFromMains, 0);  // bad value, nothing changes
+        Assert.assertEquals(1, reloader.rejected);
+        Assert.assertEquals(0, reloader.restartsNeeded);
+    }
+
+    @Test
+    public void restartKeysTest() throws IOException {
+        // the files and the peer group are only opened at start, a bad log setting is logged and does not stop the reloader
+        ConfigReloader reloader = reloader("archive_dir = \nsession_journal = TWC.sessions\npeer_group = \nlog_segments = 5\n");
+        Files.write(file.toPath(), "archive_dir = archive\nsession_journal = other.sessions\npeer_group = 239.12.255.253:9524\nlog_segments = many\n"
+                .getBytes(StandardCharsets.ISO_8859_1));
+        reloader.reload();
+        Assert.assertEquals(3, reloader.restartsNeeded);
+        Assert.assertEquals(1, reloader.rejected);
+    }
+}
@@ -0,0 +1,152 @@
+package com.company;
+
+import java.util.Properties;
+
+// Settings of the control loop that can change while running: from config.txt (see ConfigReloader) or /api/config
+// Immutable, a change is a new object that the control loop takes over as a whole at the start of its next tick,
+// so it never works with half of an old and half of a new configuration
+// Values are checked here, a bad value rejects the whole change and the running settings stay as they are
+// Only at startup a bad value is not fatal (parseOrDefault): the program has to charge with a config.txt of an older version too
+public final class ControlSettings {
+
+    static final String MAX_POWER_FROM_MAINS = "max_power_from_mains";
+    static final String MAX_AMP_STEP = "max_amp_step";
+    static final String UPDATE_INTERVAL_SEC = "update_interval_sec";
+    static final String MIN_CHARGING_AMPS = "min_charging_amps";
+    static final String PHASE_LIMIT_AMPS = "phase_limit_amps";
+    static final String FILTER_SEC = "filter_sec";
+    static final String RAMP_UP_AMPS_PER_MIN = "ramp_up_amps_per_min";
+    static final String BACK_OFF_AMPS_PER_MIN = "back_off_amps_per_min";
+    static final String PEAK_TARGET_WATTS = "peak_target_watts";
+    static final String[] KEYS = {MAX_POWER_FROM_MAINS, MAX_AMP_STEP, UPDATE_INTERVAL_SEC, MIN_CHARGING_AMPS, PHASE_LIMIT_AMPS,
+            FILTER_SEC, RAMP_UP_AMPS_PER_MIN, BACK_OFF_AMPS_PER_MIN, PEAK_TARGET_WATTS};
+
+    static final ControlSettings DEFAULTS = new ControlSettings(10000.0, 3, 60, 6, 0, 10, 6, 60, 0.0);
+
+    final double maxPowerFromMains;  // Maximum power you want pulled in from mains, in Watt
+    final int maxAmpStep;  // Most the charging current changes in one update, in Amps
+    final int updateIntervalSec;  // Time between charging current updates
+    final int minChargingAmps;  // Minimum charging below which you don't want charging, in Amps
+    final int phaseLimitAmps;  // Breaker limit of every phase, 0 when only the total power counts
+    // only for controller = pi, see PiController
+    final int filterSec;  // Time constant of the grid power filter, 0 is no filtering
+    final int rampUpAmpsPerMin;  // How fast the charging current may go up
+    final int backOffAmpsPerMin;  // How fast it may go down while under the limit, above the limit it goes down at once
+    final double peakTargetWatts;  // Quarter hour average the capacity tariff is kept under (see PeakBudget), 0 is off
+
+    ControlSettings(double maxPowerFromMains, int maxAmpStep, int updateIntervalSec, int minChargingAmps, int phaseLimitAmps,
+                    int filterSec, int rampUpAmpsPerMin, int backOffAmpsPerMin, double peakTargetWatts) {
+        this.maxPowerFromMains = check(MAX_POWER_FROM_MAINS, maxPowerFromMains, 100, 100000);
+        this.maxAmpStep = (int) check(MAX_AMP_STEP, maxAmpStep, 1, 80);
+        this.updateIntervalSec = (int) check(UPDATE_INTERVAL_SEC, updateIntervalSec, 1, 3600);
+        this.minChargingAmps = (int) check(MIN_CHARGING_AMPS, minChargingAmps, 5, 32);  // below 5 A a TWC does not charge
+        this.phaseLimitAmps = (int) check(PHASE_LIMIT_AMPS, phaseLimitAmps, 0, 250);
+        this.filterSec = (int) check(FILTER_SEC, filterSec, 0, 600);
+        this.rampUpAmpsPerMin = (int) check(RAMP_UP_AMPS_PER_MIN, rampUpAmpsPerMin, 1, 600);
+        this.backOffAmpsPerMin = (int) check(BACK_OFF_AMPS_PER_MIN, backOffAmpsPerMin, 1, 6000);
+        this.peakTargetWatts = check(PEAK_TARGET_WATTS, peakTargetWatts, 0, 100000);
+    }
+
+    static ControlSettings parse(Properties props, ControlSettings base) {
+        // keys that are missing keep the value of base, throws IllegalArgumentException naming the bad key
+        return new ControlSettings(
+                number(props, MAX_POWER_FROM_MAINS, base.maxPowerFromMains),
+                integer(props, MAX_AMP_STEP, base.maxAmpStep),
+                integer(props, UPDATE_INTERVAL_SEC, base.updateIntervalSec),
+                integer(props, MIN_CHARGING_AMPS, base.minChargingAmps),
+                integer(props, PHASE_LIMIT_AMPS, base.phaseLimitAmps),
+                integer(props, FILTER_SEC, base.filterSec),
+                integer(props, RAMP_UP_AMPS_PER_MIN, base.rampUpAmpsPerMin),
+                integer(props, BACK_OFF_AMPS_PER_MIN, base.backOffAmpsPerMin),
+                number(props, PEAK_TARGET_WATTS, base.peakTargetWatts));
+    }
+
+    static ControlSettings parseOrDefault(Properties props, ControlSettings base) {
+        // at startup: a key with a bad value is logged and keeps the value of base, the others are taken
+        ControlSettings settings = base;
+        for (String key : KEYS) {
+            String value = props.getProperty(key);
+            if (value == null) continue;
+            Properties one = new Properties();
+            one.setProperty(key, value);
+            try {
+                settings = parse(one, settings);
+            } catch (IllegalArgumentException e) {
+                if (Main.logging) Main.logger.warning("config.txt: " + e.getMessage() + ", the default is used");
+            }
+        }
+        return settings;
+    }
+
+    ControlSettings withMaxPowerFromMains(double watts) {
+        return new ControlSettings(watts, maxAmpStep, updateIntervalSec, minChargingAmps, phaseLimitAmps, filterSec, rampUpAmpsPerMin, backOffAmpsPerMin, peakTargetWatts);
+    }
+
+    ControlSettings withPhaseLimitAmps(int amps) {
+        return new ControlSettings(maxPowerFromMains, maxAmpStep, updateIntervalSec, minChargingAmps, amps, filterSec, rampUpAmpsPerMin, backOffAmpsPerMin, peakTargetWatts);
+    }
+
+    ControlSettings withPeakTargetWatts(double watts) {
+        return new ControlSettings(maxPowerFromMains, maxAmpStep, updateIntervalSec, minChargingAmps, phaseLimitAmps, filterSec, rampUpAmpsPerMin, backOffAmpsPerMin, watts);
+    }
+
+    ControlSettings withUpdateIntervalSec(int seconds) {
+        return new ControlSettings(maxPowerFromMains, maxAmpStep, seconds, minChargingAmps, phaseLimitAmps, filterSec, rampUpAmpsPerMin, backOffAmpsPerMin, peakTargetWatts);
+    }
+
+    String toJson() {
+        return "{\"" + MAX_POWER_FROM_MAINS + "\":" + maxPowerFromMains + ",\"" + MAX_AMP_STEP + "\":" + maxAmpStep +
+                ",\"" + UPDATE_INTERVAL_SEC + "\":" + updateIntervalSec + ",\"" + MIN_CHARGING_AMPS + "\":" + minChargingAmps +
+                ",\"" + PHASE_LIMIT_AMPS + "\":" + phaseLimitAmps + ",\"" + FILTER_SEC + "\":" + filterSec +
+                ",\"" + RAMP_UP_AMPS_PER_MIN + "\":" + rampUpAmpsPerMin + ",\"" + BACK_OFF_AMPS_PER_MIN + "\":" + backOffAmpsPerMin +
+                ",\"" + PEAK_TARGET_WATTS + "\":" + peakTargetWatts + "}";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ControlSettings)) return false;
+        ControlSettings other = (ControlSettings) o;
+        return (maxPowerFromMains == other.maxPowerFromMains) && (maxAmpStep == other.maxAmpStep)
+                && (updateIntervalSec == other.updateIntervalSec) && (minChargingAmps == other.minChargingAmps)
+                && (phaseLimitAmps == other.phaseLimitAmps) && (filterSec == other.filterSec)
+                && (rampUpAmpsPerMin == other.rampUpAmpsPerMin) && (backOffAmpsPerMin == other.backOffAmpsPerMin)
+                && (peakTargetWatts == other.peakTargetWatts);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = (((Double.hashCode(maxPowerFromMains) * 31 + maxAmpStep) * 31 + updateIntervalSec) * 31 + minChargingAmps) * 31 + phaseLimitAmps;
+        hash = ((hash * 31 + filterSec) * 31 + rampUpAmpsPerMin) * 31 + backOffAmpsPerMin;
+        return hash * 31 + Double.hashCode(peakTargetWatts);
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    private static double number(Properties props, String key, double defaultValue) {
+        String value = props.getProperty(key);
+        if ((value == null) || value.trim().isEmpty()) return defaultValue;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " is not a number: " + value.trim());
+        }
+    }
+
+    private static int integer(Properties props, String key, int defaultValue) {
+        String value = props.getProperty(key);
+        if ((value == null) || value.trim().isEmpty()) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " is not a whole number: " + value.trim());
+        }
+    }
+
+    private static double check(String key, double value, double min, double max) {
+        if (!(value >= min) || !(value <= max)) throw new IllegalArgumentException(key + " must be between " + (long) min + " and " + (long) max + ": " + value);
+        return value;
+    }
+}
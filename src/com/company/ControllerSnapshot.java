@@ -0,0 +1,251 @@
+package com.company;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+import static com.company.Main.*;
+
+// Read-only copy of the controller state for the web server
+// The serial and SMA threads make a new one after every change and publish it with one atomic swap (see Main.publishSnapshot),
+// so a reader always sees values that belong together and never waits for the control loop
+// The text and JSON renderings are made the first time someone asks for them and then kept with the snapshot,
+// a new snapshot starts without them, so nothing gets formatted while nobody is looking
+// The diagnostic lines (heartbeat jitter, logging, http, SMA devices, peers, quarter hour budget, charge sessions) are live counters, they are read at that first rendering
+public final class ControllerSnapshot {
+
+    static final DateTimeFormatter TIME_STAMP = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    static final DateTimeFormatter QUARTER_START = DateTimeFormatter.ofPattern("HH:mm").withZone(ZoneId.systemDefault());
+
+    public static final class Slave {
+        final String id;
+        final int maxAmps;
+        final int status;
+        final int allocatedAmps;
+        final double reportedSetAmps;
+        final double usedAmps;
+
+        Slave(TwcSlave slave) {
+            this.id = slave.id;
+            this.maxAmps = slave.maxAmps;
+            this.status = slave.status;
+            this.allocatedAmps = slave.allocatedAmps;
+            this.reportedSetAmps = slave.reportedSetAmps;
+            this.usedAmps = slave.usedAmps;
+        }
+    }
+
+    static final ControllerSnapshot BOOTING = new ControllerSnapshot(0, 0, false, null, 0.0, 0.0, 0, -1, new Slave[0]);
+
+    final long version;
+    final long timeMillis;
+    final boolean running;  // false until the control loop published its first state
+    final String masterId;
+    final double maxPowerFromMains;
+    final double gridPower;
+    final int setAmps;  // total over all slaves
+    final int usedAmps;  // total over all slaves
+    private final Slave[] slaves;
+    private volatile String text;  // racy caching is fine, every thread would render the same string
+    private volatile String json;
+
+    ControllerSnapshot(long version, long timeMillis, boolean running, String masterId, double maxPowerFromMains, double gridPower,
+                       int setAmps, int usedAmps, Slave[] slaves) {
+        this.version = version;
+        this.timeMillis = timeMillis;
+        this.running = running;
+        this.masterId = masterId;
+        this.maxPowerFromMains = maxPowerFromMains;
+        this.gridPower = gridPower;
+        this.setAmps = setAmps;
+        this.usedAmps = usedAmps;
+        this.slaves = slaves;
+    }
+
+    static ControllerSnapshot of(ControllerSnapshot previous, long timeMillis, String masterId, double maxPowerFromMains,
+                                 int setAmps, int usedAmps, List<TwcSlave> slaveList) {
+        // new control state, the grid power stays what the SMA thread last published
+        Slave[] views = new Slave[slaveList.size()];
+        for (int i = 0; i < views.length; i++) views[i] = new Slave(slaveList.get(i));
+        return new ControllerSnapshot(previous.version + 1, timeMillis, true, masterId, maxPowerFromMains, previous.gridPower, setAmps, usedAmps, views);
+    }
+
+    ControllerSnapshot withGridPower(long time, double watts) {
+        return new ControllerSnapshot(version + 1, time, running, masterId, maxPowerFromMains, watts, setAmps, usedAmps, slaves);
+    }
+
+    public int slaveCount() {
+        return slaves.length;
+    }
+
+    public Slave slave(int index) {
+        return slaves[index];
+    }
+
+    public String text() {
+        String t = text;
+        if (t == null) text = t = renderText();
+        return t;
+    }
+
+    public String json() {
+        String j = json;
+        if (j == null) json = j = renderJson();
+        return j;
+    }
+
+    private String renderText() {
+        if (!running) return "Tesla Wall charger controller booting...";
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("Tesla Wall charger controller status").append(NEW_LINE);
+        sb.append("------------------------------------").append(NEW_LINE).append(NEW_LINE);
+        sb.append("Master Id: ").append(masterId).append(NEW_LINE);
+        for (Slave slave : slaves) {
+            sb.append("Slave  Id: ").append(slave.id).append(", charger is capable of ").append(slave.maxAmps).append("A");
+            sb.append(", set at ").append(slave.allocatedAmps).append("A, using ").append(slave.usedAmps).append("A").append(NEW_LINE);
+        }
+        sb.append(NEW_LINE);
+        sb.append("Maximum power draw from mains set at: ").append(String.format("%5.0f", maxPowerFromMains)).append("W").append(NEW_LINE);
+        sb.append("Current power consumption from mains: ").append(String.format("%5.0f", gridPower)).append("W (").append(String.format("%4.1f", gridPower * AMPS_PER_GRID_WATT)).append("A)").append(NEW_LINE);
+        sb.append("Current power setting on TWC        : ").append(String.format("%5.0f", setAmps * WATTS_PER_AMP)).append("W (").append(String.format("%4.1f", (double) setAmps)).append("A)").append(NEW_LINE);
+        sb.append("Reported power consumption by TWC   : ").append(String.format("%5.0f", usedAmps * WATTS_PER_AMP)).append("W (").append(String.format("%4.1f", (double) usedAmps)).append("A)").append(NEW_LINE).append(NEW_LINE);
+        HeartbeatScheduler heartbeats = heartbeatScheduler;
+        if (heartbeats != null) {
+            sb.append("Heartbeat jitter: last ").append(heartbeats.lastJitterNanos / 1000000).append(" ms, max ").append(heartbeats.maxJitterNanos / 1000000).append(" ms");
+            sb.append(", write failures: ").append(heartbeats.writeFailures).append(NEW_LINE).append(NEW_LINE);
+        }
+        if (asyncLogHandler != null) {
+            sb.append("Logging ").append(logging ? "on" : "off").append(": ").append(asyncLogHandler.queueSize()).append(" queued, ");
+            sb.append(asyncLogHandler.dropped.get()).append(" dropped, ").append(asyncLogHandler.blocked.get()).append(" waits, ");
+            sb.append(asyncLogHandler.rotations).append(" rotations").append(NEW_LINE).append(NEW_LINE);
+        }
+        HttpServer server = httpServer;
+        if (server != null) {
+            sb.append("Http: ").append(server.connectionsAccepted).append(" connections, ").append(server.requestsServed).append(" requests, ");
+            sb.append(server.subscribers()).append(" stream subscribers").append(NEW_LINE).append(NEW_LINE);
+        }
+        SmaMeterTable meters = smaMeters;
+        if (meters != null) {
+            long now = clock.nanoTime();
+            for (SmaMeterTable.Meter meter : meters.meters()) {
+                sb.append("SMA ").append(meter.serial).append(": ");
+                if (meter.packets == 0) {
+                    sb.append("nothing received");
+                } else {
+                    sb.append(String.format("%.1f", meter.packetsPerSecond())).append(" packets/s, last ").append(String.format("%.1f", meter.ageSeconds(now))).append(" s ago");
+                    if (meter.configured()) sb.append(", ").append(meter.powerDeciWatt[0] / 10).append("W");
+                    else sb.append(", not in sma_formula");
+                }
+                sb.append(NEW_LINE);
+            }
+            sb.append(NEW_LINE);
+        }
+        PeerCoordinator coordinator = peers;
+        if (coordinator != null) {
+            sb.append("Peer node ").append(coordinator.node).append(", share of the grid connection ").append(String.format("%.1f", coordinator.lastShareAmps)).append("A").append(NEW_LINE);
+            for (PeerCoordinator.Peer peer : coordinator.peers()) {
+                sb.append("Peer node ").append(peer.node).append(": set at ").append(peer.setAmps).append("A, using ").append(peer.usedAmps);
+                sb.append("A, could take ").append(peer.demandAmps).append("A").append(NEW_LINE);
+            }
+            sb.append(NEW_LINE);
+        }
+        PeakBudget budget = peakBudget;
+        if (budget.hasSample()) {
+            double target = settings.peakTargetWatts;
+            sb.append("Quarter hour from ").append(QUARTER_START.format(Instant.ofEpochMilli(budget.windowStart()))).append(": ");
+            sb.append(String.format("%.0f", budget.energyWattHours())).append("Wh, average ").append(String.format("%.0f", budget.averageWatts())).append("W");
+            if (target > 0) {
+                sb.append(", target ").append(String.format("%.0f", budget.targetWatts(target))).append("W, now allowed ");
+                sb.append(String.format("%.0f", Math.min(budget.allowedWatts(timeMillis, target, settings.updateIntervalSec), maxPowerFromMains))).append("W");
+            }
+            sb.append(NEW_LINE);
+            sb.append("Peak of ").append(budget.month()).append(": ").append(String.format("%.0f", budget.monthPeakWatts())).append("W, last quarter hour ");
+            sb.append(String.format("%.0f", budget.lastQuarterWatts())).append("W").append(NEW_LINE).append(NEW_LINE);
+        }
+        ChargeSessions charged = chargeSessions;
+        if (charged.size() > 0) {
+            for (ChargeSessions.Session session : charged.runningSessions()) {
+                sb.append("Charge session of ").append(session.slave).append(" since ").append(TIME_STAMP.format(Instant.ofEpochMilli(session.startMillis)));
+                sb.append(": ").append(String.format("%.2f", session.wattHours() / 1000)).append("kWh").append(NEW_LINE);
+            }
+            sb.append("Charged in total: ").append(String.format("%.1f", charged.totalWattHours() / 1000)).append("kWh in ").append(charged.size());
+            sb.append(" sessions").append(NEW_LINE).append(NEW_LINE);
+        }
+        sb.append("Time stamp: ").append(TIME_STAMP.format(Instant.ofEpochMilli(timeMillis)));
+        return sb.toString();
+    }
+
+    private String renderJson() {
+        // /api/status, the same values as the status page
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("{\"version\":").append(version).append(",\"running\":").append(running);
+        sb.append(",\"masterId\":").append(masterId == null ? "null" : "\"" + masterId + "\"").append(",\"time\":").append(timeMillis);
+        sb.append(",\"maxPowerFromMains\":").append(maxPowerFromMains).append(",\"gridPower\":").append(gridPower);
+        sb.append(",\"setAmps\":").append(setAmps).append(",\"usedAmps\":").append(usedAmps).append(",\"slaves\":[");
+        for (int i = 0; i < slaves.length; i++) {
+            Slave slave = slaves[i];
+            if (i > 0) sb.append(',');
+            sb.append("{\"id\":\"").append(slave.id).append("\",\"maxAmps\":").append(slave.maxAmps).append(",\"status\":").append(slave.status);
+            sb.append(",\"allocatedAmps\":").append(slave.allocatedAmps).append(",\"reportedSetAmps\":").append(slave.reportedSetAmps);
+            sb.append(",\"usedAmps\":").append(slave.usedAmps).append('}');
+        }
+        sb.append(']');
+        HeartbeatScheduler heartbeats = heartbeatScheduler;
+        if (heartbeats != null) {
+            sb.append(",\"heartbeat\":{\"lastJitterMs\":").append(heartbeats.lastJitterNanos / 1000000);
+            sb.append(",\"maxJitterMs\":").append(heartbeats.maxJitterNanos / 1000000).append(",\"writeFailures\":").append(heartbeats.writeFailures).append('}');
+        }
+        SmaMeterTable meters = smaMeters;
+        if (meters != null) {
+            long now = clock.nanoTime();
+            sb.append(",\"meters\":[");
+            SmaMeterTable.Meter[] list = meters.meters();
+            for (int i = 0; i < list.length; i++) {
+                SmaMeterTable.Meter meter = list[i];
+                if (i > 0) sb.append(',');
+                sb.append("{\"serial\":").append(meter.serial).append(",\"configured\":").append(meter.configured());
+                sb.append(",\"packetsPerSecond\":").append(meter.packetsPerSecond()).append(",\"ageSeconds\":").append((meter.packets == 0) ? "null" : Double.toString(meter.ageSeconds(now)));
+                if (meter.configured()) sb.append(",\"power\":").append(meter.powerDeciWatt[0] / 10.0);
+                sb.append('}');
+            }
+            sb.append(']');
+        }
+        PeerCoordinator coordinator = peers;
+        if (coordinator != null) {
+            sb.append(",\"peers\":{\"node\":\"").append(coordinator.node).append("\",\"shareAmps\":");
+            sb.append(Double.isNaN(coordinator.lastShareAmps) ? "null" : Double.toString(coordinator.lastShareAmps)).append(",\"others\":[");
+            List<PeerCoordinator.Peer> others = coordinator.peers();
+            for (int i = 0; i < others.size(); i++) {
+                PeerCoordinator.Peer peer = others.get(i);
+                if (i > 0) sb.append(',');
+                sb.append("{\"node\":\"").append(peer.node).append("\",\"setAmps\":").append(peer.setAmps);
+                sb.append(",\"usedAmps\":").append(peer.usedAmps).append(",\"demandAmps\":").append(peer.demandAmps).append('}');
+            }
+            sb.append("]}");
+        }
+        PeakBudget budget = peakBudget;
+        if (budget.hasSample()) {
+            double target = settings.peakTargetWatts;
+            sb.append(",\"quarterHour\":{\"start\":").append(budget.windowStart()).append(",\"energyWh\":").append(budget.energyWattHours());
+            sb.append(",\"averageWatts\":").append(budget.averageWatts()).append(",\"lastQuarterWatts\":").append(budget.lastQuarterWatts());
+            sb.append(",\"month\":\"").append(budget.month()).append("\",\"monthPeakWatts\":").append(budget.monthPeakWatts());
+            if (target > 0) {
+                sb.append(",\"targetWatts\":").append(budget.targetWatts(target));
+                sb.append(",\"allowedWatts\":").append(Math.min(budget.allowedWatts(timeMillis, target, settings.updateIntervalSec), maxPowerFromMains));
+            }
+            sb.append('}');
+        }
+        ChargeSessions charged = chargeSessions;
+        sb.append(",\"chargeSessions\":{\"sessions\":").append(charged.size()).append(",\"totalWattHours\":").append(charged.totalWattHours()).append(",\"running\":[");
+        List<ChargeSessions.Session> running = charged.runningSessions();
+        for (int i = 0; i < running.size(); i++) {
+            ChargeSessions.Session session = running.get(i);
+            if (i > 0) sb.append(',');
+            sb.append("{\"slave\":\"").append(session.slave).append("\",\"start\":").append(session.startMillis);
+            sb.append(",\"wattHours\":").append(session.wattHours()).append('}');
+        }
+        sb.append("]}");
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,32 @@
+package com.company;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class ControllerSnapshotTest {
+
+    @Test
+    public void renderingIsCachedPerSnapshotTest() {
+        Assert.assertEquals("Tesla Wall charger controller booting...", ControllerSnapshot.BOOTING.text());
+        TwcSlave slave = new TwcSlave("6388", "77", 32);
+        slave.allocatedAmps = 12;
+        slave.usedAmps = 11.5;
+        ControllerSnapshot first = ControllerSnapshot.of(ControllerSnapshot.BOOTING.withGridPower(1000, 5432.1), 2000, "7777", 10000.0, 12, 11, Arrays.asList(slave));
+        Assert.assertEquals(2, first.version);
+        Assert.assertEquals(5432.1, first.gridPower, 0);  // kept from the SMA side
+        String text = first.text();
+        Assert.assertTrue(text.contains("Slave  Id: 6388, charger is capable of 32A, set at 12A, using 11.5A"));
+        Assert.assertSame(text, first.text());
+        Assert.assertSame(first.json(), first.json());
+        slave.usedAmps = 3.0;  // the snapshot is a copy
+        Assert.assertSame(text, first.text());
+        Assert.assertEquals(11.5, first.slave(0).usedAmps, 0);
+        ControllerSnapshot second = first.withGridPower(3000, 100.0);
+        Assert.assertEquals(3, second.version);
+        Assert.assertTrue(second.json().contains("\"gridPower\":100.0"));
+        Assert.assertTrue(second.json().contains("\"masterId\":\"7777\""));
+        Assert.assertEquals(12, second.setAmps);
+    }
+}
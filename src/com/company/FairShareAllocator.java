@@ -0,0 +1,46 @@
+package com.company;
+
+import java.util.List;
+
+// Equal split of the available amps, a slave that can't use its share leaves the rest to the others
+// When there is not enough for every slave to get the minimum, the last ones in the list are paused
+public class FairShareAllocator implements AmpAllocator {
+
+    @Override
+    public int[] allocate(int totalAmps, List<TwcSlave> slaves) {
+        int n = slaves.size();
+        int[] amps = new int[n];
+        int[] caps = new int[n];
+        for (int i = 0; i < n; i++) caps[i] = AmpAllocator.capOf(slaves.get(i));
+        int charging = n;
+        while ((charging > 0) && (totalAmps / charging < Main.settings.minChargingAmps)) charging--;
+        // water filling: hand out equal shares, slaves that hit their cap drop out and free the rest
+        boolean[] full = new boolean[n];
+        int remaining = totalAmps;
+        int open = charging;
+        boolean changed = true;
+        while ((open > 0) && changed) {
+            changed = false;
+            int share = remaining / open;
+            for (int i = 0; i < charging; i++) {
+                if (!full[i] && (caps[i] <= share)) {
+                    amps[i] = caps[i];
+                    full[i] = true;
+                    remaining -= caps[i];
+                    open--;
+                    changed = true;
+                }
+            }
+        }
+        if (open > 0) {
+            int share = remaining / open;
+            int extra = remaining % open;  // leftover amps go 1 by 1 to the first slaves
+            for (int i = 0; i < charging; i++) {
+                if (!full[i]) {
+                    amps[i] = share + ((extra-- > 0) ? 1 : 0);
+                }
+            }
+        }
+        return amps;
+    }
+}
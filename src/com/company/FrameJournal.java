@@ -0,0 +1,154 @@
+package com.company;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Binary capture of all RS485 traffic (and SMA grid samples) in a memory-mapped, append-only file
+// Appending is a bounds check and a copy into the mapping, the OS writes the pages to disk in the background
+// File layout: header (magic, version, wall clock ms and System.nanoTime() at start), then records of
+// int payload length, long nanoTime, byte direction, payload
+// The mapping grows in chunks, on close the file is cut back to what was written, a length of 0 marks the end
+// An existing capture is kept: it is cut back after its last complete record and a run start record (the wall clock ms
+// as payload, the System.nanoTime() of the new run) goes before the records of this run, so a restart after an incident keeps them
+public class FrameJournal implements Closeable {
+
+    static final int MAGIC = 0x54574A31;  // "TWJ1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_HEADER_SIZE = 13;
+    static final int CHUNK_SIZE = 1024 * 1024;
+    static final byte RECEIVED = 'R';
+    static final byte TRANSMITTED = 'T';
+    static final byte GRID_SAMPLE = 'S';  // payload is the grid power in 0.1 W as int
+    static final byte RUN_START = 'H';    // payload is the wall clock ms as long, the time stamp the nanoTime of the new run
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long chunkStart = 0;
+    private final byte[] sample = new byte[8];
+    volatile long records = 0;
+
+    public FrameJournal(String fileName) throws IOException {
+        long end = validLength(fileName);
+        file = new RandomAccessFile(fileName, "rw");
+        file.setLength(end);
+        channel = file.getChannel();
+        chunkStart = end;
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, CHUNK_SIZE);
+        if (end == 0) {
+            mapped.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putLong(System.nanoTime()).putLong(0);
+        } else {
+            ByteBuffer.wrap(sample).putLong(System.currentTimeMillis());
+            append(RUN_START, System.nanoTime(), sample, 0, 8);
+            if (Main.logging) Main.logger.info("Frame capture " + fileName + ": appending after " + end + " bytes of earlier runs");
+        }
+    }
+
+    static long validLength(String fileName) throws IOException {
+        // the length up to the end of the last complete record, 0 for a new or empty file
+        File f = new File(fileName);
+        long length = f.length();
+        if (length < HEADER_SIZE) return 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 65536))) {
+            readHeader(in, fileName);
+            long end = HEADER_SIZE;
+            byte[] record = new byte[256];
+            while (end + 4 <= length) {
+                int recordLength = in.readInt();
+                if ((recordLength <= 0) || (end + RECORD_HEADER_SIZE + recordLength > length)) break;
+                if (RECORD_HEADER_SIZE - 4 + recordLength > record.length) record = new byte[RECORD_HEADER_SIZE - 4 + recordLength];
+                in.readFully(record, 0, RECORD_HEADER_SIZE - 4 + recordLength);
+                end += RECORD_HEADER_SIZE + recordLength;
+            }
+            return end;
+        }
+    }
+
+    public synchronized void append(byte direction, long nanos, byte[] payload, int offset, int length) {
+        // called from both the receive and the transmit thread
+        if (mapped == null) return;
+        try {
+            if (mapped.remaining() < RECORD_HEADER_SIZE + length + 4) {
+                chunkStart += mapped.position();
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, Math.max(CHUNK_SIZE, RECORD_HEADER_SIZE + length + 4));
+            }
+        } catch (IOException e) {
+            Main.logger.warning("Frame capture stopped, could not grow journal: " + e);
+            mapped = null;
+            return;
+        }
+        mapped.putInt(length).putLong(nanos).put(direction).put(payload, offset, length);
+        records++;
+    }
+
+    public synchronized void appendGridSample(long nanos, int deciWatt) {
+        sample[0] = (byte) (deciWatt >>> 24);
+        sample[1] = (byte) (deciWatt >>> 16);
+        sample[2] = (byte) (deciWatt >>> 8);
+        sample[3] = (byte) deciWatt;
+        append(GRID_SAMPLE, nanos, sample, 0, 4);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mapped != null) {
+            long end = chunkStart + mapped.position();
+            mapped.force();
+            mapped = null;
+            channel.truncate(end);
+        }
+        file.close();
+    }
+
+    public interface RecordListener {
+        void onRecord(byte direction, long nanos, byte[] payload, int length) throws InterruptedException;
+    }
+
+    public static long[] readStart(String fileName) throws IOException {
+        // returns the wall clock ms and the nanoTime at the start of the capture
+        try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+            return readHeader(in, fileName);
+        }
+    }
+
+    public static void read(String fileName, RecordListener listener) throws IOException, InterruptedException {
+        // calls the listener for every record in order, the payload array is re-used between calls
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 65536))) {
+            readHeader(in, fileName);
+            byte[] payload = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0) break;
+                long nanos = in.readLong();
+                byte direction = in.readByte();
+                if (length > payload.length) payload = new byte[length];
+                in.readFully(payload, 0, length);
+                listener.onRecord(direction, nanos, payload, length);
+            }
+        }
+    }
+
+    private static long[] readHeader(DataInputStream in, String fileName) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException(fileName + " is not a TWC frame capture");
+        if (in.readInt() != VERSION) throw new IOException(fileName + " has an unknown capture version");
+        long[] start = {in.readLong(), in.readLong()};
+        in.readLong();
+        return start;
+    }
+
+    static int gridSample(byte[] payload) {
+        return ByteBuffer.wrap(payload, 0, 4).getInt();
+    }
+
+    static long runStartMillis(byte[] payload) {
+        return ByteBuffer.wrap(payload, 0, 8).getLong();
+    }
+}
@@ -0,0 +1,68 @@
+package com.company;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.company.Main.byteArrayToHexString;
+import static com.company.Main.hexStringToByteArray;
+
+public class FrameJournalTest {
+
+    @Test
+    public void appendAndReadTest() throws IOException, InterruptedException {
+        File capture = File.createTempFile("twc", ".bin");
+        FrameJournal journal = new FrameJournal(capture.getPath());
+        byte[] rx = hexStringToByteArray("C0FDE26388950C800000000000000000EEC0FC");
+        byte[] tx = hexStringToByteArray("FFC0FBE0777763880903200000000000E5C0");
+        journal.append(FrameJournal.RECEIVED, 1000L, rx, 0, rx.length);
+        journal.append(FrameJournal.TRANSMITTED, 2000L, tx, 1, tx.length - 1);
+        journal.appendGridSample(3000L, -12345);
+        journal.close();
+        Assert.assertEquals(FrameJournal.HEADER_SIZE + 3 * FrameJournal.RECORD_HEADER_SIZE + rx.length + tx.length - 1 + 4, capture.length());
+        List<String> records = new ArrayList<>();
+        FrameJournal.read(capture.getPath(), (direction, nanos, payload, length) -> {
+            if (direction == FrameJournal.GRID_SAMPLE) records.add(nanos + " S " + FrameJournal.gridSample(payload));
+            else records.add(nanos + " " + (char) direction + " " + byteArrayToHexString(payload, 0, length));
+        });
+        Assert.assertEquals(3, records.size());
+        Assert.assertEquals("1000 R C0FDE26388950C800000000000000000EEC0FC", records.get(0));
+        Assert.assertEquals("2000 T C0FBE0777763880903200000000000E5C0", records.get(1));
+        Assert.assertEquals("3000 S -12345", records.get(2));
+        Assert.assertTrue(FrameJournal.readStart(capture.getPath())[0] > 0);
+    }
+
+    @Test
+    public void restartTest() throws IOException, InterruptedException {
+        // a second run appends after the first, a record cut off by a crash is dropped
+        File capture = File.createTempFile("twc", ".bin");
+        byte[] rx = hexStringToByteArray("C0FDE26388950C800000000000000000EEC0FC");
+        FrameJournal first = new FrameJournal(capture.getPath());
+        first.append(FrameJournal.RECEIVED, 1000L, rx, 0, rx.length);
+        first.close();
+        long firstLength = capture.length();
+        try (FileOutputStream out = new FileOutputStream(capture, true)) {
+            out.write(new byte[]{0, 0, 0, 40, 0, 0, 0, 0, 0, 0, 0, 1, 'R', (byte) 0xC0});
+        }
+        Assert.assertEquals(firstLength, FrameJournal.validLength(capture.getPath()));
+        FrameJournal second = new FrameJournal(capture.getPath());
+        second.appendGridSample(5000L, 4321);
+        second.close();
+        Assert.assertEquals(firstLength + 2 * FrameJournal.RECORD_HEADER_SIZE + 8 + 4, capture.length());
+        List<String> records = new ArrayList<>();
+        FrameJournal.read(capture.getPath(), (direction, nanos, payload, length) -> {
+            if (direction == FrameJournal.GRID_SAMPLE) records.add(nanos + " S " + FrameJournal.gridSample(payload));
+            else if (direction == FrameJournal.RUN_START) records.add("H " + (FrameJournal.runStartMillis(payload) > 0));
+            else records.add(nanos + " " + (char) direction + " " + byteArrayToHexString(payload, 0, length));
+        });
+        Assert.assertEquals(3, records.size());
+        Assert.assertEquals("1000 R C0FDE26388950C800000000000000000EEC0FC", records.get(0));
+        Assert.assertEquals("H true", records.get(1));
+        Assert.assertEquals("5000 S 4321", records.get(2));
+    }
+}
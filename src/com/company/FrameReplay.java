@@ -0,0 +1,107 @@
+package com.company;
+
+import java.util.logging.Level;
+
+import static com.company.Main.*;
+
+// Plays a frame capture made with capture_file back through handleMessage and respondToBlock
+// Usage: java -cp TWCtestv3.jar com.company.FrameReplay capture.bin [--fast] [--quiet] [--max-power 10000] [--controller step|pi] [--interval 60]
+// Without --fast the frames come in at their original pace, with --fast as quick as possible
+// Either way the control logic sees the captured time, so the 60 second update interval behaves as it did in the field
+// A capture with several runs (the controller was restarted) is played as one, the next run follows right after the last record of the one before
+public class FrameReplay {
+
+    static class ReplayClock implements TwcClock {
+
+        private volatile long startMillis;
+        private volatile long startNanos;
+        private volatile long nanos;
+
+        ReplayClock(long startMillis, long startNanos) {
+            this.startMillis = startMillis;
+            this.startNanos = startNanos;
+            this.nanos = startNanos;
+        }
+
+        void restart(long millis) {
+            // a new run in the capture, the wall clock jumps to its start while nanoTime goes on
+            startMillis = millis;
+            startNanos = nanos;
+        }
+
+        @Override
+        public long nanoTime() {
+            return nanos;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return startMillis + (nanos - startNanos) / 1000000L;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: FrameReplay <capture file> [--fast] [--quiet] [--max-power <Watt>] [--controller step|pi] [--interval <sec>]");
+            return;
+        }
+        String fileName = args[0];
+        boolean fast = false;
+        for (int i = 1; i < args.length; i++) {
+            if ("--fast".equals(args[i])) fast = true;
+            else if ("--quiet".equals(args[i])) setLogging(false);
+            else if ("--max-power".equals(args[i]) && (i + 1 < args.length)) settings = settings.withMaxPowerFromMains(Double.parseDouble(args[++i]));
+            else if ("--controller".equals(args[i]) && (i + 1 < args.length)) chargeController = ChargeController.forName(args[++i]);
+            else if ("--interval".equals(args[i]) && (i + 1 < args.length)) settings = settings.withUpdateIntervalSec(Integer.parseInt(args[++i]));
+        }
+        MASTER_ID = "7777";
+        ampAllocator = new FairShareAllocator();
+        long[] start = FrameJournal.readStart(fileName);
+        ReplayClock replayClock = new ReplayClock(start[0], start[1]);
+        clock = replayClock;
+        startTime = start[1];
+        long[] counts = new long[5];  // received, invalid, transmitted, grid samples, runs
+        long[] run = {start[1], start[1]};  // the start of the run in its own time stamps and on the replay clock
+        counts[4] = 1;
+        final boolean realTime = !fast;
+        final long wallStart = System.nanoTime();
+        FrameJournal.read(fileName, (direction, capturedNanos, payload, length) -> {
+            if (direction == FrameJournal.RUN_START) {
+                // the time stamps of the next run have another origin, they go on from the replay clock as it is
+                counts[4]++;
+                run[0] = capturedNanos;
+                run[1] = replayClock.nanos;
+                replayClock.restart(FrameJournal.runStartMillis(payload));
+                return;
+            }
+            long nanos = run[1] + (capturedNanos - run[0]);
+            if (realTime) {
+                long wait = (nanos - start[1]) - (System.nanoTime() - wallStart);
+                if (wait > 0) Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            }
+            replayClock.nanos = nanos;
+            if (direction == FrameJournal.RECEIVED) {
+                if (TwcCodec.isValidFrame(payload, 0, length)) {
+                    counts[0]++;
+                    message.decode(payload, 0, length, nanos, null);
+                    message.millis = clock.currentTimeMillis();
+                    handleMessage(message);
+                    respondToBlock();
+                } else {
+                    counts[1]++;
+                }
+            } else if (direction == FrameJournal.TRANSMITTED) {
+                counts[2]++;
+            } else if (direction == FrameJournal.GRID_SAMPLE) {
+                counts[3]++;
+                currentPowerConsumption = FrameJournal.gridSample(payload) / 10.0;
+                chargeController.onGridSample(nanos, currentPowerConsumption);
+                peakBudget.onGridSample(clock.currentTimeMillis(), currentPowerConsumption);
+            }
+        });
+        long elapsedMs = (System.nanoTime() - wallStart) / 1000000L;
+        long capturedMs = (replayClock.nanos - start[1]) / 1000000L;
+        logger.log(Level.WARNING, "Replayed {0} ms of capture in {1} ms: {2} runs, {3} frames received ({4} invalid), {5} sent, {6} grid samples, charging current ended at {7} A",
+                new Object[]{capturedMs, elapsedMs, counts[4], counts[0], counts[1], counts[2], counts[3], currentTWCamps});
+    }
+}
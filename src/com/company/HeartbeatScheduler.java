@@ -0,0 +1,107 @@
+package com.company;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+
+import static com.company.Main.*;
+
+// Transmit side of the RS485 buses
+// A dedicated thread sends a master heartbeat at fixed deadlines on the monotonic clock, independent of what comes in
+// Slots go round robin over the slaves of a bus, the period is split so every slave still gets one heartbeat per period
+// Every bus has its own deadlines, the thread sends on whichever bus is due first, so one thread serves all buses
+// A new setpoint is not sent inline but queued on the slave, its next slot sends it with command 9, all other slots send command 0
+public class HeartbeatScheduler implements Runnable {
+
+    private final TwcTransport[] buses;
+    private final SlaveTable slaves;
+    private final long periodNanos;
+    private final int[] next;  // per bus, round robin position in the slave table
+    private final long[] deadlines;  // per bus
+    volatile long ticks = 0;
+    volatile long lastJitterNanos = 0;  // how late the last heartbeat went out compared to its deadline
+    volatile long maxJitterNanos = 0;
+    volatile long missedSlots = 0;
+    volatile long writeFailures = 0;
+    volatile String lastWriteError = "";
+    final LatencyHistogram jitterHistogram = metrics.histogram("twc_heartbeat_jitter_seconds", "How late heartbeats go out compared to their deadline");
+
+    public HeartbeatScheduler(TwcTransport[] buses, SlaveTable slaves, long periodMs) {
+        this.buses = buses;
+        this.slaves = slaves;
+        this.periodNanos = periodMs * 1000000L;
+        this.next = new int[buses.length];
+        this.deadlines = new long[buses.length];
+    }
+
+    @Override
+    public void run() {
+        long start = clock.nanoTime();
+        for (int bus = 0; bus < buses.length; bus++) deadlines[bus] = start;
+        while (!programStopCalled && !Thread.currentThread().isInterrupted()) {
+            int bus = 0;
+            for (int i = 1; i < buses.length; i++) {
+                if (deadlines[i] - deadlines[bus] < 0) bus = i;
+            }
+            long deadline = deadlines[bus];
+            long now = clock.nanoTime();
+            while (now - deadline < 0) {
+                clock.parkNanos(deadline - now);
+                now = clock.nanoTime();
+            }
+            long jitter = now - deadline;
+            lastJitterNanos = jitter;
+            if (jitter > maxJitterNanos) maxJitterNanos = jitter;
+            jitterHistogram.record(jitter);
+            ticks++;
+            List<TwcSlave> list = slaves.list();
+            int count = 0;
+            TwcSlave slave = null;
+            int from = next[bus];
+            for (int i = 0; i < list.size(); i++) {
+                // the next slave of this bus from the round robin position on
+                int index = (from + i) % list.size();
+                if (busOf(list.get(index)) != buses[bus]) continue;
+                count++;
+                if (slave == null) {
+                    slave = list.get(index);
+                    next[bus] = index + 1;
+                }
+            }
+            if (slave != null) sendHeartbeat(buses[bus], slave);
+            long slotNanos = periodNanos / Math.max(1, count);
+            deadline += slotNanos;
+            if (clock.nanoTime() - deadline > slotNanos) {
+                // we fell behind by more than a full slot, skip ahead instead of sending a burst
+                long behind = (clock.nanoTime() - deadline) / slotNanos;
+                missedSlots += behind;
+                deadline += behind * slotNanos;
+            }
+            deadlines[bus] = deadline;
+        }
+    }
+
+    private TwcTransport busOf(TwcSlave slave) {
+        TwcTransport bus = slave.bus;
+        return (bus == null) ? buses[0] : bus;
+    }
+
+    private void sendHeartbeat(TwcTransport port, TwcSlave slave) {
+        int setpoint = slave.takeSetpoint();
+        String block;
+        if (setpoint != TwcSlave.NO_SETPOINT) {
+            block = buildBlock(assembleMasterHeartbeat(MASTER_ID, slave.id, 9, setpoint, slave.maxAmps));
+        } else {
+            block = buildBlock(assembleMasterHeartbeat(MASTER_ID, slave.id, 0, 0, slave.maxAmps)); // send nochange command 0
+        }
+        try {
+            sendBlock(port, block);
+            if (logging) logger.log(Level.INFO, "Sending block {0}", block);
+        } catch (IOException e) {
+            writeFailures++;
+            lastWriteError = e.getMessage();
+            if (setpoint != TwcSlave.NO_SETPOINT) slave.restoreSetpoint(setpoint);  // retry in the next slot
+            logger.warning("Sending block " + block + " failed (" + writeFailures + " failures so far): " + e.getMessage());
+        }
+    }
+}
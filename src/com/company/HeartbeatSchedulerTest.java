@@ -0,0 +1,94 @@
+package com.company;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class HeartbeatSchedulerTest {
+
+    // a clock that is only moved by the scheduler waiting on it: every slot comes at its deadline, no matter how busy the machine is
+    // the wait that reaches endNanos interrupts the scheduler thread, which then sends the slot that was due and stops
+    static class SteppingClock implements TwcClock {
+        final long endNanos;
+        long nanos = 0;
+
+        SteppingClock(long endNanos) {
+            this.endNanos = endNanos;
+        }
+
+        @Override
+        public long nanoTime() {
+            return nanos;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return nanos / 1000000L;
+        }
+
+        @Override
+        public void parkNanos(long wait) {
+            nanos += wait;
+            if (nanos >= endNanos) Thread.currentThread().interrupt();
+        }
+    }
+
+    private TwcTransport[] buses = new TwcTransport[0];
+
+    @After
+    public void cleanUp() {
+        Thread.interrupted();
+        for (TwcTransport bus : buses) Main.lastSendNanos.remove(bus);
+        Main.clock = TwcClock.SYSTEM;
+        Main.setLogging(true);
+    }
+
+    @Test
+    public void twoBusesTest() throws Exception {
+        // one transmit thread, 2 slaves on the first bus and 1 on the second: every slave gets one heartbeat per period on its own bus
+        Main.setLogging(false);
+        Main.MASTER_ID = "7777";
+        MemoryBus first = new MemoryBus();
+        MemoryBus second = new MemoryBus();
+        MemoryBus.Endpoint firstBus = first.attach("master 1");
+        MemoryBus.Endpoint secondBus = second.attach("master 2");
+        MemoryBus.Endpoint firstListener = first.attach("listener 1");
+        MemoryBus.Endpoint secondListener = second.attach("listener 2");
+        SlaveTable slaves = new SlaveTable();
+        slaves.register("1A01", "77", 32).bus = firstBus;
+        slaves.register("1A02", "77", 32).bus = secondBus;
+        slaves.register("1A03", "77", 32);  // not heard yet, the first bus
+        buses = new TwcTransport[]{firstBus, secondBus};
+        HeartbeatScheduler scheduler = new HeartbeatScheduler(buses, slaves, 100);
+        // a second of 100 ms periods: slots every 50 ms on the first bus, every 100 ms on the second, and the slot at 1000 ms
+        Main.clock = new SteppingClock(1000000000L);
+        scheduler.run();
+        Assert.assertTrue(Thread.interrupted());
+        Map<String, Integer> onFirst = heartbeats(firstListener);
+        Map<String, Integer> onSecond = heartbeats(secondListener);
+        Assert.assertNull(onFirst.get("1A02"));
+        Assert.assertEquals(11, (int) onFirst.get("1A01"));
+        Assert.assertEquals(10, (int) onFirst.get("1A03"));
+        Assert.assertEquals(1, onSecond.size());
+        Assert.assertEquals(10, (int) onSecond.get("1A02"));
+        Assert.assertEquals(31, scheduler.ticks);
+        Assert.assertEquals(0, scheduler.maxJitterNanos);
+        Assert.assertEquals(0, scheduler.missedSlots);
+    }
+
+    private static Map<String, Integer> heartbeats(MemoryBus.Endpoint endpoint) {
+        // counts the master heartbeats per slave id that are waiting on the endpoint
+        Map<String, Integer> counts = new HashMap<>();
+        TwcFrameParser parser = new TwcFrameParser((frame, length, timestampNanos) -> {
+            String block = Main.byteArrayToHexString(frame, 0, length);
+            if (block.startsWith("C0FBE0")) counts.merge(block.substring(10, 14), 1, Integer::sum);
+        }, false);
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = endpoint.read(buffer, 0, buffer.length)) > 0) parser.feed(buffer, 0, n, 0);
+        return counts;
+    }
+}
@@ -0,0 +1,388 @@
+package com.company;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.company.Main.logger;
+import static com.company.Main.programStopCalled;
+
+// Small non-blocking HTTP/1.1 server, one selector thread serves all clients
+// A slow or stalled client only holds up itself: requests are read and answers written as far as each socket allows
+// Connections stay open (HTTP/1.1, or HTTP/1.0 with Connection: keep-alive) until IDLE_TIMEOUT_MS without a request
+// A handler can answer with a Server-Sent Events stream, publish() then pushes every event to all those subscribers,
+// encoded once and shared by all of them, a subscriber that falls more than MAX_PENDING_BYTES behind is disconnected
+// A client that pipelines requests without reading the answers is not read from while more than MAX_PENDING_BYTES wait for it,
+// so TCP holds it back instead of its answers piling up here
+public class HttpServer implements Runnable {
+
+    public interface Handler {
+        Response handle(Request request);
+    }
+
+    public static final class Request {
+        final String method;
+        final String path;
+        final Map<String, String> headers;  // names in lower case
+        final String body;
+
+        Request(String method, String path, Map<String, String> headers, String body) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    public static final class Response {
+        final int status;
+        final String reason;
+        final String contentType;
+        final byte[] body;
+        final boolean stream;
+
+        private Response(int status, String reason, String contentType, byte[] body, boolean stream) {
+            this.status = status;
+            this.reason = reason;
+            this.contentType = contentType;
+            this.body = body;
+            this.stream = stream;
+        }
+
+        public static Response ok(String contentType, String body) {
+            return new Response(200, "OK", contentType, body.getBytes(StandardCharsets.UTF_8), false);
+        }
+
+        public static Response error(int status, String reason) {
+            return error(status, reason, status + " " + reason);
+        }
+
+        public static Response error(int status, String reason, String message) {
+            return new Response(status, reason, "text/plain", message.getBytes(StandardCharsets.UTF_8), false);
+        }
+
+        public static Response stream() {
+            // the connection becomes an event stream, it gets everything given to publish from now on
+            return new Response(200, "OK", "text/event-stream", new byte[0], true);
+        }
+    }
+
+    static final int MAX_REQUEST_BYTES = 16384;
+    static final long IDLE_TIMEOUT_MS = 30000;
+    static final long STREAM_KEEPALIVE_MS = 15000;  // comment line to subscribers, so proxies don't close a quiet stream
+    static final int MAX_PENDING_BYTES = 256 * 1024;
+
+    private final int port;
+    private final Handler handler;
+    private final ConcurrentLinkedQueue<ByteBuffer> events = new ConcurrentLinkedQueue<>();
+    private final List<Connection> subscribers = new ArrayList<>();  // only touched by the selector thread
+    private volatile int subscriberCount = 0;
+    private volatile Selector selector;
+    volatile int localPort = -1;  // the port actually bound, for port 0
+    volatile long connectionsAccepted = 0;
+    volatile long requestsServed = 0;
+    final AtomicLong eventsPublished = new AtomicLong();  // publish is called from several threads
+    volatile long slowSubscribersDropped = 0;
+
+    public HttpServer(int port, Handler handler) {
+        this.port = port;
+        this.handler = handler;
+    }
+
+    public boolean hasSubscribers() {
+        // lets publishers skip building an event nobody would get
+        return subscriberCount > 0;
+    }
+
+    public int subscribers() {
+        return subscriberCount;
+    }
+
+    public void publish(String event, String data) {
+        // can be called from any thread, the selector thread does the sending
+        if (subscriberCount == 0) return;
+        events.offer(ByteBuffer.wrap(("event: " + event + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8)));
+        eventsPublished.incrementAndGet();
+        Selector s = selector;
+        if (s != null) s.wakeup();
+    }
+
+    public void wakeup() {
+        // lets the selector thread see programStopCalled right away instead of at the end of its select timeout
+        Selector s = selector;
+        if (s != null) s.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try (Selector sel = Selector.open(); ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.socket().setReuseAddress(true);
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(sel, SelectionKey.OP_ACCEPT);
+            localPort = server.socket().getLocalPort();
+            selector = sel;
+            long lastSweep = System.currentTimeMillis();
+            while (!programStopCalled) {
+                sel.select(1000);
+                Iterator<SelectionKey> keys = sel.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept(server, sel);
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) connection.read();
+                        if (key.isValid() && key.isWritable()) connection.write();
+                    } catch (IOException e) {
+                        connection.close();  // client went away
+                    }
+                }
+                deliverEvents();
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= 1000) {
+                    sweep(now);
+                    lastSweep = now;
+                }
+            }
+            for (SelectionKey key : sel.keys()) {
+                if (key.attachment() instanceof Connection) ((Connection) key.attachment()).close();
+            }
+        } catch (IOException e) {
+            logger.warning("Could not start http server: " + e);
+        } finally {
+            selector = null;
+        }
+    }
+
+    private void accept(ServerSocketChannel server, Selector sel) {
+        try {
+            SocketChannel channel = server.accept();
+            if (channel == null) return;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(sel, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+            connectionsAccepted++;
+        } catch (IOException e) {
+            logger.warning("Http accept failed: " + e);
+        }
+    }
+
+    private void deliverEvents() {
+        ByteBuffer event;
+        while ((event = events.poll()) != null) {
+            for (int i = subscribers.size() - 1; i >= 0; i--) {
+                Connection subscriber = subscribers.get(i);
+                if (subscriber.pendingBytes + event.remaining() > MAX_PENDING_BYTES) {
+                    slowSubscribersDropped++;
+                    subscriber.close();
+                } else {
+                    subscriber.send(event.duplicate());
+                }
+            }
+        }
+    }
+
+    private void sweep(long now) {
+        Selector sel = selector;
+        for (SelectionKey key : sel.keys()) {
+            if (!(key.attachment() instanceof Connection)) continue;
+            Connection connection = (Connection) key.attachment();
+            if (connection.streaming) {
+                if (now - connection.lastActivityMs >= STREAM_KEEPALIVE_MS) connection.send(ByteBuffer.wrap(": keepalive\n\n".getBytes(StandardCharsets.UTF_8)));
+            } else if (now - connection.lastActivityMs >= IDLE_TIMEOUT_MS) {
+                connection.close();
+            }
+        }
+    }
+
+    private static int headerEnd(byte[] buffer, int length) {
+        for (int i = 3; i < length; i++) {
+            if ((buffer[i] == '\n') && (buffer[i - 1] == '\r') && (buffer[i - 2] == '\n') && (buffer[i - 3] == '\r')) return i + 1;
+        }
+        return -1;
+    }
+
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(1024);  // grows up to MAX_REQUEST_BYTES
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        int pendingBytes = 0;
+        boolean streaming = false;
+        private boolean closeAfterWrite = false;
+        private boolean closed = false;
+        private boolean handling = false;
+        long lastActivityMs = System.currentTimeMillis();
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException {
+            if (!streaming && (pendingBytes > MAX_PENDING_BYTES)) return;  // first the answers it already has
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= MAX_REQUEST_BYTES) {
+                    reject(431, "Request Header Fields Too Large");
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_REQUEST_BYTES));
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+            int count = channel.read(in);
+            if (count < 0) {
+                close();
+                return;
+            }
+            lastActivityMs = System.currentTimeMillis();
+            // everything a subscriber sends after the stream started is ignored
+            if (streaming) in.clear();
+            else handleRequests();
+        }
+
+        private void handleRequests() {
+            // more than one request can be in the buffer when the client pipelines, the rest waits while the answers pile up
+            if (handling) return;  // called again from write, the loop below goes on anyway
+            handling = true;
+            try {
+                while (!closeAfterWrite && !streaming && !closed && (pendingBytes <= MAX_PENDING_BYTES)) {
+                    byte[] buffer = in.array();
+                    int length = in.position();
+                    int end = headerEnd(buffer, length);
+                    if (end < 0) return;
+                    String[] lines = new String(buffer, 0, end - 4, StandardCharsets.ISO_8859_1).split("\r\n");
+                    Map<String, String> headers = new HashMap<>();
+                    for (int i = 1; i < lines.length; i++) {
+                        int colon = lines[i].indexOf(':');
+                        if (colon > 0) headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+                    }
+                    int bodyLength;
+                    try {
+                        bodyLength = Integer.parseInt(headers.getOrDefault("content-length", "0"));
+                    } catch (NumberFormatException e) {
+                        bodyLength = -1;
+                    }
+                    if ((bodyLength < 0) || (end + bodyLength > MAX_REQUEST_BYTES)) {
+                        reject(413, "Payload Too Large");
+                        return;
+                    }
+                    if (length < end + bodyLength) return;  // wait for the rest of the body
+                    String body = new String(buffer, end, bodyLength, StandardCharsets.UTF_8);
+                    System.arraycopy(buffer, end + bodyLength, buffer, 0, length - end - bodyLength);
+                    in.position(length - end - bodyLength);
+                    respond(lines[0], headers, body);
+                }
+            } finally {
+                handling = false;
+            }
+        }
+
+        private void respond(String requestLine, Map<String, String> headers, String body) {
+            String[] parts = requestLine.split(" ");
+            if ((parts.length != 3) || !parts[2].startsWith("HTTP/1.")) {
+                reject(400, "Bad Request");
+                return;
+            }
+            String connectionHeader = headers.getOrDefault("connection", "");
+            boolean keepAlive = "HTTP/1.1".equals(parts[2]) ? !"close".equalsIgnoreCase(connectionHeader) : "keep-alive".equalsIgnoreCase(connectionHeader);
+            Response response;
+            try {
+                response = handler.handle(new Request(parts[0], parts[1], headers, body));
+            } catch (RuntimeException e) {
+                logger.warning("Http error handling request " + requestLine + ": " + e);
+                response = Response.error(500, "Internal Server Error");
+            }
+            requestsServed++;
+            if (response.stream) {
+                send(ByteBuffer.wrap(("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\nCache-Control: no-cache\r\nConnection: keep-alive\r\n\r\nretry: 2000\n\n")
+                        .getBytes(StandardCharsets.ISO_8859_1)));
+                streaming = true;
+                subscribers.add(this);
+                subscriberCount = subscribers.size();
+                return;
+            }
+            String head = "HTTP/1.1 " + response.status + " " + response.reason + "\r\n" +
+                    "Content-Type: " + response.contentType + "; charset=utf-8\r\n" +
+                    "Content-Length: " + response.body.length + "\r\n" +
+                    "Date: " + DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)) + "\r\n" +
+                    "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+            if (!keepAlive) closeAfterWrite = true;
+            send(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)), ByteBuffer.wrap(response.body));
+        }
+
+        private void reject(int status, String reason) {
+            closeAfterWrite = true;
+            byte[] body = (status + " " + reason).getBytes(StandardCharsets.ISO_8859_1);
+            send(ByteBuffer.wrap(("HTTP/1.1 " + status + " " + reason + "\r\nContent-Type: text/plain\r\nContent-Length: " + body.length + "\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1)), ByteBuffer.wrap(body));
+        }
+
+        void send(ByteBuffer... buffers) {
+            if (closed) return;
+            for (ByteBuffer buffer : buffers) {
+                out.add(buffer);
+                pendingBytes += buffer.remaining();
+            }
+            lastActivityMs = System.currentTimeMillis();
+            try {
+                write();  // most answers fit in the socket buffer right away, no need to wait for the selector
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void write() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer buffer = out.peek();
+                int before = buffer.remaining();
+                channel.write(buffer);
+                pendingBytes -= before - buffer.remaining();
+                if (buffer.hasRemaining()) break;
+                out.poll();
+            }
+            if (out.isEmpty() && closeAfterWrite) {
+                close();
+                return;
+            }
+            if (closed) return;
+            boolean reading = streaming || (pendingBytes <= MAX_PENDING_BYTES);
+            key.interestOps((reading ? SelectionKey.OP_READ : 0) | (out.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+            if (reading && !streaming && (in.position() > 0)) handleRequests();  // the requests that waited for the client to catch up
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            if (streaming) {
+                subscribers.remove(this);
+                subscriberCount = subscribers.size();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+        }
+    }
+}
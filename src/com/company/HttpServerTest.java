@@ -0,0 +1,107 @@
+package com.company;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class HttpServerTest {
+
+    static final char[] BIG = new char[1024 * 1024];
+
+    static {
+        Arrays.fill(BIG, 'x');
+    }
+
+    private HttpServer server;
+    private Thread thread;
+
+    @Before
+    public void start() throws InterruptedException {
+        Main.programStopCalled = false;
+        server = new HttpServer(0, request -> {
+            if (request.path.equals("/stream")) return HttpServer.Response.stream();
+            if (request.path.equals("/big")) return HttpServer.Response.ok("text/plain", new String(BIG));
+            return HttpServer.Response.ok("text/plain", request.method + " " + request.path + " " + request.body);
+        });
+        thread = new Thread(server, "http-test");
+        thread.start();
+        while (server.localPort < 0) Thread.sleep(5);
+    }
+
+    @After
+    public void stop() throws InterruptedException {
+        Main.programStopCalled = true;
+        thread.join(5000);
+        Main.programStopCalled = false;
+    }
+
+    private static String readResponse(InputStream in) throws IOException {
+        // status line and headers, then Content-Length bytes of body
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) head.append((char) in.read());
+        int length = 0;
+        for (String line : head.toString().split("\r\n")) {
+            if (line.startsWith("Content-Length: ")) length = Integer.parseInt(line.substring(16));
+        }
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) body[i] = (byte) in.read();
+        return head.toString().split("\r\n")[0] + "|" + new String(body, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void keepAliveAndPipeliningTest() throws IOException {
+        try (Socket socket = new Socket("localhost", server.localPort)) {
+            OutputStream out = socket.getOutputStream();
+            // two requests in one write, the second with a body
+            out.write(("GET /a HTTP/1.1\r\nHost: x\r\n\r\nPOST /b HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            Assert.assertEquals("HTTP/1.1 200 OK|GET /a ", readResponse(in));
+            Assert.assertEquals("HTTP/1.1 200 OK|POST /b hello", readResponse(in));
+            out.write("GET /c HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));  // 1.0 without keep-alive closes
+            Assert.assertEquals("HTTP/1.1 200 OK|GET /c ", readResponse(in));
+            Assert.assertEquals(-1, in.read());
+        }
+        Assert.assertEquals(3, server.requestsServed);
+    }
+
+    @Test
+    public void pipeliningWithoutReadingTest() throws IOException, InterruptedException {
+        // 20 requests for a MB each in one go: only a few answers are made until the client reads, then all of them come
+        try (Socket socket = new Socket("localhost", server.localPort)) {
+            StringBuilder requests = new StringBuilder();
+            for (int i = 0; i < 20; i++) requests.append("GET /big HTTP/1.1\r\n\r\n");
+            socket.getOutputStream().write(requests.toString().getBytes(StandardCharsets.ISO_8859_1));
+            Thread.sleep(500);
+            Assert.assertTrue(server.requestsServed + " answers made", server.requestsServed < 20);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            for (int i = 0; i < 20; i++) Assert.assertEquals(BIG.length + 16, readResponse(in).length());
+        }
+        Assert.assertEquals(20, server.requestsServed);
+    }
+
+    @Test
+    public void streamTest() throws IOException, InterruptedException {
+        try (Socket first = new Socket("localhost", server.localPort); Socket second = new Socket("localhost", server.localPort)) {
+            first.getOutputStream().write("GET /stream HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            second.getOutputStream().write("GET /stream HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            while (server.subscribers() < 2) Thread.sleep(5);
+            server.publish("sma", "{\"power\":1}");
+            for (Socket socket : new Socket[]{first, second}) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                Assert.assertEquals("HTTP/1.1 200 OK", in.readLine());
+                String line;
+                while (!(line = in.readLine()).startsWith("event:")) Assert.assertNotNull(line);
+                Assert.assertEquals("event: sma", line);
+                Assert.assertEquals("data: {\"power\":1}", in.readLine());
+            }
+        }
+        while (server.subscribers() > 0) Thread.sleep(5);  // closed subscribers are removed
+    }
+}
@@ -0,0 +1,81 @@
+package com.company;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Latency histogram in the style of HdrHistogram: buckets get wider with the value, 8 per power of two,
+// so every value is kept to within 12.5% from 1 microsecond up to 2^32 microseconds, about 71 minutes, in 240 buckets
+// Recording is a few atomic increments, no locks and no allocation, so it can sit on the serial and SMA paths
+// Exported to Prometheus as a histogram with fixed bounds in seconds, the count up to a bound includes the whole bucket
+// the bound falls in, so it has every value up to the bound and may have values up to 12.5% above it
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = SUB_BUCKETS * 30;
+    static final double[] EXPORT_BOUNDS_SECONDS = {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucket(nanos / 1000));
+        count.incrementAndGet();
+        sumNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get())) {
+            if (maxNanos.compareAndSet(max, nanos)) break;
+        }
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long sumNanos() {
+        return sumNanos.get();
+    }
+
+    public long maxNanos() {
+        return maxNanos.get();
+    }
+
+    public long percentileNanos(double percentile) {
+        // upper edge of the bucket the percentile falls in, 0 when empty
+        long total = count.get();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperMicros(i) * 1000, maxNanos.get());
+        }
+        return maxNanos.get();
+    }
+
+    public long countUpTo(double seconds) {
+        // up to and including the bucket of the bound, so a value at the bound itself is counted
+        int last = bucket(Math.round(seconds * 1e6));
+        long total = 0;
+        for (int i = 0; i <= last; i++) total += counts.get(i);
+        return total;
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);  // at least SUB_BUCKET_BITS here
+        int sub = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub);
+    }
+
+    static long upperMicros(int bucket) {
+        // first value of the next bucket
+        if (bucket < SUB_BUCKETS) return bucket + 1;
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub + 1) << (magnitude - SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,60 @@
+package com.company;
+
+import java.util.Random;
+import java.util.TimeZone;
+
+// House load for the simulated SMA meter, without the chargers, in W per phase (0 to 2) at a wall clock time
+// Negative values are injection (solar)
+public interface LoadProfile {
+
+    double phaseWatts(long timeMs, int phase);
+
+    static LoadProfile forName(String name) {
+        // constant:<W>, daily or solar
+        if (name.startsWith("constant:")) {
+            double watts = Double.parseDouble(name.substring("constant:".length()));
+            return (timeMs, phase) -> watts / 3.0;
+        }
+        if ("solar".equals(name)) {
+            LoadProfile daily = new DailyProfile(1);
+            return (timeMs, phase) -> {
+                double hour = hourOfDay(timeMs);
+                double pv = ((hour > 7) && (hour < 19)) ? 5000.0 * Math.sin(Math.PI * (hour - 7) / 12) : 0.0;
+                return daily.phaseWatts(timeMs, phase) - pv / 3.0;
+            };
+        }
+        return new DailyProfile(1);
+    }
+
+    static double hourOfDay(long timeMs) {
+        long local = timeMs + TimeZone.getDefault().getOffset(timeMs);
+        return Math.floorMod(local, 86400000L) / 3600000.0;
+    }
+
+    // Unbalanced house: base load, morning and evening peaks, and appliances (oven, dryer) that switch on
+    // in random 20 minute blocks on a random phase, random but the same every time for the same time
+    class DailyProfile implements LoadProfile {
+
+        static final double[] PHASE_SHARE = {0.5, 0.3, 0.2};
+        private final long seed;
+
+        DailyProfile(long seed) {
+            this.seed = seed;
+        }
+
+        @Override
+        public double phaseWatts(long timeMs, int phase) {
+            double hour = hourOfDay(timeMs);
+            double watts = 300.0;
+            if ((hour >= 7) && (hour < 8)) watts += 1500.0;
+            if ((hour >= 17) && (hour < 21)) watts += 2500.0;
+            watts *= PHASE_SHARE[phase];
+            Random block = new Random(seed ^ (timeMs / 1200000L));
+            boolean appliance = block.nextDouble() < (((hour >= 11) && (hour < 21)) ? 0.3 : 0.05);
+            int appliancePhase = block.nextInt(3);
+            double applianceWatts = 2000.0 + block.nextInt(1500);
+            if (appliance && (appliancePhase == phase)) watts += applianceWatts;
+            return watts;
+        }
+    }
+}
@@ -1,75 +1,204 @@
 package com.company;
 
-import com.fazecast.jSerialComm.SerialPort;
-
 import java.io.*;
 import java.math.BigDecimal;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.logging.*;
 
 public class Main {
 
     // RS485 settings
-    static String RS485_PORT; // raspberry Pi zero W
+    static String RS485_PORT; // raspberry Pi zero W, or a comma separated list of ports and tcp://host:port gateways
+    static volatile TwcTransport[] buses = new TwcTransport[0]; // the RS485 buses runController drives
     // General system defaults
-    static double MAX_POWER_FROM_MAINS;  // Maximum power you want pulled in from mains, in Watt
-    static final int MIN_CHARGING_AMPS = 6; // Minimum charging below which you don't want charging, in Amps
+    // maximum power from mains, step size, update interval and minimum amps, these can change while running
+    static volatile ControlSettings settings = ControlSettings.DEFAULTS; // only the control loop replaces it, see applyPendingSettings
+    static final AtomicReference<ControlSettings> pendingSettings = new AtomicReference<>();
     static final int MAX_CAR_CHARGE = 24; // Maximum amps the car can charge at, in Amps
+    static final double WATTS_PER_AMP = 690.0; // 3 phases of 230 V, the TWC only reports the current; status page, sessions and archive report
+    static final double AMPS_PER_GRID_WATT = 1.44e-3; // 1/(400*sqrt(3)), the current per phase of a balanced 400 V load on the grid power
     static String MASTER_ID;
     static final String MASTER_SIGN = "77"; // not used at this time
     // Web server settings
     static int HTTP_PORT;
     static final String NEW_LINE = "\r\n";
-    public static volatile String webResponse = "Tesla Wall charger controller booting...";
+    // what the web server shows, replaced as a whole by the control loop and the SMA thread
+    static final AtomicReference<ControllerSnapshot> snapshot = new AtomicReference<>(ControllerSnapshot.BOOTING);
     // SMA energy reader or SMA home manager
-    static long SMA_SERIAL;
+    static volatile SmaMeterTable smaMeters; // the meters in sma_formula and every other SMA device seen on the group
+    static String SMA_MULTICAST_IP = "239.12.255.254";
+    static int SMA_MULTICAST_PORT = 9522;
+    static String SMA_INTERFACE = ""; // network interface name for the multicast, empty for the default one
     // Global variables
-    static String slaveId;
-    static String slaveSign;
-    static int maxAmps = 0; // read-in from slave
+    static final SlaveTable slaves = new SlaveTable();
+    static AmpAllocator ampAllocator;
+    static ChargeController chargeController = new StepController();
+    static int maxAmps = 0; // highest rating read-in from the slaves
     static volatile double currentPowerConsumption = 0.0;
-    static final double MAX_AMP_STEP_SIZE = 3;
-    static final int UPDATE_INTERVAL_SEC = 60;
-    static int currentTWCamps = 8;
-    static int currentTWCUsedAmps = -1;
+    static volatile double[] gridPhaseAmps; // current from the grid on L1 to L3, negative is injection, null until the meter sent them
+    static volatile PeakBudget peakBudget = new PeakBudget(ZoneId.systemDefault()); // energy of the running quarter hour and the month peak
+    static volatile PeerCoordinator peers; // other controllers on the same grid connection, null when peer_group is empty
+    // History of grid power in 0.1 W and total charger current in 0.01 A
+    static final TimeSeries gridHistory = new TimeSeries("grid", "dW");
+    static final TimeSeries chargerHistory = new TimeSeries("charger", "cA");
+    static int currentTWCamps = 8; // total over all slaves
+    static int currentTWCUsedAmps = -1; // total over all slaves
     static long startTime;
-    static volatile boolean programStopCalled = false;
-    static String firstHeartBeat;
+    static volatile TwcClock clock = TwcClock.SYSTEM; // time as seen by the control logic
+    static FrameJournal frameJournal; // binary capture of all frames, null when not capturing
+    static final int MAX_SESSIONS_LISTED = 1000; // most sessions /api/sessions?limit= gives
+    static volatile ChargeSessions chargeSessions = new ChargeSessions(null); // energy per charge session, in memory until session_journal is opened
+    static SessionJournal sessionJournal; // null without session_journal
+    static final TwcEvents events = new TwcEvents(TwcEvents.LOG, TwcEvents.STREAM, chargeSessions); // what changed on the slaves
+    static final TwcMessage message = new TwcMessage(); // the frame getNextMessage returned last, decoded, control loop only
+    static volatile SampleArchive sampleArchive; // daily files of grid samples and TWC reports, null without archive_dir
+    static volatile boolean programStopCalled = false; // set by requestStop, every thread checks it
+    static final List<Thread> workers = new CopyOnWriteArrayList<>(); // interrupted by requestStop
+    static volatile Thread controllerThread; // the thread in runController
+    static volatile MulticastSocket smaSocket; // closed by requestStop, a blocked receive does not see an interrupt
+    static File stateFile; // session state for a warm restart, null when not kept
+    static SessionState savedState; // what is in stateFile now
+    static final long WARM_START_TIMEOUT_MS = 5000; // the slaves answer a heartbeat within a second, after this we do a handshake
+    static final long HEARTBEAT_PERIOD_MS = 1000; // a steady stream of heartbeats keeps the slave happy
+    static final long LINKREADY_SPACING_MS = 500;
+    static volatile HeartbeatScheduler heartbeatScheduler;
+    static final int RECEIVE_TIMEOUT_MS = 1000;
+    static final Map<TwcTransport, AtomicLong> lastSendNanos = new ConcurrentHashMap<>(); // per bus, a frame is timed against the last send on its own bus
+    static volatile long lastResponseNanos = 0; // time between our last send and the last frame received, on the bus of that frame
     // Logging
     static Logger logger = Logger.getLogger("MyLog");
-    static boolean logging = true;
+    static volatile boolean logging = true;
+    static AsyncLogHandler asyncLogHandler;
+    static volatile HttpServer httpServer; // null until the web server thread is running
+    // Metrics, served at /metrics
+    static final Metrics metrics = new Metrics();
+    static final LatencyHistogram frameRoundTrip = metrics.histogram("twc_frame_round_trip_seconds", "Time from our last heartbeat to the answer of the slave");
+    static final LatencyHistogram controlLoopTime = metrics.histogram("twc_control_loop_seconds", "Time the control loop spends on one received frame");
+    static final LatencyHistogram smaParseTime = metrics.histogram("sma_parse_seconds", "Time to parse one SMA packet");
+    static final Metrics.Counter smaPackets = metrics.counter("sma_packets_total", "SMA packets parsed from our meter");
+    static final Metrics.Counter smaPacketsFiltered = metrics.counter("sma_packets_filtered_total", "Multicast packets of other devices, not parsed");
+    static final Metrics.Counter smaParseFailures = metrics.counter("sma_parse_failures_total", "Packets of our meter that could not be parsed");
+    static final Metrics.Counter smaReconnects = metrics.counter("sma_reconnects_total", "Multicast socket reopened by the 30 s watchdog or after an error");
+
+    static {
+        metrics.gauge("grid_power_watts", "Power from the grid, negative is injection", () -> currentPowerConsumption);
+        for (int phase = 1; phase <= 3; phase++) {
+            int index = phase - 1;
+            metrics.gauge("grid_current_l" + phase + "_amps", "Current from the grid on L" + phase + ", negative is injection",
+                    () -> (gridPhaseAmps == null) ? 0.0 : gridPhaseAmps[index]);
+        }
+        metrics.gauges("sma_meter_age_seconds", "Time since the last packet of an SMA device", "serial",
+                () -> smaMeterValues(meter -> meter.ageSeconds(clock.nanoTime())));
+        metrics.gauges("sma_meter_packets_per_second", "Packets per second of an SMA device", "serial", () -> smaMeterValues(SmaMeterTable.Meter::packetsPerSecond));
+        metrics.gauges("sma_meter_power_watts", "Last power of a meter in sma_formula, negative is injection", "serial",
+                () -> smaMeterValues(meter -> meter.configured() ? meter.powerDeciWatt[0] / 10.0 : null));
+        metrics.gauge("quarter_hour_average_watts", "Average grid power of the running quarter hour so far", () -> peakBudget.averageWatts());
+        metrics.gauge("quarter_hour_energy_watt_hours", "Energy from the grid in the running quarter hour so far", () -> peakBudget.energyWattHours());
+        metrics.gauge("month_peak_watts", "Highest quarter hour average power of this month", () -> peakBudget.monthPeakWatts());
+        metrics.gauge("peer_nodes", "Other controllers heard on peer_group", () -> (peers == null) ? 0 : peers.peers().size());
+        metrics.gauge("peer_share_amps", "Share of the grid connection for this controller", () -> (peers == null) ? Double.NaN : peers.lastShareAmps);
+        metrics.gauge("twc_set_amps", "Charging current set, total over all slaves", () -> currentTWCamps);
+        metrics.gauge("twc_used_amps", "Charging current used, total over all slaves", () -> slaves.totalUsedAmps());
+        metrics.gauge("twc_slaves", "Slaves on the bus", () -> slaves.size());
+        metrics.counter("log_records_dropped_total", "Log records dropped because the writer could not keep up", () -> (asyncLogHandler == null) ? 0 : asyncLogHandler.dropped.get());
+        metrics.counter("charged_watt_hours_total", "Energy charged over all sessions, at 690 W per A", () -> (long) chargeSessions.totalWattHours());
+        metrics.counter("charge_sessions_total", "Charge sessions started", () -> chargeSessions.size());
+        metrics.counter("session_journal_commits_total", "Group commits (one fsync each) of session_journal", () -> (sessionJournal == null) ? 0 : sessionJournal.commits);
+        metrics.counter("archive_rows_total", "Grid samples and TWC reports written to archive_dir", () -> (sampleArchive == null) ? 0 : sampleArchive.rowsWritten);
+        metrics.counter("archive_bytes_total", "Bytes written to archive_dir", () -> (sampleArchive == null) ? 0 : sampleArchive.bytesWritten);
+        metrics.counter("log_rotations_total", "Log file rotations", () -> (asyncLogHandler == null) ? 0 : asyncLogHandler.rotations);
+        metrics.counter("http_requests_total", "Http requests served", () -> (httpServer == null) ? 0 : httpServer.requestsServed);
+        metrics.gauge("http_stream_subscribers", "Clients on /api/stream", () -> (httpServer == null) ? 0 : httpServer.subscribers());
+    }
+
+    static ConfigReloader configReloader; // null when not started from config.txt (replay, simulator)
+
+    static void submitSettings(ControlSettings next) {
+        // any thread, the control loop takes it over at the start of its next tick
+        pendingSettings.set(next);
+    }
+
+    static ControlSettings latestSettings() {
+        ControlSettings pending = pendingSettings.get();
+        return (pending != null) ? pending : settings;
+    }
+
+    static void applyPendingSettings() {
+        ControlSettings next = pendingSettings.getAndSet(null);
+        if (next != null) {
+            settings = next;
+            logger.log(Level.INFO, "Control settings now {0}", next);
+        }
+    }
+
+    static void configureLogging(Properties props) {
+        // throws NumberFormatException on a bad size or number of segments, before anything is changed
+        boolean blockWhenFull = "block".equalsIgnoreCase(props.getProperty("log_full_policy", "drop"));
+        long maxFileBytes = Long.parseLong(props.getProperty("log_max_size_kb", "1024").trim()) * 1024;
+        int segments = Integer.parseInt(props.getProperty("log_segments", "5").trim());
+        if (asyncLogHandler != null) asyncLogHandler.configure(blockWhenFull, maxFileBytes, segments);
+    }
+
+    static Map<String, Double> smaMeterValues(Function<SmaMeterTable.Meter, Double> value) {
+        Map<String, Double> values = new LinkedHashMap<>();
+        SmaMeterTable table = smaMeters;
+        if (table == null) return values;
+        for (SmaMeterTable.Meter meter : table.meters()) {
+            Double v = value.apply(meter);
+            if (v != null) values.put(Long.toString(meter.serial), v);
+        }
+        return values;
+    }
+
+    static void registerReceiverMetrics(TwcReceiver receiver) {
+        metrics.counter("twc_frames_received_total", "Valid frames received from the RS485 bus", () -> receiver.framesReceived);
+        metrics.counter("twc_checksum_failures_total", "Frames received with a bad checksum", () -> receiver.checksumFailures);
+        metrics.counter("twc_frames_dropped_total", "Frames dropped because the control loop did not keep up", () -> receiver.framesDropped);
+        metrics.counter("twc_serial_reopens_total", "Times a serial port or gateway connection was re-opened", () -> receiver.portReopens);
+    }
+
+    static void registerHeartbeatMetrics(HeartbeatScheduler scheduler) {
+        metrics.counter("twc_heartbeat_missed_slots_total", "Heartbeat slots skipped because the transmit thread fell behind", () -> scheduler.missedSlots);
+        metrics.counter("twc_heartbeat_write_failures_total", "Heartbeats that could not be written to the bus", () -> scheduler.writeFailures);
+    }
 
     public static void main(String[] args) throws IOException, InterruptedException {
         // Logging
-        // Add logging to a file
-        FileHandler fh = new FileHandler("TWC.log");
-        logger.addHandler(fh);
+        // Add logging to a file and the console, both are written by a background thread so logging never blocks
+        asyncLogHandler = new AsyncLogHandler("TWC.log", AsyncLogHandler.DEFAULT_QUEUE_SIZE, false,
+                AsyncLogHandler.DEFAULT_MAX_FILE_BYTES, AsyncLogHandler.DEFAULT_SEGMENTS, true);
+        logger.addHandler(asyncLogHandler);
+        logger.setUseParentHandlers(false);
         // Override the standard formatter to something on 1 line
+        // Formatting happens later on the writer thread, so the time comes from the record and parameters are filled in there
         Formatter formatter = new Formatter() {
             @Override
             public String format(LogRecord arg0) {
                 StringBuilder b = new StringBuilder();
-                b.append(new Date()).append(", ");
+                b.append(new Date(arg0.getMillis())).append(", ");
                 b.append(arg0.getLevel()).append(": ");
-                b.append(arg0.getMessage());
+                b.append(formatMessage(arg0));
                 b.append(System.getProperty("line.separator"));
                 return b.toString();
             }
         };
-        fh.setFormatter(formatter);
-        // also set the console logger to the new formatter
-        Logger globalLogger = Logger.getLogger("");
-        Handler[] handlers = globalLogger.getHandlers();
-        for (Handler handler : handlers) {
-            handler.setFormatter(formatter);
-        }
+        asyncLogHandler.setFormatter(formatter);
         // Config file read-in
         File configFile = new File("config.txt");
         if (!configFile.exists()) {
@@ -91,10 +220,68 @@ public class Main {
                         "# rs485_port is the specific string to open the RS485 port" + NEW_LINE +
                         "# windows mostly uses a com port like COM3" + NEW_LINE +
                         "# raspberry pi with a RS485 usb dongle uses something like ttyUSB0" + NEW_LINE +
+                        "# an Ethernet to RS485 gateway in TCP server mode is tcp://host:port, several buses are separated by commas" + NEW_LINE +
                         "rs485_port = ttyUSB0" + NEW_LINE +
                         "#" + NEW_LINE +
+                        "# max_amp_step is the most the charging current changes every update_interval_sec seconds" + NEW_LINE +
+                        "# no charging below min_charging_amps" + NEW_LINE +
+                        "max_amp_step = 3" + NEW_LINE +
+                        "update_interval_sec = 60" + NEW_LINE +
+                        "min_charging_amps = 6" + NEW_LINE +
+                        "#" + NEW_LINE +
+                        "# phase_limit_amps is the breaker limit of every phase, the current on L1, L2 and L3 then never goes above it" + NEW_LINE +
+                        "# 0 means only max_power_from_mains counts" + NEW_LINE +
+                        "phase_limit_amps = 0" + NEW_LINE +
+                        "#" + NEW_LINE +
+                        "# controller step changes the current by at most max_amp_step every update_interval_sec (60 is fine)" + NEW_LINE +
+                        "# controller pi follows the limit closely on a filtered grid power, use it with update_interval_sec = 5" + NEW_LINE +
+                        "# and tune it with filter_sec, ramp_up_amps_per_min and back_off_amps_per_min" + NEW_LINE +
+                        "controller = step" + NEW_LINE +
+                        "filter_sec = 10" + NEW_LINE +
+                        "ramp_up_amps_per_min = 6" + NEW_LINE +
+                        "back_off_amps_per_min = 60" + NEW_LINE +
+                        "#" + NEW_LINE +
+                        "# peak_target_watts keeps the 15 minute average power of the capacity tariff under this target, or under the" + NEW_LINE +
+                        "# month peak so far when that is higher, the charging uses what is left of the quarter hour. 0 is off" + NEW_LINE +
+                        "peak_target_watts = 0" + NEW_LINE +
+                        "#" + NEW_LINE +
+                        "# api_token allows changing the settings above with a POST to /api/config (Authorization: Bearer <api_token>)" + NEW_LINE +
+                        "# empty means /api/config is read only, changes to this file are picked up while running" + NEW_LINE +
+                        "api_token = " + NEW_LINE +
+                        "#" + NEW_LINE +
                         "# sma_serial is the serial nr of the SMA energy meter or SMA home manager" + NEW_LINE +
-                        "sma_serial = 3004908651" + NEW_LINE);
+                        "sma_serial = 3004908651" + NEW_LINE +
+                        "# sma_formula, when set, regulates on more than one meter instead, for example the grid meter minus a meter on the battery branch:" + NEW_LINE +
+                        "# sma_formula = 3004908651 - 3012345678" + NEW_LINE +
+                        "sma_formula = " + NEW_LINE +
+                        "#" + NEW_LINE +
+                        "# load_sharing splits the available current when there are several TWC slaves: fair or priority" + NEW_LINE +
+                        "load_sharing = fair" + NEW_LINE +
+                        "#" + NEW_LINE +
+                        "# slave_priority is a comma separated list of slave ids, highest priority first (only for load_sharing = priority)" + NEW_LINE +
+                        "slave_priority = " + NEW_LINE +
+                        "#" + NEW_LINE +
+                        "# TWC.log is rotated at log_max_size_kb, log_segments older files are kept gzipped" + NEW_LINE +
+                        "# log_full_policy tells what to do when logging can't keep up: drop (lose lines) or block (wait)" + NEW_LINE +
+                        "log_max_size_kb = 1024" + NEW_LINE +
+                        "log_segments = 5" + NEW_LINE +
+                        "log_full_policy = drop" + NEW_LINE +
+                        "#" + NEW_LINE +
+                        "# capture_file, when set, gets a binary capture of every RS485 frame and grid sample, replay it with com.company.FrameReplay" + NEW_LINE +
+                        "capture_file = " + NEW_LINE +
+                        "#" + NEW_LINE +
+                        "# archive_dir, when set, gets a compressed file per day of the grid samples and TWC reports, read it with com.company.ArchiveReport" + NEW_LINE +
+                        "archive_dir = " + NEW_LINE +
+                        "#" + NEW_LINE +
+                        "# state_file keeps the slaves and their current, so a restart picks up without a new handshake, empty to switch off" + NEW_LINE +
+                        "state_file = TWC.state" + NEW_LINE +
+                        "#" + NEW_LINE +
+                        "# session_journal records the energy of every charge session, see /api/sessions, empty to switch off" + NEW_LINE +
+                        "session_journal = TWC.sessions" + NEW_LINE +
+                        "#" + NEW_LINE +
+                        "# peer_group shares max_power_from_mains with other controllers on the same grid connection (multicast group:port)" + NEW_LINE +
+                        "# all of them need the same peer_group, for example 239.12.255.253:9524, empty when this is the only one" + NEW_LINE +
+                        "peer_group = " + NEW_LINE);
                 fWriter.close();
             } else {
                 if (logging) logger.warning("Could not create config.txt file");
@@ -102,252 +289,462 @@ public class Main {
         } else {
             if (logging) logger.info("Existing config.txt file found, reading...");
         }
-        FileReader fReader = new FileReader(configFile);
-        Properties props = new Properties();
-        props.load(fReader);
-        fReader.close();
+        Properties props = ConfigReloader.read(configFile);
         HTTP_PORT = Integer.parseInt(props.getProperty("http_port", "8085"));
-        MAX_POWER_FROM_MAINS = Double.parseDouble(props.getProperty("max_power_from_mains", "10000.0"));
+        settings = ControlSettings.parseOrDefault(props, ControlSettings.DEFAULTS);
         MASTER_ID = props.getProperty("master_id", "7777");
         RS485_PORT = props.getProperty("rs485_port", "ttyUSB0");
-        SMA_SERIAL = Long.parseLong(props.getProperty("sma_serial", "3004908651"));
+        String smaFormula = props.getProperty("sma_formula", "").trim();
+        smaMeters = new SmaMeterTable(smaFormula.isEmpty() ? props.getProperty("sma_serial", "3004908651") : smaFormula);
+        configureLogging(props);
+        ampAllocator = AmpAllocator.forName(props.getProperty("load_sharing", "fair"), props.getProperty("slave_priority", ""));
+        chargeController = ChargeController.forName(props.getProperty("controller", "step").trim());
+        String stateFileName = props.getProperty("state_file", "TWC.state").trim();
+        if (!stateFileName.isEmpty()) stateFile = new File(stateFileName);
+        String sessionJournalName = props.getProperty("session_journal", "TWC.sessions").trim();
+        if (!sessionJournalName.isEmpty()) {
+            sessionJournal = new SessionJournal(new File(sessionJournalName));
+            events.remove(chargeSessions);
+            chargeSessions = new ChargeSessions(sessionJournal);
+            events.add(chargeSessions);
+            startWorker(sessionJournal, "session-journal");
+        }
+        String captureFile = props.getProperty("capture_file", "").trim();
+        if (!captureFile.isEmpty()) {
+            frameJournal = new FrameJournal(captureFile);
+            if (logging) logger.info("Capturing all RS485 frames to " + captureFile);
+        }
+        String archiveDir = props.getProperty("archive_dir", "").trim();
+        if (!archiveDir.isEmpty()) {
+            sampleArchive = new SampleArchive(new File(archiveDir), ZoneId.systemDefault());
+            startWorker(sampleArchive, "archive");
+            if (logging) logger.info("Archiving grid samples and TWC reports to " + archiveDir);
+        }
         // Master id logging
         if (logging) logger.info("This Master is set at Id " + MASTER_ID);
+        // pick up changes to config.txt while running
+        configReloader = new ConfigReloader(configFile, props);
+        startWorker(configReloader, "config-watch").setDaemon(true);
         // start SMA interrogation on separate thread
-        SmaThread smaT = new SmaThread("sma");
-        Thread newThread = new Thread(smaT);
-        newThread.start();
+        startWorker(new SmaThread("sma"), "sma");
+        String peerGroup = props.getProperty("peer_group", "").trim();
+        if (!peerGroup.isEmpty()) {
+            peers = new PeerCoordinator(peerGroup, SMA_INTERFACE);
+            startWorker(peers, "peers");
+        }
         if (logging) logger.info("SMA power meter started on Thread");
+        // a kill (or systemctl stop) saves the session state and closes the port like /endprogram does
+        Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            requestStop();
+            try {
+                mainThread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "shutdown"));
         // start simple website on separate thread
         WebServer webServer = new WebServer("webserver");
         Thread webServerThread = new Thread(webServer);
         webServerThread.start();
         if (logging) logger.info("Web server started on Thread");
-        // Open RS485 port to Tesla Wall Charger
-        SerialPort comPort = SerialPort.getCommPort(RS485_PORT);
-        if (logging) logger.info("Opening RS485 port " + comPort.getSystemPortName());
-        comPort.setComPortParameters(9600, 8, 1, SerialPort.NO_PARITY, true);
-        comPort.setRs485ModeParameters(true, false, 5, 5);
-        comPort.openPort();
-        if (logging) logger.info("Port " + RS485_PORT + " opened");
-        // send master_linkready2 3 times
+        // Open RS485 ports to Tesla Wall Chargers, the slaves of all buses share the power
+        List<TwcTransport> ports = new ArrayList<>();
+        for (String portName : RS485_PORT.split(",")) {
+            if (!portName.trim().isEmpty()) ports.add(openBus(portName.trim()));
+        }
+        runController(ports.toArray(new TwcTransport[0]));
+        if (logging) logger.info("Program stop called, closing all connections... ");
+        saveState(true);
+        for (TwcTransport port : ports) port.close();
+        for (Thread worker : workers) worker.join(2000);
+        if (frameJournal != null) frameJournal.close();
+        if (sampleArchive != null) sampleArchive.close();
+        if (sessionJournal != null) {
+            chargeSessions.checkpoint();
+            sessionJournal.close();
+        }
+        asyncLogHandler.close();
+    }
+
+    static TwcTransport openBus(String portName) {
+        // a serial port, or an RS485 gateway with tcp://host:port
+        if (logging) logger.info("Opening RS485 port " + portName);
+        if (portName.startsWith("tcp://")) {
+            TcpTransport gateway = TcpTransport.parse(portName);
+            if (gateway.open() && logging) logger.info("Gateway " + portName + " connected");  // otherwise the receiver keeps trying
+            return gateway;
+        }
+        SerialTransport comPort = new SerialTransport(portName);
+        comPort.open();
+        if (logging) logger.info("Port " + portName + " opened");
+        return comPort;
+    }
+
+    static Thread startWorker(Runnable task, String name) {
+        // a thread that requestStop interrupts, started right away
+        Thread thread = new Thread(task, name);
+        workers.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    static void requestStop() {
+        // from any thread: every thread stops waiting and sees programStopCalled
+        // the http thread is only woken up, an interrupt would close the channel it is answering on
+        programStopCalled = true;
+        for (Thread worker : workers) worker.interrupt();
+        Thread controller = controllerThread;
+        if (controller != null) controller.interrupt();
+        MulticastSocket socket = smaSocket;
+        if (socket != null) socket.close();
+        PeerCoordinator coordinator = peers;
+        if (coordinator != null) coordinator.close();
+        HttpServer server = httpServer;
+        if (server != null) server.wakeup();
+    }
+
+    static void saveState() {
+        // control loop: writes the session state when it differs from what was saved last, or when that is getting old
+        saveState(false);
+    }
+
+    static void saveState(boolean always) {
+        // always at shutdown, so a restart finds a saved_at of just now however long nothing changed
+        if (stateFile == null) return;
+        PeakBudget budget = peakBudget;
+        SessionState state = SessionState.of(System.currentTimeMillis(), MASTER_ID, currentTWCamps, slaves.list(), budget.month(), budget.monthPeakWatts());
+        if (state.slaves.isEmpty() || (!always && !state.needsSave(savedState))) return;
+        try {
+            state.save(stateFile);
+            savedState = state;
+        } catch (IOException e) {
+            logger.warning("Could not save the session state to " + stateFile + ": " + e.getMessage());
+        }
+    }
+
+    public static void runController(TwcTransport... ports) throws IOException, InterruptedException {
+        // handshake with the slaves, or a warm start from the saved session, and the control loop, until programStopCalled
+        controllerThread = Thread.currentThread();
+        try {
+            buses = ports;
+            // start the receive engine: a thread per serial port, one for all gateways
+            TwcReceiver receiver = new TwcReceiver(ports);
+            registerReceiverMetrics(receiver);
+            receiver.start();
+            // heartbeats go out on their own thread to every slave in the table, round robin per bus
+            // other slaves that send a linkready later are added to the round robin
+            heartbeatScheduler = new HeartbeatScheduler(ports, slaves, HEARTBEAT_PERIOD_MS);
+            registerHeartbeatMetrics(heartbeatScheduler);
+            startWorker(heartbeatScheduler, "rs485-transmit");
+            if (!warmStart(receiver) && !handshake(ports, receiver)) return;
+            startTime = clock.nanoTime();
+            while (!programStopCalled) controlLoopOnce(receiver);
+        } catch (InterruptedException e) {
+            if (!programStopCalled) throw e;  // otherwise requestStop woke us up
+        } finally {
+            controllerThread = null;
+            Thread.interrupted();  // the caller still has to close down
+        }
+    }
+
+    static boolean controlLoopOnce(TwcReceiver receiver) throws InterruptedException {
+        // one pass of the control loop: the next frame or a timeout, the charging current, the state for the web server
+        TwcMessage received = getNextMessage(receiver);
+        long loopStart = System.nanoTime();
+        if (received != null) handleMessage(received);
+        respondToBlock();
+        publishSnapshot();
+        if (received != null) controlLoopTime.record(System.nanoTime() - loopStart);
+        return received != null;
+    }
+
+    static boolean handshake(TwcTransport[] ports, TwcReceiver receiver) throws InterruptedException {
+        // send master_linkready2 3 times on every bus and wait for the first slave, false when stopped before one came
         String linkReady2 = buildBlock("FBE2" + MASTER_ID + MASTER_SIGN + "0000000000000000");
         for (int teller = 0; teller < 3; teller++) {
             if (logging) logger.info("Sending linkready2 " + linkReady2);
-            sendBlock(comPort, linkReady2);
+            for (TwcTransport port : ports) {
+                try {
+                    sendBlock(port, linkReady2);
+                } catch (IOException e) {
+                    logger.warning("Sending linkready2 on " + port.name() + " failed: " + e.getMessage());
+                }
+            }
+            clock.parkNanos(LINKREADY_SPACING_MS * 1000000L);
         }
         // Get first block
-        String block;
+        TwcMessage received;
         do {
-            block = getNextBlock(comPort);
-        } while (deEscapeBlock(block).startsWith("FDE2"));  // we're looking for a slave linkready block
-        slaveId = extractSlaveId(deEscapeBlock(block));
-        slaveSign = extractSlaveSign(block);
-        maxAmps = extractMaxAmps(deEscapeBlock(block));
-        if (logging) {
-            logger.info("Slave linkready block received " + block);
-            logger.info("SlaveId " + slaveId + ", SlaveSign " + slaveSign + ", max amps " + maxAmps);
-        }
-        firstHeartBeat = buildBlock(assembleMasterHeartbeat(MASTER_ID, slaveId, 9, currentTWCamps));
-        if (logging) logger.info("Sending heartbeat block " + firstHeartBeat);
-        sendBlock(comPort, firstHeartBeat);
-        startTime = System.nanoTime();
-        while (!programStopCalled) {
-            block = getNextBlock(comPort);
-            displayBlockProperties(block);
-            respondToBlock(comPort);
-            updateWebServer();
+            received = getNextMessage(receiver);
+            if (programStopCalled) return false;
+        } while ((received == null) || (received.type != TwcMessage.Type.SLAVE_LINKREADY));  // we're looking for a slave linkready, null on a timeout
+        TwcSlave firstSlave = registerSlave(received);
+        firstSlave.requestSetpoint(currentTWCamps);  // the first heartbeat sets the starting amps
+        return true;
+    }
+
+    static TwcTransport busNamed(String name) {
+        // null (the first bus) when the bus is no longer in rs485_port
+        for (TwcTransport bus : buses) {
+            if (bus.name().equals(name)) return bus;
         }
-        if (logging) logger.info("Program stop called, closing all connections... ");
+        return null;
+    }
+
+    static boolean warmStart(TwcReceiver receiver) throws InterruptedException {
+        // heartbeats to the slaves of the saved session with their last setpoint, right away
+        // the ones that do not answer within WARM_START_TIMEOUT_MS are dropped, false when none is left and a handshake is needed
+        if (stateFile == null) return false;
+        SessionState state = SessionState.load(stateFile);
+        if (state == null) return false;
+        peakBudget.restore(state.peakMonth, state.monthPeakWatts, clock.currentTimeMillis()); // the month peak counts however old the state is
+        long age = System.currentTimeMillis() - state.savedAtMillis; // how long we were away, on the wall clock also in the simulator
+        if (!state.masterId.equals(MASTER_ID) || state.slaves.isEmpty() || (age < 0) || (age > SessionState.MAX_AGE_MS)) {
+            if (logging) logger.info("Session state in " + stateFile + " is " + age / 1000 + " s old or of another master, not used");
+            return false;
+        }
+        int coldAmps = currentTWCamps;
+        for (SessionState.Slave saved : state.slaves) {
+            TwcSlave slave = slaves.register(saved.id, saved.sign, saved.maxAmps);
+            slave.bus = busNamed(saved.bus);
+            slave.allocatedAmps = saved.allocatedAmps;
+            slave.requestSetpoint(saved.allocatedAmps);
+        }
+        maxAmps = slaves.maxAmps();
+        currentTWCamps = state.setAmps;
+        savedState = state;
+        logger.warning("Warm start: heartbeats resumed for " + state.slaves.size() + " slave(s) at " + state.setAmps + " A, state saved " + age / 1000 + " s ago");
+        Set<String> waiting = new HashSet<>();
+        for (SessionState.Slave saved : state.slaves) waiting.add(saved.id);
+        long deadline = clock.nanoTime() + WARM_START_TIMEOUT_MS * 1000000L;
+        while (!programStopCalled && !waiting.isEmpty() && (clock.nanoTime() - deadline < 0)) {
+            TwcMessage received = getNextMessage(receiver);
+            if (received == null) continue;
+            if ((received.type == TwcMessage.Type.SLAVE_HEARTBEAT) || (received.type == TwcMessage.Type.SLAVE_LINKREADY)) waiting.remove(TwcMessage.id(received.sender));
+            handleMessage(received);  // a slave that is not in the saved state is added with its linkready as usual
+        }
+        if (programStopCalled) return true;  // straight to the end, nothing to hand shake
+        for (String id : waiting) {
+            logger.warning("Warm start: slave " + id + " did not answer, dropped");
+            slaves.remove(id);
+        }
+        if (waiting.size() == state.slaves.size()) {
+            currentTWCamps = coldAmps;  // none of the saved slaves is left, the saved current means nothing any more
+            savedState = null;
+        }
+        if (slaves.size() > 0) return true;  // possibly only slaves that sent a linkready just now
+        logger.warning("Warm start: no slave answered, starting with a handshake");
+        return false;
     }
 
     public static void displayBlockProperties(String block) {
+        // a frame as hex, for FrameReplay and the benchmarks
         if (block.isEmpty()) return;
-        String strippedBlock = deEscapeBlock(block.substring(2, 34));
-        if (strippedBlock.startsWith("FDE0")) {
-            String dataBlock = strippedBlock.substring(12, strippedBlock.length() - 2);
-            String byte1 = dataBlock.substring(0, 2);
-            switch (byte1) {
-                case "00":
-                    logger.info("Charger ready");
-                    break;
-                case "01":
-                    logger.info("Car plugged in, charging");
-                    break;
-                case "02":
-                    logger.info("Error status");
-                    break;
-                case "03":
-                    logger.info("Car plugged in, not charging");
-                    break;
-                case "04":
-                    logger.info("Car plugged in, ready to charge");
-                    break;
-                case "05":
-                    logger.info("Busy");
-                    break;
-                case "06":
-                    logger.info("Slave acknowledges reception of command code 6");
-                    break;
-                case "07":
-                    logger.info("Slave acknowledges reception of command code 7");
-                    break;
-                case "08":
-                    logger.info("Car plugged in, starting to charge");
-                    break;
-                case "09":
-                    logger.info("Slave acknowledges reception of command code 9");
-                    break;
-                default:
-                    logger.info("Unknown TWC status " + block + ", " + strippedBlock + ", " + dataBlock);
+        byte[] bytes = hexStringToByteArray(block);
+        message.decode(bytes, 0, bytes.length, clock.nanoTime(), null);
+        message.millis = clock.currentTimeMillis();
+        handleMessage(message);
+    }
+
+    public static void handleMessage(TwcMessage received) {
+        // every frame from a slave: the slave fields are brought up to date, events tells the rest what changed
+        if (received.type == TwcMessage.Type.SLAVE_HEARTBEAT) {
+            TwcSlave slave = slaves.get(received.sender);
+            if (slave == null) {
+                logger.info("Heartbeat from unknown slave " + TwcMessage.id(received.sender) + ", ignoring");
+                return;
             }
-            String byte23 = dataBlock.substring(2, 6);
-            double decodeSetAmps = decodeAmps(byte23);
-            String byte45 = dataBlock.substring(6, 10);
-            double decodeIsAmps = decodeAmps(byte45);
-            currentTWCUsedAmps = (int) decodeIsAmps;
-            logger.info("TWC reports charging current " + decodeSetAmps + " A set, " + decodeIsAmps + " A used");
-        } else if (strippedBlock.startsWith("FDE2")) {
-            logger.info("Received slave linkReady block, ignoring");
+            events.onHeartbeat(slave, received);
+            double usedAmps = slaves.totalUsedAmps();
+            currentTWCUsedAmps = (int) usedAmps;
+            // a total with every heartbeat, so a sample per slave a second
+            chargerHistory.samplesPerSecond(slaves.size());
+            chargerHistory.add(received.millis, (int) Math.round(usedAmps * 100));
+            SampleArchive archive = sampleArchive;
+            if (archive != null) archive.recordReport(received.millis, slave.id, received.status, received.setCentiAmps / 100.0, received.usedCentiAmps / 100.0);
+        } else if (received.type == TwcMessage.Type.SLAVE_LINKREADY) {
+            registerSlave(received);
         }
     }
 
-    public static void respondToBlock(SerialPort sp) throws InterruptedException {
-        int waitingTime = (int) ((System.nanoTime() - startTime) / 1e9);
-        String blockToSend;
+    public static TwcSlave registerSlave(String block) {
+        byte[] bytes = hexStringToByteArray(block);
+        message.decode(bytes, 0, bytes.length, clock.nanoTime(), null);
+        return registerSlave(message);
+    }
+
+    public static TwcSlave registerSlave(TwcMessage linkready) {
+        // adds the slave of a linkready to the table, or refreshes it when we already know it
+        boolean known = slaves.get(linkready.sender) != null;
+        TwcSlave slave = slaves.register(TwcMessage.id(linkready.sender), byteToHexString(linkready.sign), linkready.maxAmps());
+        if (linkready.bus != null) slave.bus = linkready.bus;
+        maxAmps = slaves.maxAmps();
+        events.onLinkready(slave, known);
+        return slave;
+    }
+
+    public static void respondToBlock() {
+        applyPendingSettings();
+        ControlSettings s = settings;
+        int waitingTime = (int) ((clock.nanoTime() - startTime) / 1e9);
         int oldAmps = currentTWCamps;
-        if (waitingTime > UPDATE_INTERVAL_SEC) {  // only allow changing amps every xx seconds
-            startTime = System.nanoTime(); // reset the timecounter
-            int availableAmps = (int) Math.round((MAX_POWER_FROM_MAINS - currentPowerConsumption) * 1.44e-3); // 1.44e-3 = 1/(400*sqrt(3))
-            if (availableAmps > MAX_AMP_STEP_SIZE) {
-                currentTWCamps += MAX_AMP_STEP_SIZE;
-            } else if (availableAmps < -MAX_AMP_STEP_SIZE) {
-                currentTWCamps -= MAX_AMP_STEP_SIZE;
-            } else {
-                currentTWCamps += availableAmps;
+        PeerCoordinator coordinator = peers;
+        int lease = Integer.MAX_VALUE;
+        if (coordinator != null) {
+            // the share of the grid connection this controller may use, a lease that shrinks applies right away
+            int demand = 0;
+            for (TwcSlave slave : slaves.list()) {
+                if (slave.isCarPluggedIn()) demand += Math.min(slave.maxAmps, MAX_CAR_CHARGE);
             }
-            if (Math.abs(currentTWCUsedAmps) < 1) {  // car is not actually charging so availableAmps is set value
-                currentTWCamps = availableAmps;
+            coordinator.update(currentTWCamps, currentTWCUsedAmps, demand);
+            lease = coordinator.leaseAmps(headroomAmps(s, currentPowerConsumption, gridPhaseAmps), clock.nanoTime());
+        }
+        if ((waitingTime > s.updateIntervalSec) || (currentTWCamps > lease)) {  // only allow changing amps every xx seconds
+            startTime = clock.nanoTime(); // reset the timecounter
+            // the chargers with a car plugged in share the current, when there are none all slaves are considered
+            List<TwcSlave> active = new ArrayList<>();
+            for (TwcSlave slave : slaves.list()) {
+                if (slave.isCarPluggedIn()) active.add(slave);
+            }
+            if (active.isEmpty()) active.addAll(slaves.list());
+            int totalCap = 0;
+            for (TwcSlave slave : active) totalCap += Math.min(slave.maxAmps, MAX_CAR_CHARGE);
+            if (lease < totalCap) {
+                if (logging) logger.info("Lease of " + lease + " A from the peers limits the charging current");
+                totalCap = lease;
             }
-            if (currentTWCamps < MIN_CHARGING_AMPS) currentTWCamps = 0;
-            if (currentTWCamps > maxAmps) currentTWCamps = maxAmps;
-            if (currentTWCamps > MAX_CAR_CHARGE) currentTWCamps = MAX_CAR_CHARGE;
+            currentTWCamps = chargeController.update(clock.nanoTime(), peakLimited(s), currentTWCamps, currentTWCUsedAmps, totalCap);
+            if (currentTWCamps < s.minChargingAmps) currentTWCamps = 0;
+            if (currentTWCamps > totalCap) currentTWCamps = totalCap;
             if (logging) logger.info("Charging current change from " + oldAmps + " A to " + currentTWCamps + " A");
-            blockToSend = buildBlock(assembleMasterHeartbeat(MASTER_ID, slaveId, 9, currentTWCamps));
+            int[] split = ampAllocator.allocate(currentTWCamps, active);
+            for (TwcSlave slave : slaves.list()) {
+                int index = active.indexOf(slave);
+                int amps = (index == -1) ? 0 : split[index];
+                if ((logging) && (slaves.size() > 1))
+                    logger.info("Slave " + slave.id + " set from " + slave.allocatedAmps + " A to " + amps + " A");
+                slave.allocatedAmps = amps;
+                slave.requestSetpoint(amps); // goes out with the next heartbeat to this slave
+            }
+            saveState();
         } else {
-            blockToSend = buildBlock(assembleMasterHeartbeat(MASTER_ID, slaveId, 0, 0)); // send nochange command 0
             if (logging)
-                logger.info("Charging current kept at " + currentTWCamps + " A, wait time " + waitingTime + " sec");
+                logger.log(Level.INFO, "Charging current kept at {0} A, wait time {1} sec", new Object[]{currentTWCamps, waitingTime});
         }
-        sendBlock(sp, blockToSend);
-        if (logging) logger.info("Sending block " + blockToSend);
     }
 
-    public static String getNextBlock(SerialPort sp) throws InterruptedException {
-        // Waits for something to be received and an additional 0.25s for the data to come in
-        // After that analyses what came in and returns a valid or an empty block
-        if (sp.bytesAvailable() == -1) {
-            logger.warning("Serial Port is closed, attempting to re-open");
-            sp.openPort();
-            logger.warning("Serial Port is re-opened");
-            return "";
-        }
-        while (sp.bytesAvailable() < 1) { // wait for something to come in
-            Thread.sleep(200);
-        }
-        Thread.sleep(250); // let data come in
-        int bytesInBuffer = sp.bytesAvailable();
-        byte[] readBuffer = new byte[bytesInBuffer];
-        sp.readBytes(readBuffer, readBuffer.length);
-        String block = byteArrayToHexString(readBuffer);
-        String cleanBlock = cleanUpBlock(block);
-        if (isValidBlock(cleanBlock)) {
-            if (logging) logger.info("Block received " + cleanBlock);
-            return cleanBlock;
-        } else {
-            if (!cleanBlock.isEmpty())
-                logger.warning("Block checksum failed " + block + " because of " + cleanBlock);
-            return "";
+    static ControlSettings peakLimited(ControlSettings s) {
+        // with a peak_target_watts the grid limit is what the quarter hour budget allows, when that is below max_power_from_mains
+        if (s.peakTargetWatts <= 0) return s;
+        double allowed = peakBudget.allowedWatts(clock.currentTimeMillis(), s.peakTargetWatts, s.updateIntervalSec);
+        if (allowed >= s.maxPowerFromMains) return s;
+        if (logging) logger.info("Quarter hour budget allows " + Math.round(allowed) + " W from the grid");
+        return s.withMaxPowerFromMains(Math.max(allowed, 100.0)); // the lowest limit there is, the cars get nothing at that point anyway
+    }
+
+    static int availableAmps(ControlSettings s, double gridWatts, double[] phaseAmps) {
+        // how much the charging current can go up (or has to go down), on the total power with a balanced 400 V load
+        // with a phase limit also on every phase: the chargers draw the same current on all 3 phases,
+        // so the phase closest to its breaker limit decides, however much room the other phases have
+        int available = (int) Math.round((s.maxPowerFromMains - gridWatts) * AMPS_PER_GRID_WATT);
+        if ((s.phaseLimitAmps > 0) && (phaseAmps != null)) {
+            int limiting = -1;
+            for (int phase = 0; phase < phaseAmps.length; phase++) {
+                int phaseAvailable = (int) Math.floor(s.phaseLimitAmps - phaseAmps[phase]);
+                if (phaseAvailable < available) {
+                    available = phaseAvailable;
+                    limiting = phase;
+                }
+            }
+            if ((logging) && (limiting >= 0))
+                logger.info("L" + (limiting + 1) + " at " + String.format("%.1f", phaseAmps[limiting]) + " A limits the charging current, " + available + " A available");
         }
+        return available;
     }
 
-    public static void sendBlock(SerialPort sp, String block) throws InterruptedException {
-        try {
-            sp.writeBytes(hexStringToByteArray(block), block.length() / 2);
-            Thread.sleep(500);
-        } catch (Exception e) {
+    static double headroomAmps(ControlSettings s, double gridWatts, double[] phaseAmps) {
+        // the same room as availableAmps, without rounding to whole amps
+        double room = (s.maxPowerFromMains - gridWatts) * AMPS_PER_GRID_WATT;
+        if ((s.phaseLimitAmps > 0) && (phaseAmps != null)) {
+            for (double amps : phaseAmps) room = Math.min(room, s.phaseLimitAmps - amps);
         }
+        return room;
     }
 
-    public static String cleanUpBlock(String rawblock) {
-        int posC0FC = rawblock.lastIndexOf("C0FC");
-        if (posC0FC == -1) return "";
-        else {
-            rawblock = rawblock.substring(0, posC0FC + 4);
+    public static TwcMessage getNextMessage(TwcReceiver receiver) throws InterruptedException {
+        // Waits for the next frame from the receive thread and returns it decoded in message, null on a timeout or a bad checksum
+        // Frames come in order of arrival, so a burst of several frames is handled one by one
+        TwcFrame frame = receiver.nextFrame(RECEIVE_TIMEOUT_MS);
+        if (frame == null) return null;
+        if (!frame.valid) {
+            logger.warning("Block checksum failed " + frame.toHexString());
+            return null;
         }
-        int posC0 = rawblock.length() - 6;
-        while ((posC0 >= 0) && (!rawblock.startsWith("C0", posC0))) {
-            posC0 = posC0 - 2;
+        AtomicLong sent = (frame.bus == null) ? null : lastSendNanos.get(frame.bus);
+        lastResponseNanos = (sent == null) ? 0 : frame.timestampNanos - sent.get();
+        message.decode(frame.bytes, 0, frame.length, clock.nanoTime(), frame.bus);
+        message.millis = clock.currentTimeMillis();
+        if ((message.type == TwcMessage.Type.SLAVE_HEARTBEAT) && (sent != null)) frameRoundTrip.record(lastResponseNanos);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "Block received {0}, {1} ms after last send", new Object[]{frame.toHexString(), lastResponseNanos / 1000000});
         }
-        if ((posC0 < 0) || ((posC0 == 0) && (!rawblock.startsWith("C0")))) return "";
-        else return rawblock.substring(posC0);
+        return message;
+    }
+
+    public static void sendBlock(TwcTransport sp, String block) throws IOException {
+        // writes the block and returns immediately, pacing is up to the caller
+        int length = block.length() / 2;
+        byte[] bytes = hexStringToByteArray(block);
+        sp.write(bytes, 0, length);
+        long now = clock.nanoTime();
+        lastSendNanos.computeIfAbsent(sp, bus -> new AtomicLong()).set(now);
+        if (frameJournal != null) frameJournal.append(FrameJournal.TRANSMITTED, now, bytes, 0, length);
+    }
+
+    // The String functions below are kept as thin adapters over the binary TwcCodec
+    // A trailing half byte (odd length hex string) is passed through untouched
+
+    public static String cleanUpBlock(String rawblock) {
+        byte[] raw = hexStringToByteArray(rawblock.substring(0, rawblock.length() & ~1));
+        int frameEnd = TwcCodec.findLastFrameEnd(raw, 0, raw.length);
+        if (frameEnd == -1) return "";
+        int frameStart = TwcCodec.findFrameStart(raw, 0, frameEnd);
+        if (frameStart == -1) return "";
+        return byteArrayToHexString(raw, frameStart, frameEnd - frameStart);
     }
 
     public static boolean isValidBlock(String block) {
-        if ((!block.startsWith("C0")) || (!block.endsWith("C0FC"))) return false;
-        block = block.substring(2, block.length() - 4); // remove first byte and last 2 bytes
-        block = deEscapeBlock(block);
-        String extractedChecksum = block.substring(block.length() - 2);
-        block = block.substring(0, block.length() - 2);
-        return (extractedChecksum.equals(calculateChecksum(block)));
+        if ((block.length() % 2 != 0) || (!block.startsWith("C0")) || (!block.endsWith("C0FC"))) return false;
+        byte[] frame = hexStringToByteArray(block);
+        return TwcCodec.isValidFrame(frame, 0, frame.length);
     }
 
     public static String deEscapeBlock(String block) {
-        int counter = 0;
-        StringBuilder sb = new StringBuilder();
-        while (counter < block.length()) {
-            if (block.substring(counter).startsWith("DBDC")) {
-                sb.append("C0");
-                counter += 4;
-            } else if (block.substring(counter).startsWith("DBDD")) {
-                sb.append("DB");
-                counter += 4;
-            } else {
-                sb.append(block, counter, counter + 2);
-                counter += 2;
-            }
-        }
-        return sb.toString();
+        int even = block.length() & ~1;
+        byte[] bytes = hexStringToByteArray(block.substring(0, even));
+        int length = TwcCodec.unescape(bytes, 0, bytes.length, bytes, 0);
+        return byteArrayToHexString(bytes, 0, length) + block.substring(even);
     }
 
     public static String escapeBlock(String block) {
-        int counter = 0;
-        while (counter < block.length()) {
-            if (block.substring(counter).startsWith("DB")) {
-                block = block.substring(0, counter) + "DBDD" + block.substring(counter + 2);
-            }
-            counter += 2;
-        }
-        while ((block.contains("C0")) && (block.indexOf("C0") % 2 == 0)) {
-            block = block.replace("C0", "DBDC");
-        }
-        return block;
+        int even = block.length() & ~1;
+        byte[] bytes = hexStringToByteArray(block.substring(0, even));
+        byte[] escaped = new byte[bytes.length * 2];
+        int length = TwcCodec.escape(bytes, 0, bytes.length, escaped, 0);
+        return byteArrayToHexString(escaped, 0, length) + block.substring(even);
     }
 
     public static String calculateChecksum(String block) {
-        int checksum = 0;
-        // do not include first byte in checksum calculation, so teller = 1
-        for (int teller = 1; teller < block.length() / 2; teller++) {
-            checksum += Integer.parseInt(block.substring(teller * 2, (teller + 1) * 2), 16);
-        }
-        String checksumString = Integer.toHexString(checksum & 0xFF).toUpperCase();  // only the least significant byte matters
-        if (checksumString.length() == 1) {
-            checksumString = "0" + checksumString;
-        }
-        return checksumString;
+        byte[] bytes = hexStringToByteArray(block.substring(0, block.length() & ~1));
+        return byteToHexString(TwcCodec.checksum(bytes, 0, bytes.length));
     }
 
     public static String assembleMasterHeartbeat(String masterId, String slaveId, int commandCode, int setAmps) {
+        return assembleMasterHeartbeat(masterId, slaveId, commandCode, setAmps, maxAmps);
+    }
+
+    public static String assembleMasterHeartbeat(String masterId, String slaveId, int commandCode, int setAmps, int maxAmps) {
         if ((commandCode < 0) || (commandCode > 9)) commandCode = 9;
         StringBuilder sb = new StringBuilder("FBE0");
         sb.append(masterId);
@@ -374,51 +771,52 @@ public class Main {
         return ((double) ampsI) / 100.0;
     }
 
-    public static String extractSlaveId(String test) {
-        int position = test.indexOf("C0FDE2");
-        return test.substring(position + 6, position + 10);
-    }
-
-    public static String extractSlaveSign(String test) {
-        int position = test.indexOf("C0FDE2");
-        return test.substring(position + 10, position + 12);
-    }
-
-    public static int extractMaxAmps(String test) {
-        int position = test.indexOf("1F40");
-        if (position != -1) return 80;
-        position = test.indexOf("0C80");
-        if (position != -1) return 32;
-        else return 0;
-    }
-
     public static String buildBlock(String message) {
         // calculates byte checksum and add it to end
         // escapes the message
         // adds C0 to front of message
         // adds C0 to end of message
         // return String ready to transmit
-        return "C0" + escapeBlock(message + calculateChecksum(message)) + "C0";
+        byte[] bytes = hexStringToByteArray(message);
+        byte[] frame = new byte[bytes.length * 2 + 4];
+        int length = TwcCodec.encodeFrame(bytes, 0, bytes.length, frame, 0);
+        return byteArrayToHexString(frame, 0, length);
     }
 
-    public static void updateWebServer() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("Tesla Wall charger controller status").append(NEW_LINE);
-        sb.append("------------------------------------").append(NEW_LINE).append(NEW_LINE);
-        sb.append("Master Id: ").append(MASTER_ID).append(NEW_LINE);
-        sb.append("Slave  Id: ").append(slaveId).append(", charger is capable of ").append(maxAmps).append("A").append(NEW_LINE).append(NEW_LINE);
-        sb.append("Maximum power draw from mains set at: ").append(String.format("%5.0f", MAX_POWER_FROM_MAINS)).append("W").append(NEW_LINE);
-        sb.append("Current power consumption from mains: ").append(String.format("%5.0f", currentPowerConsumption)).append("W (").append(String.format("%4.1f", currentPowerConsumption / 692.0)).append("A)").append(NEW_LINE);
-        sb.append("Current power setting on TWC        : ").append(String.format("%5.0f", currentTWCamps * 693.0)).append("W (").append(String.format("%4.1f", (double) currentTWCamps)).append("A)").append(NEW_LINE);
-        sb.append("Reported power consumption by TWC   : ").append(String.format("%5.0f", currentTWCUsedAmps * 693.0)).append("W (").append(String.format("%4.1f", (double) currentTWCUsedAmps)).append("A)").append(NEW_LINE).append(NEW_LINE);
-        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
-        sb.append("Time stamp: ").append(dtf.format(LocalDateTime.now()));
-        webResponse = sb.toString();
+    public static void publishSnapshot() {
+        // control loop side: the state after this frame becomes what the web server shows, nothing is formatted here
+        long now = clock.currentTimeMillis();
+        List<TwcSlave> list = slaves.list();
+        snapshot.updateAndGet(previous -> ControllerSnapshot.of(previous, now, MASTER_ID, settings.maxPowerFromMains, currentTWCamps, currentTWCUsedAmps, list));
+    }
+
+    static void publishGridPower(double watts) {
+        // SMA thread side, only the grid power changes
+        long now = clock.currentTimeMillis();
+        snapshot.updateAndGet(previous -> previous.withGridPower(now, watts));
+    }
+
+    public static void publishEvent(String event, String json) {
+        // pushes to the /api/stream subscribers, if there are any
+        HttpServer server = httpServer;
+        if (server != null) server.publish(event, json);
+    }
+
+    static boolean hasStreamSubscribers() {
+        HttpServer server = httpServer;
+        return (server != null) && server.hasSubscribers();
     }
 
     static class SmaThread implements Runnable {
 
         String threadName;
+        // per packet state, SMA thread only
+        final SmaRecord smaR = new SmaRecord(); // re-used for every packet
+        final int[] power = new int[4]; // sma_formula over the meters: 3 phase total and L1 to L3, in 0.1 W
+        final int[] current = new int[4]; // and L1 to L3 in mA
+        SmaMeterTable meters;
+        long showCounter = 0;
+        boolean missingMeters = false;
 
         SmaThread(String name) {
             threadName = name;
@@ -426,16 +824,18 @@ public class Main {
 
         @Override
         public void run() {
-            final String sma_multicastIp = "239.12.255.254";
-            final int sma_multicastPort = 9522;
+            final String sma_multicastIp = SMA_MULTICAST_IP;
+            final int sma_multicastPort = SMA_MULTICAST_PORT;
             String myHostIpAddress = getIpAddress();
             while (!programStopCalled) {
                 if (logging) logger.info("Opening SMA multicast socket from " + myHostIpAddress);
                 try {
                     InetAddress mcastAddr = InetAddress.getByName(sma_multicastIp);
                     InetSocketAddress group = new InetSocketAddress(mcastAddr, sma_multicastPort);
-                    NetworkInterface netIf = NetworkInterface.getByName(myHostIpAddress);
+                    NetworkInterface netIf = NetworkInterface.getByName(SMA_INTERFACE.isEmpty() ? myHostIpAddress : SMA_INTERFACE);
                     MulticastSocket mcSocket = new MulticastSocket(sma_multicastPort);
+                    smaSocket = mcSocket;
+                    if (programStopCalled) mcSocket.close(); // requestStop came before the socket was there
                     mcSocket.joinGroup(group, netIf);
                     byte[] txbuf = hexStringToByteArray("534d4100000402a0ffffffff0000002000000000");  // discovery string to be sent to network, all SMA devices will answer
                     if (logging)
@@ -443,91 +843,95 @@ public class Main {
                     DatagramPacket data = new DatagramPacket(txbuf, txbuf.length, mcastAddr, sma_multicastPort);
                     mcSocket.send(data);
                     byte[] buffer = new byte[1024];
+                    ByteBuffer packet = ByteBuffer.wrap(buffer); // parser view on the receive buffer
+                    meters = smaMeters;
+                    showCounter = 0;
+                    missingMeters = false;
                     data = new DatagramPacket(buffer, buffer.length);
                     long watchDog = System.nanoTime();
-                    long showCounter = 0;
-                    while ((System.nanoTime() - watchDog) < 30e9) { // 30 sec watchdog check
-                        mcSocket.receive(data);
-                        byte[] slice = Arrays.copyOfRange(buffer, 0, data.getLength());
-                        smaResponseData smaR = parseSmaResponse(slice);
-                        if ((smaR != null) && (smaR.serial == SMA_SERIAL)) {
-                            watchDog = System.nanoTime();
-                            showCounter++;
-                            currentPowerConsumption = smaR.power3f.doubleValue();
-                            if ((logging) && (showCounter % 65 == 0)) {
-                                logger.info("SMA power meter reports " + (int) currentPowerConsumption + " Watt consumption from grid");
-                            }
+                    mcSocket.setSoTimeout(5000); // so the watchdog also fires when nothing comes in at all
+                    while (((System.nanoTime() - watchDog) < 30e9) && !programStopCalled) { // 30 sec watchdog check
+                        try {
+                            mcSocket.receive(data);
+                        } catch (SocketTimeoutException e) {
+                            continue;
                         }
+                        if (onPacket(packet, data.getLength())) watchDog = System.nanoTime();
                     }
-                    if (logging) logger.warning("SMA: watchDog timer exceeded, reconnecting multicast socket");
                     mcSocket.close();
+                    if (programStopCalled) break;
+                    if (logging) logger.warning("SMA: watchDog timer exceeded, reconnecting multicast socket");
                 } catch (IOException e) {
+                    if (programStopCalled) break; // requestStop closed the socket
                     if (logging) logger.warning("SMA: Multicast failed");
                 }
+                smaReconnects.inc();
             }
         }
-    }
 
-    public static smaResponseData parseSmaResponse(byte[] hexData) {
-
-        // Extracting the correct values from the measurement byte[]
-        // Up to now (2020) it is 600 or 608 bytes long: 600 for SMA energy meter and 608 for the SMA home manager 2
-        // To be as futureproof as possible, we do not use the data byte offsets given by SMA (since they already changed once with a firmware update)
-        // For the measurement we search the hexData for a specific marker and then extract from 4 to 8 bytes further the data
-        // These markers are stored in the enum internalData
-        String hexString = byteArrayToHexString(hexData);
-        if (hexString.length() < 1200) return null;
-        else {
-            smaResponseData smar = new smaResponseData();
-            // the serial number is extracted direct from byte 20 to 24, then converted to a unsigned long
-            // int is too short and would give negative serial numbers for some devices
-            int serial = ByteBuffer.wrap(Arrays.copyOfRange(hexData, 20, 24)).getInt();
-            smar.serial = Integer.toUnsignedLong(serial);
-            // Power is read relative to a marker position, but for every value there are 2 markers
-            // one for the positive power, one for the negative
-            // at least one of them is always zero
-            // also, the power is stored in 0.1W numbers, so we need to divide by 10 to get the value in Watts
-            // to make searching the marker position easier to program, we convert the byte[] to a hexString and look for the markers in this String
-            // the extraction is done from the byte[] with the search result from above (divided by 2)
-            // for correctness, the result is stored in a BigDecimal
-            int power3fp = getValueFromMarker(hexData, internalData.power3fpos);
-            int power3fn = getValueFromMarker(hexData, internalData.power3fneg);
-            if (power3fp != 0) {
-                smar.power3f = BigDecimal.valueOf(power3fp).divide(BigDecimal.TEN);
-            } else {
-                smar.power3f = BigDecimal.valueOf(-power3fn).divide(BigDecimal.TEN);
+        boolean onPacket(ByteBuffer packet, int length) {
+            // one packet off the multicast group, true when it was one of the main meter and the controller got a new grid sample
+            long serial = SmaParser.readSerial(packet, length);
+            SmaMeterTable.Meter meter = (serial < 0) ? null : meters.seen(serial, clock.nanoTime());
+            if ((meter == null) || !meter.configured()) { // not one of our meters, don't parse further
+                smaPacketsFiltered.inc();
+                return false;
             }
-            int powerL1p = getValueFromMarker(hexData, internalData.powerL1pos);
-            int powerL1n = getValueFromMarker(hexData, internalData.powerL1neg);
-            if (powerL1p != 0) {
-                smar.powerL1 = BigDecimal.valueOf(powerL1p).divide(BigDecimal.TEN);
-            } else {
-                smar.powerL1 = BigDecimal.valueOf(-powerL1n).divide(BigDecimal.TEN);
+            long parseStart = System.nanoTime();
+            boolean parsed = SmaParser.parse(packet, length, smaR);
+            smaParseTime.record(System.nanoTime() - parseStart);
+            if (!parsed) {
+                smaParseFailures.inc();
+                return false;
             }
-            int powerL2p = getValueFromMarker(hexData, internalData.powerL2pos);
-            int powerL2n = getValueFromMarker(hexData, internalData.powerL2neg);
-            if (powerL2p != 0) {
-                smar.powerL2 = BigDecimal.valueOf(powerL2p).divide(BigDecimal.TEN);
-            } else {
-                smar.powerL2 = BigDecimal.valueOf(-powerL2n).divide(BigDecimal.TEN);
+            smaPackets.inc();
+            meter.store(smaR);
+            if (serial != meters.mainSerial()) return false; // the other meters are taken along with the next packet of the main one
+            showCounter++;
+            int stale = meters.evaluate(clock.nanoTime(), power, current);
+            if ((stale > 0) != missingMeters) {
+                missingMeters = stale > 0;
+                logger.warning(missingMeters ? "SMA: " + stale + " meter(s) of sma_formula silent, regulating without them" : "SMA: all meters of sma_formula back");
             }
-            int powerL3p = getValueFromMarker(hexData, internalData.powerL3pos);
-            int powerL3n = getValueFromMarker(hexData, internalData.powerL3neg);
-            if (powerL3p != 0) {
-                smar.powerL3 = BigDecimal.valueOf(powerL3p).divide(BigDecimal.TEN);
-            } else {
-                smar.powerL3 = BigDecimal.valueOf(-powerL3n).divide(BigDecimal.TEN);
+            currentPowerConsumption = power[0] / 10.0;
+            chargeController.onGridSample(clock.nanoTime(), currentPowerConsumption);
+            peakBudget.onGridSample(clock.currentTimeMillis(), currentPowerConsumption);
+            double[] phaseAmps = new double[3]; // a new array, the control loop may still be reading the last one
+            for (int phase = 1; phase <= 3; phase++) phaseAmps[phase - 1] = current[phase] / 1000.0;
+            gridPhaseAmps = phaseAmps;
+            publishGridPower(currentPowerConsumption);
+            PeerCoordinator coordinator = peers;
+            if (coordinator != null) coordinator.announce(); // the other controllers see our current with every meter reading
+            gridHistory.add(clock.currentTimeMillis(), power[0]);
+            if (frameJournal != null) frameJournal.appendGridSample(clock.nanoTime(), power[0]);
+            SampleArchive archive = sampleArchive;
+            if (archive != null) archive.recordGrid(clock.currentTimeMillis(), power[0], current[1], current[2], current[3]);
+            if (hasStreamSubscribers()) {
+                publishEvent("sma", "{\"time\":" + clock.currentTimeMillis() + ",\"power\":" + power[0] / 10.0 +
+                        ",\"powerL1\":" + power[1] / 10.0 + ",\"powerL2\":" + power[2] / 10.0 +
+                        ",\"powerL3\":" + power[3] / 10.0 + "}");
+            }
+            if ((logging) && (showCounter % 65 == 0)) {
+                logger.info("SMA power meter reports " + (int) currentPowerConsumption + " Watt consumption from grid");
             }
-            return smar;
+            return true;
         }
     }
 
-    public static int getValueFromMarker(byte[] hexData, internalData marker) {
-        String hexDataString = byteArrayToHexString(hexData);
-        int markerLocation = hexDataString.indexOf(marker.code);
-        if (markerLocation == -1) return 0;
-        markerLocation = markerLocation / 2;
-        return ByteBuffer.wrap(Arrays.copyOfRange(hexData, markerLocation + marker.offset, markerLocation + marker.offset + marker.length)).getInt();
+    public static smaResponseData parseSmaResponse(byte[] hexData) {
+        // Adapter over SmaParser for callers that want the old BigDecimal values
+        // Up to now (2020) a packet is 600 or 608 bytes long: 600 for SMA energy meter and 608 for the SMA home manager 2
+        if (hexData.length < 600) return null;
+        SmaRecord record = new SmaRecord();
+        if (!SmaParser.parse(ByteBuffer.wrap(hexData), hexData.length, record)) return null;
+        smaResponseData smar = new smaResponseData();
+        smar.serial = record.serial;
+        // power is stored in 0.1W numbers
+        smar.power3f = BigDecimal.valueOf(record.powerDeciWatt(0), 1);
+        smar.powerL1 = BigDecimal.valueOf(record.powerDeciWatt(1), 1);
+        smar.powerL2 = BigDecimal.valueOf(record.powerDeciWatt(2), 1);
+        smar.powerL3 = BigDecimal.valueOf(record.powerDeciWatt(3), 1);
+        return smar;
     }
 
     public static class smaResponseData {
@@ -538,28 +942,6 @@ public class Main {
         BigDecimal powerL3 = BigDecimal.ZERO;
     }
 
-    enum internalData {
-        // These are the 4 byte markers in hex
-        power3fpos("00010400", 4, 4),
-        power3fneg("00020400", 4, 4),
-        powerL1pos("00150400", 4, 4),
-        powerL1neg("00160400", 4, 4),
-        powerL2pos("00290400", 4, 4),
-        powerL2neg("002A0400", 4, 4),
-        powerL3pos("003D0400", 4, 4),
-        powerL3neg("003E0400", 4, 4);
-
-        final String code;
-        final int offset;
-        final int length;
-
-        internalData(String code, int offset, int length) {
-            this.code = code;
-            this.offset = offset;
-            this.length = length;
-        }
-    }
-
     public static class WebServer implements Runnable {
 
         String threadName;
@@ -570,38 +952,73 @@ public class Main {
 
         @Override
         public void run() {
-            try {
-                ServerSocket socket = new ServerSocket(HTTP_PORT);
-                while (!programStopCalled) {
-                    Socket connection = socket.accept();
-                    try {
-                        BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                        OutputStream out = new BufferedOutputStream(connection.getOutputStream());
-                        PrintStream pout = new PrintStream(out);
-                        String request = in.readLine();
-                        if (request == null) continue;
-                        while (true) { // dump all the other input
-                            String ignore = in.readLine();
-                            if (ignore == null || ignore.length() == 0) break;
-                        }
-                        if (!request.startsWith("GET ") || !(request.endsWith(" HTTP/1.0") || request.endsWith(" HTTP/1.1"))) {
-                            pout.print("HTTP/1.0 400 Bad Request" + NEW_LINE + NEW_LINE);
-                        } else {
-                            if (request.startsWith("GET /endprogram")) programStopCalled = true;
-                            else if (request.startsWith("GET /loggingoff")) logging = false;
-                            else if (request.startsWith("GET /loggingon")) logging = true;
-                            pout.print("HTTP/1.0 200 OK" + NEW_LINE + "Content-Type: text/plain" + NEW_LINE + "Date: " + new Date() + NEW_LINE + "Content-length: " + webResponse.length() + NEW_LINE + NEW_LINE + webResponse);
-                        }
-                        pout.close();
-                    } catch (Throwable tri) {
-                        if (logging) logger.warning("Http error handling request: " + tri);
-                    }
-                    connection.close();
+            httpServer = new HttpServer(HTTP_PORT, WebServer::handle);
+            httpServer.run();
+        }
+
+        static HttpServer.Response handle(HttpServer.Request request) {
+            String path = request.path;
+            if (path.startsWith("/api/config")) {
+                ConfigReloader reloader = configReloader;
+                return (reloader == null) ? HttpServer.Response.error(404, "Not Found") : reloader.handleApi(request);
+            }
+            if (!"GET".equals(request.method)) return HttpServer.Response.error(400, "Bad Request");
+            if (path.startsWith("/endprogram")) requestStop();
+            else if (path.startsWith("/loggingoff")) setLogging(false);
+            else if (path.startsWith("/loggingon")) setLogging(true);
+            else if (path.startsWith("/history/")) {
+                boolean json = !"csv".equals(queryParameter(path, "format", "json"));
+                try {
+                    return HttpServer.Response.ok(json ? "application/json" : "text/csv", renderHistory(path, json));
+                } catch (NumberFormatException e) {
+                    return HttpServer.Response.error(400, "Bad Request", "from and to are epoch milliseconds");
+                }
+            } else if (path.startsWith("/metrics")) {
+                return HttpServer.Response.ok("text/plain; version=0.0.4", metrics.render());
+            } else if (path.startsWith("/api/sessions")) {
+                int limit;
+                try {
+                    limit = Integer.parseInt(queryParameter(path, "limit", "50").trim());
+                } catch (NumberFormatException e) {
+                    return HttpServer.Response.error(400, "Bad Request", "limit is not a number");
                 }
-            } catch (Throwable tr) {
-                if (logging) logger.warning("Could not start http server: " + tr);
+                return HttpServer.Response.ok("application/json", chargeSessions.json(Math.max(0, Math.min(limit, MAX_SESSIONS_LISTED))));
+            } else if (path.startsWith("/api/status")) {
+                return HttpServer.Response.ok("application/json", snapshot.get().json());
+            } else if (path.startsWith("/api/stream")) {
+                return HttpServer.Response.stream();  // sma and twc events, see publishEvent
             }
+            return HttpServer.Response.ok("text/plain", snapshot.get().text());
+        }
+    }
+
+    public static void setLogging(boolean on) {
+        // off keeps warnings, everything else is filtered before a LogRecord is even created
+        logging = on;
+        logger.setLevel(on ? Level.INFO : Level.WARNING);
+    }
+
+    public static String renderHistory(String path, boolean json) {
+        // /history/grid or /history/charger, with optional tier=raw|1m|15m, from and to in epoch ms, format=json|csv
+        // throws NumberFormatException when from or to is not a number
+        int query = path.indexOf('?');
+        String series = path.substring("/history/".length(), (query == -1) ? path.length() : query);
+        TimeSeries timeSeries = "charger".equals(series) ? chargerHistory : gridHistory;
+        String tier = queryParameter(path, "tier", "raw");
+        long defaultSpan = "15m".equals(tier) ? 7 * 24 * 3600000L : ("1m".equals(tier) ? 24 * 3600000L : 3600000L);
+        long to = Long.parseLong(queryParameter(path, "to", String.valueOf(System.currentTimeMillis())).trim());
+        long from = Long.parseLong(queryParameter(path, "from", String.valueOf(to - defaultSpan)).trim());
+        return timeSeries.render(tier, from, to, json);
+    }
+
+    public static String queryParameter(String path, String name, String defaultValue) {
+        int query = path.indexOf('?');
+        if (query == -1) return defaultValue;
+        for (String parameter : path.substring(query + 1).split("&")) {
+            int equals = parameter.indexOf('=');
+            if ((equals != -1) && parameter.substring(0, equals).equals(name)) return parameter.substring(equals + 1);
         }
+        return defaultValue;
     }
 
     public static String getIpAddress() {
@@ -624,25 +1041,36 @@ public class Main {
         }
     }
 
+    static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
+
     public static String byteArrayToHexString(byte[] bytes) {
         if (bytes == null) return "";
-        final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
-        char[] hexChars = new char[bytes.length * 2];
-        for (int j = 0; j < bytes.length; j++) {
-            int v = bytes[j] & 0xFF;
+        return byteArrayToHexString(bytes, 0, bytes.length);
+    }
+
+    public static String byteArrayToHexString(byte[] bytes, int offset, int length) {
+        char[] hexChars = new char[length * 2];
+        for (int j = 0; j < length; j++) {
+            int v = bytes[offset + j] & 0xFF;
             hexChars[j * 2] = HEX_ARRAY[v >>> 4];
             hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
         }
         return new String(hexChars);
     }
 
+    public static String byteToHexString(int v) {
+        return new String(new char[]{HEX_ARRAY[(v >>> 4) & 0x0F], HEX_ARRAY[v & 0x0F]});
+    }
+
     public static byte[] hexStringToByteArray(String hex) {
         hex = hex.length() % 2 != 0 ? "0" + hex : hex;
         byte[] b = new byte[hex.length() / 2];
         for (int i = 0; i < b.length; i++) {
             int index = i * 2;
-            int v = Integer.parseInt(hex.substring(index, index + 2), 16);
-            b[i] = (byte) v;
+            int high = Character.digit(hex.charAt(index), 16);
+            int low = Character.digit(hex.charAt(index + 1), 16);
+            if ((high < 0) || (low < 0)) throw new IllegalArgumentException("Not a hex string: " + hex);
+            b[i] = (byte) ((high << 4) + low);
         }
         return b;
     }
@@ -3,6 +3,8 @@ package com.company;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Collections;
+
 import static com.company.Main.*;
 
 public class MainTest {
@@ -42,6 +44,73 @@ public class MainTest {
         Assert.assertEquals("FDE2638895DBDD000EE",escapeBlock("FDE2638895DB000EE"));
     }
 
+    @Test
+    public void hexStringToByteArrayTest() {
+        Assert.assertArrayEquals(new byte[]{(byte) 0xC0, (byte) 0xFD, 0x0E}, hexStringToByteArray("C0fd0E"));
+        Assert.assertArrayEquals(new byte[]{0x0A}, hexStringToByteArray("A"));
+        for (String bad : new String[]{"C0FG", "C0 FD", "-1"}) {
+            try {
+                hexStringToByteArray(bad);
+                Assert.fail(bad + " is not hex");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void sessionsLimitTest() {
+        // a limit that is not a number is a bad request, any number is kept within 0..MAX_SESSIONS_LISTED
+        for (String limit : new String[]{"x", "", "99999999999"}) Assert.assertEquals(limit, 400, get("/api/sessions?limit=" + limit).status);
+        for (String limit : new String[]{"-5", "0", "10", "2147483647"}) Assert.assertEquals(limit, 200, get("/api/sessions?limit=" + limit).status);
+    }
+
+    @Test
+    public void historyRangeTest() {
+        for (String query : new String[]{"from=x", "to=", "from=1&to=1e12"}) Assert.assertEquals(query, 400, get("/history/grid?" + query).status);
+        Assert.assertEquals(200, get("/history/grid?from=0&to=1000&format=csv").status);
+    }
+
+    private static HttpServer.Response get(String path) {
+        return WebServer.handle(new HttpServer.Request("GET", path, Collections.<String, String>emptyMap(), ""));
+    }
+
+    @Test
+    public void roundTripPerBusTest() throws Exception {
+        // a frame is timed against the last send on its own bus: 30 ms here, not the 20 ms since the send on the other bus
+        ClockTestSupport testClock = new ClockTestSupport();
+        clock = testClock;
+        MemoryBus first = new MemoryBus();
+        MemoryBus second = new MemoryBus();
+        MemoryBus.Endpoint a = first.attach("a");
+        MemoryBus.Endpoint b = second.attach("b");
+        MemoryBus.Endpoint slave = first.attach("slave");
+        TwcReceiver receiver = new TwcReceiver(a, b);
+        int running = workers.size();
+        receiver.start();
+        try {
+            testClock.nanos = 1000000000L;
+            sendBlock(a, buildBlock("FBE07777638800000000000000000000"));
+            testClock.nanos = 1010000000L;
+            sendBlock(b, buildBlock("FBE07777638900000000000000000000"));
+            testClock.nanos = 1030000000L;
+            byte[] heartbeat = hexStringToByteArray(buildBlock("FDE06388777701051404D200000000") + "FC");
+            slave.write(heartbeat, 0, heartbeat.length);
+            TwcMessage received = getNextMessage(receiver);
+            Assert.assertNotNull(received);
+            Assert.assertSame(a, received.bus);
+            Assert.assertEquals(30000000L, lastResponseNanos);
+        } finally {
+            while (workers.size() > running) {
+                Thread worker = workers.remove(workers.size() - 1);
+                worker.interrupt();
+                worker.join(2000);
+            }
+            lastSendNanos.remove(a);
+            lastSendNanos.remove(b);
+            clock = TwcClock.SYSTEM;
+        }
+    }
+
     @Test
     public void calculateChecksumTest() {
         Assert.assertEquals("B1",calculateChecksum("FDE06388777709051404D200000000"));
@@ -57,4 +126,18 @@ public class MainTest {
         Assert.assertEquals(32.0,decodeAmps("0C80"),0);
         Assert.assertEquals(28.66,decodeAmps("0B32"),0);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void availableAmpsTest() {
+        setLogging(false);
+        ControlSettings total = ControlSettings.DEFAULTS.withMaxPowerFromMains(10000.0);
+        Assert.assertEquals(7, availableAmps(total, 5000.0, new double[]{20.0, 1.0, 1.0}));
+        // one phase near its breaker decides, even with plenty of room on the total
+        ControlSettings phase = total.withPhaseLimitAmps(25);
+        Assert.assertEquals(4, availableAmps(phase, 5000.0, new double[]{20.5, 1.0, 1.0}));
+        Assert.assertEquals(-3, availableAmps(phase, 5000.0, new double[]{1.0, 28.0, 1.0}));
+        Assert.assertEquals(7, availableAmps(phase, 5000.0, new double[]{10.0, 10.0, -5.0}));
+        Assert.assertEquals(7, availableAmps(phase, 5000.0, null));  // no phase data from the meter yet
+        setLogging(true);
+    }
+}
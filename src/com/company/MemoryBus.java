@@ -0,0 +1,98 @@
+package com.company;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// In-memory stand-in for an RS485 bus: what one endpoint writes is received by every other endpoint
+// Used to connect the controller to simulated slaves, two endpoints make a simple loopback pair
+public class MemoryBus {
+
+    static final int BUFFER_SIZE = 65536;
+
+    private final List<Endpoint> endpoints = new CopyOnWriteArrayList<>();
+
+    public Endpoint attach(String name) {
+        Endpoint endpoint = new Endpoint(name);
+        endpoints.add(endpoint);
+        return endpoint;
+    }
+
+    public class Endpoint implements TwcTransport {
+
+        private final String name;
+        private final byte[] inbound = new byte[BUFFER_SIZE];
+        private int head = 0;  // next byte to read
+        private int count = 0;
+        private boolean closed = false;
+        long overflows = 0;
+
+        Endpoint(String name) {
+            this.name = name;
+        }
+
+        private synchronized void deliver(byte[] buffer, int offset, int length) {
+            for (int i = 0; i < length; i++) {
+                if (count == inbound.length) {
+                    // nobody is reading, like a real UART the oldest bytes are lost
+                    head = (head + 1) % inbound.length;
+                    count--;
+                    overflows++;
+                }
+                inbound[(head + count) % inbound.length] = buffer[offset + i];
+                count++;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            long deadline = System.nanoTime() + READ_TIMEOUT_MS * 1000000L;
+            while ((count == 0) && !closed) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) return 0;
+                try {
+                    wait(wait / 1000000L, (int) (wait % 1000000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            }
+            if (closed) return -1;
+            int n = Math.min(length, count);
+            for (int i = 0; i < n; i++) {
+                buffer[offset + i] = inbound[head];
+                head = (head + 1) % inbound.length;
+            }
+            count -= n;
+            return n;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            synchronized (this) {
+                if (closed) throw new IOException(name + " is closed");
+            }
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint != this) endpoint.deliver(buffer, offset, length);
+            }
+        }
+
+        @Override
+        public boolean reopen() {
+            return !closed;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            endpoints.remove(this);
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.company;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// Registry of counters, gauges and latency histograms, rendered at /metrics in the Prometheus text format
+// Counters and histograms are updated on the hot paths without locks, gauges and counters that already exist elsewhere
+// (the receiver, the heartbeat scheduler, the log handler) are registered as functions and only read when scraped
+// Registering a name again replaces the old one, so a new receiver after a restart takes over its counters
+public class Metrics {
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    private static final class Entry {
+        final String type;
+        final String help;
+        final Object source;  // LongSupplier, DoubleSupplier, Labelled or LatencyHistogram
+
+        Entry(String type, String help, Object source) {
+            this.type = type;
+            this.help = help;
+            this.source = source;
+        }
+    }
+
+    private static final class Labelled {
+        final String label;
+        final Supplier<Map<String, Double>> values;
+
+        Labelled(String label, Supplier<Map<String, Double>> values) {
+            this.label = label;
+            this.values = values;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentSkipListMap<>();
+
+    public Counter counter(String name, String help) {
+        Counter counter = new Counter();
+        entries.put(name, new Entry("counter", help, (LongSupplier) counter::get));
+        return counter;
+    }
+
+    public void counter(String name, String help, LongSupplier value) {
+        entries.put(name, new Entry("counter", help, value));
+    }
+
+    public void gauge(String name, String help, DoubleSupplier value) {
+        entries.put(name, new Entry("gauge", help, value));
+    }
+
+    public void gauges(String name, String help, String label, Supplier<Map<String, Double>> values) {
+        // one gauge per key of the map, for things that come and go like the devices on the network
+        entries.put(name, new Entry("gauge", help, new Labelled(label, values)));
+    }
+
+    public LatencyHistogram histogram(String name, String help) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        entries.put(name, new Entry("histogram", help, histogram));
+        return histogram;
+    }
+
+    public String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            String name = e.getKey();
+            Entry entry = e.getValue();
+            sb.append("# HELP ").append(name).append(' ').append(entry.help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(entry.type).append('\n');
+            if (entry.source instanceof LongSupplier) {
+                sb.append(name).append(' ').append(((LongSupplier) entry.source).getAsLong()).append('\n');
+            } else if (entry.source instanceof DoubleSupplier) {
+                sb.append(name).append(' ').append(((DoubleSupplier) entry.source).getAsDouble()).append('\n');
+            } else if (entry.source instanceof Labelled) {
+                Labelled labelled = (Labelled) entry.source;
+                for (Map.Entry<String, Double> value : labelled.values.get().entrySet()) {
+                    sb.append(name).append('{').append(labelled.label).append("=\"").append(value.getKey()).append("\"} ").append(value.getValue()).append('\n');
+                }
+            } else {
+                LatencyHistogram histogram = (LatencyHistogram) entry.source;
+                long count = histogram.count();  // read first, buckets can only have grown since
+                for (double bound : LatencyHistogram.EXPORT_BOUNDS_SECONDS) {
+                    sb.append(name).append("_bucket{le=\"").append(BigDecimal.valueOf(bound).toPlainString()).append("\"} ").append(Math.min(count, histogram.countUpTo(bound))).append('\n');
+                }
+                sb.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+                sb.append(name).append("_sum ").append(histogram.sumNanos() / 1e9).append('\n');
+                sb.append(name).append("_count ").append(count).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
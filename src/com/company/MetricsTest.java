@@ -0,0 +1,45 @@
+package com.company;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void histogramBucketsTest() {
+        for (long micros = 0; micros < 100000; micros += 7) {
+            int bucket = LatencyHistogram.bucket(micros);
+            Assert.assertTrue(micros < LatencyHistogram.upperMicros(bucket));
+            Assert.assertTrue((bucket == 0) || (micros >= LatencyHistogram.upperMicros(bucket - 1)));
+            Assert.assertTrue(LatencyHistogram.upperMicros(bucket) - 1 <= Math.max(micros * 1.125, micros + 1));
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) histogram.record(i * 1000000L);  // 1 to 100 ms
+        Assert.assertEquals(100, histogram.count());
+        Assert.assertEquals(100000000L, histogram.maxNanos());
+        long p50 = histogram.percentileNanos(50);
+        Assert.assertTrue(p50 >= 50000000L && p50 <= 50000000L * 1.125);
+        Assert.assertEquals(10, histogram.countUpTo(0.01));  // 10 ms itself is counted
+        Assert.assertEquals(0, histogram.countUpTo(0.0005));
+        Assert.assertEquals(1, histogram.countUpTo(0.001));
+        Assert.assertEquals(100, histogram.countUpTo(0.25));
+    }
+
+    @Test
+    public void prometheusFormatTest() {
+        Metrics metrics = new Metrics();
+        Metrics.Counter counter = metrics.counter("b_total", "A counter");
+        counter.add(41);
+        counter.inc();
+        metrics.gauge("a_value", "A gauge", () -> 1.5);
+        metrics.histogram("c_seconds", "A histogram").record(2000000L);
+        metrics.gauges("d_watts", "Labelled gauges", "serial", () -> java.util.Collections.singletonMap("1234", 2.0));
+        String text = metrics.render();
+        Assert.assertTrue(text.startsWith("# HELP a_value A gauge\n# TYPE a_value gauge\na_value 1.5\n"));
+        Assert.assertTrue(text.contains("# TYPE b_total counter\nb_total 42\n"));
+        Assert.assertTrue(text.contains("c_seconds_bucket{le=\"0.001\"} 0\n"));
+        Assert.assertTrue(text.contains("c_seconds_bucket{le=\"0.0025\"} 1\n"));
+        Assert.assertTrue(text.contains("c_seconds_bucket{le=\"+Inf\"} 1\nc_seconds_sum 0.002\nc_seconds_count 1\n"));
+        Assert.assertTrue(text.contains("# TYPE d_watts gauge\nd_watts{serial=\"1234\"} 2.0\n"));
+    }
+}
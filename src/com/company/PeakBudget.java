@@ -0,0 +1,133 @@
+package com.company;
+
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+
+// Quarter hour budget for the capacity tariff: the grid operator bills the highest 15 minute average power of the month
+// Every grid sample adds its energy to the running quarter hour, aligned to :00, :15, :30 and :45 on the wall clock
+// Only what is taken from the grid counts: the tariff bills the offtake, injection by the solar panels does not make up for it
+// The target is peak_target_watts or the month peak so far when that is higher, a quarter under the month peak costs nothing extra
+// allowedWatts is the energy left in the quarter spread over the time left plus one update interval: the cars keep drawing
+// that long before the next update can take the current down. Used as planned, the allowance goes down towards the end of the quarter,
+// a quarter that started quiet leaves room for more than the target at the end
+// The SMA thread adds the samples, the control loop and the web server read, hence synchronized
+public final class PeakBudget {
+
+    static final long QUARTER_MS = 15 * 60 * 1000L;
+
+    private final ZoneId zone;
+    private boolean hasSample = false;
+    private long windowStart;  // ms, start of the running quarter hour
+    private double energyJoules;  // taken from the grid in the running quarter hour, up to lastMillis
+    private long lastMillis;
+    private double lastWatts;  // counted until the next sample
+    private YearMonth month;  // of the running quarter hour
+    private double monthPeakWatts;  // highest quarter hour average of month
+    private double lastQuarterWatts;
+
+    PeakBudget(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    public synchronized void onGridSample(long millis, double gridWatts) {
+        double watts = Math.max(0.0, gridWatts);  // injection is 0 W of offtake
+        if (!hasSample || (millis - lastMillis > QUARTER_MS)) {
+            // at the start, or after a long silence, the quarter so far is taken at this power
+            startWindow(millis - Math.floorMod(millis, QUARTER_MS));
+            energyJoules = watts * (millis - windowStart) / 1000.0;
+            hasSample = true;
+        } else if (millis > lastMillis) {
+            long from = lastMillis;
+            while (millis >= windowStart + QUARTER_MS) {
+                long end = windowStart + QUARTER_MS;
+                energyJoules += lastWatts * (end - from) / 1000.0;
+                closeWindow();
+                startWindow(end);
+                from = end;
+            }
+            energyJoules += lastWatts * (millis - from) / 1000.0;
+        }
+        if (millis >= lastMillis) lastMillis = millis;  // a clock set back only loses the samples until it catches up
+        lastWatts = watts;
+    }
+
+    private void startWindow(long start) {
+        windowStart = start;
+        energyJoules = 0.0;
+        YearMonth m = YearMonth.from(Instant.ofEpochMilli(start).atZone(zone));
+        if (!m.equals(month)) {
+            if ((month != null) && (Main.logging)) Main.logger.info("New month, peak of " + month + " was " + Math.round(monthPeakWatts) + " W");
+            month = m;
+            monthPeakWatts = 0.0;
+        }
+    }
+
+    private void closeWindow() {
+        lastQuarterWatts = energyJoules / (QUARTER_MS / 1000.0);
+        if (lastQuarterWatts > monthPeakWatts) {
+            monthPeakWatts = lastQuarterWatts;
+            if (Main.logging) Main.logger.info("New month peak " + Math.round(monthPeakWatts) + " W in the quarter hour from " + ControllerSnapshot.TIME_STAMP.format(Instant.ofEpochMilli(windowStart)));
+        }
+    }
+
+    synchronized void restore(String savedMonth, double watts, long millis) {
+        // month peak from the session state, only if it is of the month of millis, and only before the first sample
+        if (hasSample || (savedMonth == null) || savedMonth.isEmpty()) return;
+        YearMonth saved;
+        try {
+            saved = YearMonth.parse(savedMonth);
+        } catch (DateTimeParseException e) {
+            if (Main.logging) Main.logger.warning("Month peak of '" + savedMonth + "' in the session state not used: " + e.getMessage());
+            return;
+        }
+        if (!saved.equals(YearMonth.from(Instant.ofEpochMilli(millis).atZone(zone)))) return;
+        month = saved;
+        monthPeakWatts = watts;
+    }
+
+    public synchronized double allowedWatts(long millis, double targetWatts, int reactionSec) {
+        // grid power that keeps the running quarter hour under the target, infinite before the first sample
+        if (!hasSample) return Double.POSITIVE_INFINITY;
+        long now = Math.max(millis, lastMillis);
+        long end = windowStart + QUARTER_MS;
+        double used = energyJoules + lastWatts * (Math.min(now, end) - lastMillis) / 1000.0;
+        double secondsLeft = Math.max(0, end - now) / 1000.0;
+        return (targetWatts(targetWatts) * QUARTER_MS / 1000.0 - used) / (secondsLeft + reactionSec);
+    }
+
+    public synchronized double targetWatts(double targetWatts) {
+        return Math.max(targetWatts, monthPeakWatts);
+    }
+
+    public synchronized boolean hasSample() {
+        return hasSample;
+    }
+
+    public synchronized long windowStart() {
+        return windowStart;
+    }
+
+    public synchronized double energyWattHours() {
+        return energyJoules / 3600.0;
+    }
+
+    public synchronized double averageWatts() {
+        // of the running quarter hour up to the last sample
+        long elapsed = lastMillis - windowStart;
+        return (elapsed <= 0) ? lastWatts : energyJoules * 1000.0 / elapsed;
+    }
+
+    public synchronized double lastQuarterWatts() {
+        return lastQuarterWatts;
+    }
+
+    public synchronized String month() {
+        return (month == null) ? "" : month.toString();
+    }
+
+    public synchronized double monthPeakWatts() {
+        return monthPeakWatts;
+    }
+}
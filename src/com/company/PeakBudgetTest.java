@@ -0,0 +1,85 @@
+package com.company;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+public class PeakBudgetTest {
+
+    @After
+    public void cleanUp() {
+        Main.setLogging(true);
+    }
+
+    @Test
+    public void quarterHourTest() {
+        Main.setLogging(false);
+        PeakBudget budget = new PeakBudget(ZoneOffset.UTC);
+        long start = Instant.parse("2026-10-18T10:00:00Z").toEpochMilli();
+        Assert.assertEquals(Double.POSITIVE_INFINITY, budget.allowedWatts(start, 4000.0, 60), 0.0);
+        // 2000 W for 7.5 minutes, a sample every second
+        for (int second = 0; second <= 450; second++) budget.onGridSample(start + second * 1000L, 2000.0);
+        Assert.assertEquals(start, budget.windowStart());
+        Assert.assertEquals(250.0, budget.energyWattHours(), 1e-9);
+        Assert.assertEquals(2000.0, budget.averageWatts(), 1e-9);
+        // 1000 Wh for the quarter, 250 used: 750 Wh over the 450 s left and one update of 60 s
+        Assert.assertEquals(2700000.0 / 510.0, budget.allowedWatts(start + 450000L, 4000.0, 60), 1e-6);
+        // a quarter that goes on as planned leaves less and less at the end
+        Assert.assertTrue(budget.allowedWatts(start + 450000L, 2000.0, 60) < 2000.0);
+        // 6000 W for the rest of the quarter, the sample at 10:15:00 closes it
+        for (int second = 451; second <= 900; second++) budget.onGridSample(start + second * 1000L, 6000.0);
+        Assert.assertEquals(start + PeakBudget.QUARTER_MS, budget.windowStart());
+        Assert.assertEquals(4000.0 - 4000.0 / 900, budget.lastQuarterWatts(), 1e-6);  // the second after the sample at 7:30 still at 2000 W
+        Assert.assertEquals(budget.lastQuarterWatts(), budget.monthPeakWatts(), 0.0);
+        Assert.assertEquals("2026-10", budget.month());
+        // the month peak is the target when it is higher, a quarter under it costs nothing
+        Assert.assertEquals(budget.monthPeakWatts(), budget.targetWatts(3000.0), 0.0);
+        Assert.assertEquals(5000.0, budget.targetWatts(5000.0), 0.0);
+        // over budget: nothing allowed
+        for (int second = 901; second <= 1700; second++) budget.onGridSample(start + second * 1000L, 9000.0);
+        Assert.assertTrue(budget.allowedWatts(start + 1700000L, 4000.0, 60) < 0);
+    }
+
+    @Test
+    public void injectionTest() {
+        // 5 minutes of 6000 W export and 10 of 6000 W offtake: the quarter is 4000 W, not 2000 W
+        Main.setLogging(false);
+        PeakBudget budget = new PeakBudget(ZoneOffset.UTC);
+        long start = Instant.parse("2026-10-18T12:00:00Z").toEpochMilli();
+        for (int second = 0; second < 300; second++) budget.onGridSample(start + second * 1000L, -6000.0);
+        Assert.assertEquals(0.0, budget.energyWattHours(), 0.0);
+        Assert.assertEquals(0.0, budget.averageWatts(), 0.0);
+        // the whole quarter is still there to use: 1000 Wh over 600 s and an update of 60 s
+        Assert.assertEquals(3600000.0 / 660.0, budget.allowedWatts(start + 300000L, 4000.0, 60), 1e-6);
+        for (int second = 300; second <= 900; second++) budget.onGridSample(start + second * 1000L, 6000.0);
+        Assert.assertEquals(4000.0, budget.lastQuarterWatts(), 1e-6);
+        Assert.assertEquals(4000.0, budget.monthPeakWatts(), 1e-6);
+    }
+
+    @Test
+    public void monthTest() {
+        Main.setLogging(false);
+        PeakBudget budget = new PeakBudget(ZoneOffset.UTC);
+        long start = Instant.parse("2026-10-31T23:30:00Z").toEpochMilli();
+        // a peak of another month or one that can't be read is not restored
+        budget.restore("2026-09", 8000.0, start);
+        Assert.assertEquals(0.0, budget.monthPeakWatts(), 0.0);
+        budget.restore("10/2026", 8000.0, start);
+        Assert.assertEquals("", budget.month());
+        budget.restore("2026-10", 5000.0, start);
+        budget.onGridSample(start + 300000L, 1000.0);  // 23:35, the first 5 minutes are taken at the same power
+        Assert.assertEquals(1000.0 * 300 / 3600, budget.energyWattHours(), 1e-9);
+        Assert.assertEquals(5000.0, budget.monthPeakWatts(), 0.0);
+        for (long t = start + 301000L; t <= start + 30 * 60000L; t += 1000L) budget.onGridSample(t, 7000.0);
+        // 23:45 to 00:00 was the peak of October, November starts from nothing
+        Assert.assertEquals(7000.0, budget.lastQuarterWatts(), 1e-6);
+        Assert.assertEquals("2026-11", budget.month());
+        Assert.assertEquals(0.0, budget.monthPeakWatts(), 0.0);
+        // a restore after the first sample changes nothing
+        budget.restore("2026-11", 9000.0, start + 30 * 60000L);
+        Assert.assertEquals(0.0, budget.monthPeakWatts(), 0.0);
+    }
+}
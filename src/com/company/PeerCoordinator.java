@@ -0,0 +1,201 @@
+package com.company;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.company.Main.*;
+
+// Several controllers behind one grid connection (garage and carport, each with its own Pi and TWC)
+// They all read the same SMA meter, on their own each one would take all of the room under the limit for itself
+// Every instance multicasts an announcement after each packet of the main meter: its node id, the current its chargers are set to
+// and use, and what they could take (demand, 0 without a car). From the announcements every instance works out the same split:
+// the site current is the room under the limit plus what all nodes use now, it is shared out fair over the demands
+// An instance's share is its lease: it never goes above it, and never takes amps another node still has set, those come free
+// with that node's next announcement, so two nodes never count on the same amps
+// A node that is silent for LEASE_NANOS is left out, the others get its share
+// An announcement is one line of text: TWCPEER 1 <node> <seq> <setAmps> <usedAmps> <demandAmps>
+public class PeerCoordinator implements Runnable {
+
+    static final String MAGIC = "TWCPEER 1";
+    static final long LEASE_NANOS = 3000000000L;  // three missed meter packets
+
+    public static final class Peer {
+        final String node;
+        final long seq;
+        final int setAmps;
+        final double usedAmps;
+        final int demandAmps;
+        final long seenNanos;
+
+        Peer(String node, long seq, int setAmps, double usedAmps, int demandAmps, long seenNanos) {
+            this.node = node;
+            this.seq = seq;
+            this.setAmps = setAmps;
+            this.usedAmps = usedAmps;
+            this.demandAmps = demandAmps;
+            this.seenNanos = seenNanos;
+        }
+    }
+
+    final String node;
+    private final InetSocketAddress group;
+    private final String interfaceName;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private volatile MulticastSocket socket;
+    private volatile boolean closed = false;
+    private long seq = 0;
+    private volatile int setAmps;  // ours, from the control loop
+    private volatile double usedAmps;
+    private volatile int demandAmps;
+    volatile long announcementsSent = 0;
+    volatile long announcementsReceived = 0;
+    volatile double lastShareAmps = Double.NaN;  // what the last leaseAmps gave us, for the status page
+
+    PeerCoordinator(String address, String interfaceName) throws IOException {
+        // address is group:port
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("peer_group " + address + " needs a port, like 239.12.255.253:9524");
+        this.group = new InetSocketAddress(InetAddress.getByName(address.substring(0, colon).trim()), Integer.parseInt(address.substring(colon + 1).trim()));
+        this.interfaceName = interfaceName;
+        this.node = String.format("%08X", ThreadLocalRandom.current().nextInt());
+    }
+
+    @Override
+    public void run() {
+        // receive side, reopens the socket after an error like the SMA thread does
+        byte[] buffer = new byte[256];
+        DatagramPacket data = new DatagramPacket(buffer, buffer.length);
+        while (!programStopCalled && !closed && !Thread.currentThread().isInterrupted()) {
+            try (MulticastSocket mcSocket = new MulticastSocket(group.getPort())) {
+                NetworkInterface netIf = interfaceName.isEmpty() ? null : NetworkInterface.getByName(interfaceName);
+                if (netIf != null) mcSocket.setNetworkInterface(netIf);
+                mcSocket.joinGroup(group, netIf);
+                mcSocket.setSoTimeout(1000);
+                socket = mcSocket;
+                if (logging) logger.info("Peers: node " + node + " on " + group);
+                while (!programStopCalled && !Thread.currentThread().isInterrupted()) {
+                    try {
+                        mcSocket.receive(data);
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    receive(new String(buffer, 0, data.getLength(), StandardCharsets.US_ASCII), clock.nanoTime());
+                }
+            } catch (IOException e) {
+                if (programStopCalled || closed) break;
+                logger.warning("Peers: multicast failed, reopening: " + e.getMessage());
+                clock.parkNanos(1000000000L);
+            } finally {
+                socket = null;
+            }
+        }
+    }
+
+    void receive(String line, long nanos) {
+        String[] fields = line.trim().split(" ");
+        if ((fields.length != 7) || !line.startsWith(MAGIC) || fields[2].equals(node)) return;  // our own comes back on the group
+        try {
+            Peer peer = new Peer(fields[2], Long.parseLong(fields[3]), Integer.parseInt(fields[4]), Double.parseDouble(fields[5]), Integer.parseInt(fields[6]), nanos);
+            Peer previous = peers.put(peer.node, peer);
+            announcementsReceived++;
+            if ((previous == null) && logging) logger.info("Peers: node " + peer.node + " joined, " + peers.size() + " other node(s)");
+        } catch (NumberFormatException e) {
+            if (logging) logger.warning("Peers: bad announcement " + line);
+        }
+    }
+
+    public void update(int set, double used, int demand) {
+        // control loop: our own state, goes out with the next announcement
+        setAmps = set;
+        usedAmps = Math.max(0.0, used);
+        demandAmps = demand;
+    }
+
+    public void announce() {
+        // SMA thread, after every packet of the main meter
+        MulticastSocket s = socket;
+        if (s == null) return;
+        byte[] bytes = announcement().getBytes(StandardCharsets.US_ASCII);
+        try {
+            s.send(new DatagramPacket(bytes, bytes.length, group));
+            announcementsSent++;
+        } catch (IOException e) {
+            if (logging) logger.warning("Peers: announcement failed: " + e.getMessage());
+        }
+    }
+
+    synchronized String announcement() {
+        return MAGIC + " " + node + " " + (++seq) + " " + setAmps + " " + usedAmps + " " + demandAmps;
+    }
+
+    public List<Peer> live(long nanos) {
+        // the other nodes heard from within the lease time, sorted by node id; silent ones are dropped here
+        List<Peer> list = new ArrayList<>();
+        for (Peer peer : peers.values()) {
+            if (nanos - peer.seenNanos > LEASE_NANOS) {
+                if (peers.remove(peer.node, peer)) logger.warning("Peers: node " + peer.node + " silent, its lease is shared out");
+            } else {
+                list.add(peer);
+            }
+        }
+        list.sort((a, b) -> a.node.compareTo(b.node));
+        return list;
+    }
+
+    public int leaseAmps(double roomAmps, long nanos) {
+        // the most our chargers may be set to: our fair share of the site current, less what others still have set
+        List<Peer> others = live(nanos);
+        double site = roomAmps + usedAmps;
+        int othersSet = 0;
+        List<Integer> demands = new ArrayList<>();
+        demands.add(demandAmps);
+        for (Peer peer : others) {
+            site += peer.usedAmps;
+            othersSet += peer.setAmps;
+            demands.add(peer.demandAmps);
+        }
+        double share = shares(site, demands)[0];
+        lastShareAmps = share;
+        return (int) Math.max(0, Math.floor(Math.min(share, site - othersSet)));
+    }
+
+    static double[] shares(double total, List<Integer> demands) {
+        // water filling: nobody gets more than its demand, what one can't use is split over the rest
+        double[] result = new double[demands.size()];
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < demands.size(); i++) order.add(i);
+        order.sort((a, b) -> Integer.compare(demands.get(a), demands.get(b)));
+        double left = Math.max(0.0, total);
+        for (int k = 0; k < order.size(); k++) {
+            int i = order.get(k);
+            double fair = left / (order.size() - k);
+            result[i] = Math.min(demands.get(i), fair);
+            left -= result[i];
+        }
+        return result;
+    }
+
+    public List<Peer> peers() {
+        List<Peer> list = new ArrayList<>(peers.values());
+        list.sort((a, b) -> a.node.compareTo(b.node));
+        return Collections.unmodifiableList(list);
+    }
+
+    public void close() {
+        closed = true;
+        MulticastSocket s = socket;
+        if (s != null) s.close();
+    }
+}
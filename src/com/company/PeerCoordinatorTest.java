@@ -0,0 +1,78 @@
+package com.company;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+public class PeerCoordinatorTest {
+
+    static final String GROUP = "239.12.255.253:9525";
+
+    @After
+    public void cleanUp() {
+        Main.setLogging(true);
+    }
+
+    @Test
+    public void sharesTest() {
+        Assert.assertArrayEquals(new double[]{8.0, 8.0, 0.0}, PeerCoordinator.shares(16.0, Arrays.asList(24, 24, 0)), 1e-9);
+        Assert.assertArrayEquals(new double[]{5.0, 12.5, 12.5}, PeerCoordinator.shares(30.0, Arrays.asList(5, 24, 24)), 1e-9);
+        Assert.assertArrayEquals(new double[]{0.0, 0.0}, PeerCoordinator.shares(-3.0, Arrays.asList(24, 24)), 1e-9);
+    }
+
+    @Test
+    public void threeNodesTest() throws Exception {
+        // three controllers on loopback: garage charging at 10 A, carport with a car that gets nothing yet, a third without a car
+        Main.setLogging(false);
+        PeerCoordinator garage = new PeerCoordinator(GROUP, "lo");
+        PeerCoordinator carport = new PeerCoordinator(GROUP, "lo");
+        PeerCoordinator shed = new PeerCoordinator(GROUP, "lo");
+        Thread[] threads = {new Thread(garage, "test-peer-1"), new Thread(carport, "test-peer-2"), new Thread(shed, "test-peer-3")};
+        for (Thread thread : threads) thread.start();
+        try {
+            garage.update(10, 10.0, 24);
+            carport.update(0, 0.0, 24);
+            shed.update(0, 0.0, 0);
+            // everybody announces once, like after a meter packet
+            waitFor(() -> {
+                garage.announce();
+                carport.announce();
+                shed.announce();
+                return (garage.peers().size() == 2) && (carport.peers().size() == 2) && (shed.peers().size() == 2);
+            });
+            // 6 A room under the limit plus the 10 A the garage uses, 8 A each for the two cars
+            long now = Main.clock.nanoTime();
+            Assert.assertEquals(8, garage.leaseAmps(6.0, now));  // the garage has to come down to 8 A
+            Assert.assertEquals(6, carport.leaseAmps(6.0, now));  // 2 A of its share are still set on the garage
+            Assert.assertEquals(0, shed.leaseAmps(6.0, now));
+            // with the next announcement of the garage the carport gets its full share
+            garage.update(8, 10.0, 24);
+            garage.announce();
+            waitFor(() -> carport.leaseAmps(6.0, Main.clock.nanoTime()) == 8);
+            // the garage goes silent: after the lease time the carport has the site to itself
+            garage.close();
+            threads[0].interrupt();
+            threads[0].join(3000);
+            carport.update(8, 8.0, 24);
+            Assert.assertEquals(8, carport.leaseAmps(-2.0, Main.clock.nanoTime()));  // room -2 plus 8 + 10 used, still 8 A each
+            Assert.assertEquals(16, carport.leaseAmps(8.0, Main.clock.nanoTime() + PeerCoordinator.LEASE_NANOS + 1000000L));
+            Assert.assertEquals(0, carport.peers().size());  // the shed went quiet as well, without a car it made no difference
+        } finally {
+            for (PeerCoordinator coordinator : new PeerCoordinator[]{garage, carport, shed}) coordinator.close();
+            for (Thread thread : threads) thread.interrupt();
+            for (Thread thread : threads) thread.join(3000);
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        // a meter sample period at most
+        long deadline = System.nanoTime() + 1000000000L;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue("not within one meter period", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.company;
+
+import static com.company.Main.*;
+
+// Controller that follows the limit closely: a PI controller on a filtered grid power, meant for an update every few seconds
+// The filter runs over every SMA sample, it follows a rising load 5 times faster than a falling one (filter_sec),
+// so an oven that turns on is seen within a few samples while a short dip does not make the cars speed up
+// The PI works on the room left under the limit in A (see Main.headroomAmps) in velocity form: each update changes the
+// current by KP times the change of the room plus KI times the room itself, limited to ramp_up_amps_per_min going up and
+// back_off_amps_per_min going down
+// Anti-windup: the current is never above what the cars use plus the room on the last unfiltered reading, what the grid allows
+// if they took all of it. So a car that takes less than it is given does not build up a setpoint that overshoots later,
+// and a load that comes on makes the current go down at once, whatever back_off_amps_per_min says
+public class PiController implements ChargeController {
+
+    static final double KP = 0.2;
+    static final double KI = 0.1;  // per second
+    static final double MAX_INTEGRAL_GAIN = 0.8;  // KI times the update interval, above 1 the loop would overshoot every time
+    static final double RISE_FASTER = 5.0;
+
+    private boolean hasSample = false;
+    private double estimateWatts;
+    private long lastSampleNanos;
+    private boolean started = false;
+    private double output;  // A, kept with its fraction, the TWC gets whole amps
+    private double lastError;
+    private long lastUpdateNanos;
+
+    @Override
+    public synchronized void onGridSample(long nanos, double gridWatts) {
+        if (!hasSample) {
+            estimateWatts = gridWatts;
+            hasSample = true;
+        } else {
+            double tau = settings.filterSec / ((gridWatts > estimateWatts) ? RISE_FASTER : 1.0);
+            double dt = Math.max(0, nanos - lastSampleNanos) / 1e9;
+            double alpha = (tau <= 0) ? 1.0 : 1.0 - Math.exp(-dt / tau);
+            estimateWatts += alpha * (gridWatts - estimateWatts);
+        }
+        lastSampleNanos = nanos;
+    }
+
+    synchronized double estimateWatts() {
+        return estimateWatts;
+    }
+
+    @Override
+    public synchronized int update(long nanos, ControlSettings s, int setAmps, int usedAmps, int capAmps) {
+        if (!hasSample) return setAmps;  // nothing from the meter yet
+        double error = headroomAmps(s, estimateWatts, gridPhaseAmps);
+        double dt = started ? (nanos - lastUpdateNanos) / 1e9 : s.updateIntervalSec;
+        if (!started) {
+            output = setAmps;
+            lastError = error;
+            started = true;
+        }
+        double step = KP * (error - lastError) + Math.min(KI * dt, MAX_INTEGRAL_GAIN) * error;
+        step = Math.max(-s.backOffAmpsPerMin * dt / 60.0, Math.min(step, s.rampUpAmpsPerMin * dt / 60.0));
+        output += step;
+        double ceiling = Math.min(capAmps, Math.max(usedAmps, 0) + headroomAmps(s, currentPowerConsumption, gridPhaseAmps));
+        output = Math.max(0.0, Math.min(output, ceiling));
+        lastError = error;
+        lastUpdateNanos = nanos;
+        return (int) Math.floor(output);
+    }
+}
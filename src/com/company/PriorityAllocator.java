@@ -0,0 +1,39 @@
+package com.company;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Fills up the slaves one after the other, in the order of the configured priority list
+// Slaves that are not in the list come last, in the order they announced themselves
+public class PriorityAllocator implements AmpAllocator {
+
+    private final List<String> priority = new ArrayList<>();
+
+    PriorityAllocator(String priorityList) {
+        for (String id : priorityList.split(",")) {
+            if (!id.trim().isEmpty()) priority.add(id.trim().toUpperCase());
+        }
+    }
+
+    @Override
+    public int[] allocate(int totalAmps, List<TwcSlave> slaves) {
+        int n = slaves.size();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Integer.compare(rank(slaves.get(a)), rank(slaves.get(b))));
+        int[] amps = new int[n];
+        int remaining = totalAmps;
+        for (int i : order) {
+            if (remaining < Main.settings.minChargingAmps) break;
+            amps[i] = Math.min(AmpAllocator.capOf(slaves.get(i)), remaining);
+            remaining -= amps[i];
+        }
+        return amps;
+    }
+
+    private int rank(TwcSlave slave) {
+        int rank = priority.indexOf(slave.id.toUpperCase());
+        return (rank == -1) ? priority.size() : rank;
+    }
+}
@@ -0,0 +1,425 @@
+package com.company;
+
+import java.io.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static com.company.Main.*;
+
+// Daily columnar files of the grid samples and the TWC reports, to look back at max_power_from_mains without grepping TWC.log
+// The SMA thread and the control loop only put a row in the columns of the open block, a few array stores
+// A full block (BLOCK_ROWS rows, FLUSH_NANOS old, or the day is over) goes to the archive thread that encodes and writes it
+// One file per day, archive_dir/twc-2026-10-18.twa, made of blocks that are only ever appended:
+//   header: int MAGIC, byte kind, byte columns, int rows, long earliest ms, long latest ms, int raw bytes, int stored bytes
+//   then the deflated columns one after the other, every value as the zigzag varint of its difference to the row before
+// From the header the reader knows the time range and the size, blocks outside the range asked for are skipped unread
+// A block is written in one go through a 64 kB buffer, a crash loses the open blocks and at most a cut off last block
+// Before a block is appended to a day file, the file is read up to the last complete block and truncated there, and a write
+// that fails is cut off again, so new blocks never follow a damaged one. scan stops at a damaged block as at the end of the file
+public class SampleArchive implements Runnable, Closeable {
+
+    static final int MAGIC = 0x54574131;  // "TWA1"
+    static final int HEADER_SIZE = 34;
+    static final int BLOCK_ROWS = 4096;
+    static final long FLUSH_NANOS = 15 * 60 * 1000000000L;
+    static final byte GRID = 'G';  // millis, grid power in 0.1 W, current L1, L2, L3 in mA
+    static final byte REPORT = 'R';  // millis, slave id, status byte, set and used current in 0.01 A
+    static final int GRID_COLUMNS = 5;
+    static final int REPORT_COLUMNS = 5;
+
+    static final class Block {
+        final byte kind;
+        final LocalDate day;
+        final long dayStart;
+        final long dayEnd;
+        final long openedNanos;
+        final long[][] columns;
+        int rows = 0;
+
+        Block(byte kind, long millis, ZoneId zone, int columnCount) {
+            this.kind = kind;
+            this.day = Instant.ofEpochMilli(millis).atZone(zone).toLocalDate();
+            this.dayStart = day.atStartOfDay(zone).toInstant().toEpochMilli();
+            this.dayEnd = day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            this.openedNanos = clock.nanoTime();
+            this.columns = new long[columnCount][BLOCK_ROWS];
+        }
+
+        boolean takes(long millis) {
+            return (rows < BLOCK_ROWS) && (millis >= dayStart) && (millis < dayEnd);
+        }
+
+        void add(long a, long b, long c, long d, long e) {
+            columns[0][rows] = a;
+            columns[1][rows] = b;
+            columns[2][rows] = c;
+            columns[3][rows] = d;
+            columns[4][rows] = e;
+            rows++;
+        }
+    }
+
+    private final File dir;
+    private final ZoneId zone;
+    private final BlockingQueue<Block> sealed = new ArrayBlockingQueue<>(16);
+    private Block grid;  // the open blocks, under this
+    private Block reports;
+    // writer side, under writeLock
+    private final Object writeLock = new Object();
+    private DataOutputStream out;
+    private LocalDate outDay;
+    private long outLength;  // up to the end of the last block written in full
+    private byte[] raw = new byte[64 * 1024];
+    private byte[] packed = new byte[16 * 1024];
+    private final Deflater deflater = new Deflater();
+    volatile long rowsWritten = 0;
+    volatile long bytesWritten = 0;
+    volatile long blocksDropped = 0;
+    volatile long truncatedBytes = 0;
+
+    public SampleArchive(File dir, ZoneId zone) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create archive_dir " + dir);
+        this.dir = dir;
+        this.zone = zone;
+    }
+
+    public synchronized void recordGrid(long millis, int deciWatt, int l1MilliAmps, int l2MilliAmps, int l3MilliAmps) {
+        // SMA thread, every packet of the main meter
+        if ((grid == null) || !grid.takes(millis)) {
+            seal(grid);
+            grid = new Block(GRID, millis, zone, GRID_COLUMNS);
+        }
+        grid.add(millis, deciWatt, l1MilliAmps, l2MilliAmps, l3MilliAmps);
+    }
+
+    public synchronized void recordReport(long millis, String slaveId, int status, double setAmps, double usedAmps) {
+        // control loop, every slave heartbeat; the amps as the heartbeat has them
+        if ((reports == null) || !reports.takes(millis)) {
+            seal(reports);
+            reports = new Block(REPORT, millis, zone, REPORT_COLUMNS);
+        }
+        reports.add(millis, Integer.parseInt(slaveId, 16), status, Math.round(setAmps * 100), Math.round(usedAmps * 100));
+    }
+
+    private void seal(Block block) {
+        if ((block == null) || (block.rows == 0)) return;
+        if (!sealed.offer(block)) blocksDropped++;  // the writer is stuck, better lose a block than the memory
+    }
+
+    private synchronized void sealOlderThan(long nanos) {
+        if ((grid != null) && (nanos - grid.openedNanos >= FLUSH_NANOS)) {
+            seal(grid);
+            grid = null;
+        }
+        if ((reports != null) && (nanos - reports.openedNanos >= FLUSH_NANOS)) {
+            seal(reports);
+            reports = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        // the archive thread: encodes and writes the sealed blocks, so the SD card gets one write per block
+        while (!programStopCalled && !Thread.currentThread().isInterrupted()) {
+            try {
+                Block block = sealed.poll(1, TimeUnit.SECONDS);
+                if (block != null) write(block);
+                sealOlderThan(clock.nanoTime());
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // after the archive thread has stopped: the open blocks are written as well
+        synchronized (this) {
+            seal(grid);
+            seal(reports);
+            grid = null;
+            reports = null;
+        }
+        Block block;
+        while ((block = sealed.poll()) != null) write(block);
+        synchronized (writeLock) {
+            if (out != null) out.close();
+            out = null;
+            deflater.end();
+        }
+    }
+
+    private void write(Block block) {
+        synchronized (writeLock) {
+            try {
+                if (!block.day.equals(outDay) || (out == null)) {
+                    if (out != null) out.close();
+                    out = null;
+                    outDay = block.day;
+                    outLength = truncate(fileFor(dir, outDay));
+                    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileFor(dir, outDay), true), 65536));
+                }
+                int rawLength = encode(block);
+                deflater.reset();
+                deflater.setInput(raw, 0, rawLength);
+                deflater.finish();
+                int stored = 0;
+                while (!deflater.finished()) {
+                    if (stored == packed.length) packed = Arrays.copyOf(packed, packed.length * 2);
+                    stored += deflater.deflate(packed, stored, packed.length - stored);
+                }
+                out.writeInt(MAGIC);
+                out.writeByte(block.kind);
+                out.writeByte(block.columns.length);
+                out.writeInt(block.rows);
+                long earliest = Long.MAX_VALUE;
+                long latest = Long.MIN_VALUE;
+                for (int row = 0; row < block.rows; row++) {
+                    earliest = Math.min(earliest, block.columns[0][row]);
+                    latest = Math.max(latest, block.columns[0][row]);
+                }
+                out.writeLong(earliest);
+                out.writeLong(latest);
+                out.writeInt(rawLength);
+                out.writeInt(stored);
+                out.write(packed, 0, stored);
+                out.flush();
+                outLength += HEADER_SIZE + stored;
+                rowsWritten += block.rows;
+                bytesWritten += HEADER_SIZE + stored;
+            } catch (IOException e) {
+                logger.warning("Archive: could not write to " + dir + ": " + e.getMessage());
+                closeAfterError();
+            }
+        }
+    }
+
+    private void closeAfterError() {
+        // no file descriptor left behind and no half block for the next one to follow, the day file is opened again with the next block
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+        }
+        if (outDay == null) return;
+        try (RandomAccessFile file = new RandomAccessFile(fileFor(dir, outDay), "rw")) {
+            if (file.length() > outLength) file.setLength(outLength);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private long truncate(File file) throws IOException {
+        // what a crash or a failed write left after the last complete block goes, returns the length that is left
+        if (!file.isFile()) return 0;
+        long good = validLength(file);
+        long length = file.length();
+        if (good < length) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(good);
+            }
+            truncatedBytes += length - good;
+            logger.warning("Archive " + file + ": " + (length - good) + " bytes after the last complete block dropped");
+        }
+        return good;
+    }
+
+    static long validLength(File file) throws IOException {
+        // the length up to the end of the last complete block, every block is inflated to be sure it is one
+        long length = file.length();
+        long good = 0;
+        Inflater inflater = new Inflater();
+        byte[] packed = new byte[16 * 1024];
+        byte[] raw = new byte[64 * 1024];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            while (good + HEADER_SIZE <= length) {
+                if (in.readInt() != MAGIC) break;
+                in.readByte();
+                int columnCount = in.readUnsignedByte();
+                int rows = in.readInt();
+                in.readLong();
+                in.readLong();
+                int rawLength = in.readInt();
+                int stored = in.readInt();
+                if (!plausible(columnCount, rows, rawLength, stored) || (good + HEADER_SIZE + stored > length)) break;
+                if (stored > packed.length) packed = new byte[stored];
+                if (rawLength > raw.length) raw = new byte[rawLength];
+                in.readFully(packed, 0, stored);
+                inflater.reset();
+                inflater.setInput(packed, 0, stored);
+                if ((inflater.inflate(raw, 0, rawLength) != rawLength) || !inflater.finished()) break;
+                good += HEADER_SIZE + stored;
+            }
+        } catch (DataFormatException e) {
+            // good is where the damaged block starts
+        } finally {
+            inflater.end();
+        }
+        return good;
+    }
+
+    private static boolean plausible(int columnCount, int rows, int rawLength, int stored) {
+        // a header that write could have written, garbage would have the reader allocate or skip whatever it says
+        return (columnCount > 0) && (columnCount <= 16) && (rows > 0) && (rows <= BLOCK_ROWS)
+                && (rawLength >= 0) && (rawLength <= rows * columnCount * 10) && (stored >= 0) && (stored <= rawLength + 1024);
+    }
+
+    private int encode(Block block) {
+        int n = 0;
+        for (long[] column : block.columns) {
+            long previous = 0;
+            for (int row = 0; row < block.rows; row++) {
+                if (raw.length - n < 10) raw = Arrays.copyOf(raw, raw.length * 2);
+                long delta = column[row] - previous;
+                previous = column[row];
+                long zigzag = (delta << 1) ^ (delta >> 63);
+                while ((zigzag & ~0x7FL) != 0) {
+                    raw[n++] = (byte) ((zigzag & 0x7F) | 0x80);
+                    zigzag >>>= 7;
+                }
+                raw[n++] = (byte) zigzag;
+            }
+        }
+        return n;
+    }
+
+    static File fileFor(File dir, LocalDate day) {
+        return new File(dir, "twc-" + day + ".twa");
+    }
+
+    public interface BlockListener {
+        // the rows of a block within the range, column 0 is the time in ms; the arrays are re-used between calls
+        void onBlock(byte kind, int rows, long[][] columns) throws IOException;
+    }
+
+    public static long[] scan(File dir, LocalDate from, LocalDate to, BlockListener listener) throws IOException {
+        // reads the days from..to (both included) in order, returns the number of blocks read and rows passed on
+        List<File> files = new ArrayList<>();
+        for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+            File file = fileFor(dir, day);
+            if (file.isFile()) files.add(file);
+        }
+        return scan(files, Long.MIN_VALUE, Long.MAX_VALUE, listener);
+    }
+
+    public static long[] scan(List<File> files, long fromMillis, long toMillis, BlockListener listener) throws IOException {
+        // only the rows from fromMillis up to (not including) toMillis, blocks entirely outside are skipped without inflating
+        long[] counts = new long[3];  // blocks read, blocks skipped, rows
+        Inflater inflater = new Inflater();
+        byte[] packed = new byte[16 * 1024];
+        byte[] raw = new byte[64 * 1024];
+        long[][] columns = new long[0][];
+        try {
+            for (File file : files) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+                    while (true) {
+                        // a block cut off by a crash ends the file, a damaged one as well: what follows can't be trusted
+                        byte kind;
+                        int columnCount;
+                        int rows;
+                        try {
+                            int magic;
+                            try {
+                                magic = in.readInt();
+                            } catch (EOFException e) {
+                                break;
+                            }
+                            kind = in.readByte();
+                            columnCount = in.readUnsignedByte();
+                            rows = in.readInt();
+                            long earliest = in.readLong();
+                            long latest = in.readLong();
+                            int rawLength = in.readInt();
+                            int stored = in.readInt();
+                            if ((magic != MAGIC) || !plausible(columnCount, rows, rawLength, stored)) {
+                                logger.warning("Archive " + file + " has a damaged block, the rest of the file is left out");
+                                break;
+                            }
+                            if ((latest < fromMillis) || (earliest >= toMillis)) {
+                                if (!skipFully(in, stored)) break;
+                                counts[1]++;
+                                continue;
+                            }
+                            if (stored > packed.length) packed = new byte[stored];
+                            if (rawLength > raw.length) raw = new byte[rawLength];
+                            in.readFully(packed, 0, stored);
+                            inflater.reset();
+                            inflater.setInput(packed, 0, stored);
+                            if (inflater.inflate(raw, 0, rawLength) != rawLength) throw new DataFormatException("short block");
+                        } catch (EOFException e) {
+                            break;
+                        } catch (DataFormatException e) {
+                            logger.warning("Archive " + file + " has a damaged block, the rest of the file is left out: " + e.getMessage());
+                            break;
+                        }
+                        if ((columns.length != columnCount) || (columns[0].length < rows)) columns = new long[columnCount][Math.max(rows, BLOCK_ROWS)];
+                        decode(raw, columns, rows);
+                        counts[0]++;
+                        int kept = within(columns, rows, fromMillis, toMillis);
+                        counts[2] += kept;
+                        if (kept > 0) listener.onBlock(kind, kept, columns);
+                    }
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        return counts;
+    }
+
+    private static boolean skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) return false;
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+        return true;
+    }
+
+    private static void decode(byte[] raw, long[][] columns, int rows) {
+        int n = 0;
+        for (long[] column : columns) {
+            long previous = 0;
+            for (int row = 0; row < rows; row++) {
+                long zigzag = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = raw[n++];
+                    zigzag |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                column[row] = previous;
+            }
+        }
+    }
+
+    private static int within(long[][] columns, int rows, long fromMillis, long toMillis) {
+        // moves the rows in range to the front, most blocks are in range as a whole
+        int kept = 0;
+        for (int row = 0; row < rows; row++) {
+            long millis = columns[0][row];
+            if ((millis < fromMillis) || (millis >= toMillis)) continue;
+            if (kept != row) {
+                for (long[] column : columns) column[kept] = column[row];
+            }
+            kept++;
+        }
+        return kept;
+    }
+}
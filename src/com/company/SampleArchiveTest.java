@@ -0,0 +1,91 @@
+package com.company;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SampleArchiveTest {
+
+    static final ZoneId ZONE = ZoneId.of("Europe/Brussels");
+
+    @Test
+    public void roundTripTest() throws Exception {
+        // grid samples every second from 23:00 to 01:00 and a report every 2 seconds: two files, full blocks and open ones
+        File dir = Files.createTempDirectory("twc-archive").toFile();
+        long start = LocalDate.of(2026, 3, 28).atTime(23, 0).atZone(ZONE).toInstant().toEpochMilli();
+        try {
+            SampleArchive archive = new SampleArchive(dir, ZONE);
+            for (int second = 0; second < 7200; second++) {
+                long millis = start + second * 1000L + (second % 7);
+                archive.recordGrid(millis, 50000 + (second % 100) * 37 - 20000 * (second % 2), 11000, -500, second);
+                if (second % 2 == 0) archive.recordReport(millis, (second % 4 == 0) ? "1A01" : "1A02", 1, 16.0, 15.83);
+            }
+            archive.close();
+            Assert.assertEquals(7200 + 3600, archive.rowsWritten);
+            Assert.assertTrue(SampleArchive.fileFor(dir, LocalDate.of(2026, 3, 28)).isFile());
+            Assert.assertTrue(SampleArchive.fileFor(dir, LocalDate.of(2026, 3, 29)).isFile());
+            Assert.assertTrue("delta encoded and deflated", archive.bytesWritten < (7200 + 3600) * 3);
+            // everything comes back as it went in
+            List<long[]> grid = new ArrayList<>();
+            List<long[]> reports = new ArrayList<>();
+            long[] counts = SampleArchive.scan(dir, LocalDate.of(2026, 3, 28), LocalDate.of(2026, 3, 29), (kind, rows, columns) -> {
+                for (int row = 0; row < rows; row++) {
+                    long[] values = new long[columns.length];
+                    for (int column = 0; column < columns.length; column++) values[column] = columns[column][row];
+                    (kind == SampleArchive.GRID ? grid : reports).add(values);
+                }
+            });
+            Assert.assertEquals(7200 + 3600, counts[2]);
+            Assert.assertEquals(7200, grid.size());
+            Assert.assertEquals(3600, reports.size());
+            for (int second = 0; second < 7200; second++) {
+                long millis = start + second * 1000L + (second % 7);
+                Assert.assertArrayEquals(new long[]{millis, 50000 + (second % 100) * 37 - 20000 * (second % 2), 11000, -500, second}, grid.get(second));
+            }
+            Assert.assertArrayEquals(new long[]{start + 2002, 0x1A02, 1, 1600, 1583}, reports.get(1));
+            // a range of ten minutes only inflates the blocks that overlap it
+            long from = start + 1800 * 1000L;
+            long[] rangeCounts = SampleArchive.scan(Arrays.asList(dir.listFiles()), from, from + 600 * 1000L, (kind, rows, columns) -> {
+                for (int row = 0; row < rows; row++) Assert.assertTrue((columns[0][row] >= from) && (columns[0][row] < from + 600 * 1000L));
+            });
+            Assert.assertEquals(600 + 300, rangeCounts[2]);
+            Assert.assertTrue(rangeCounts[1] > 0);
+            // a block cut off by a crash is left out, the blocks before it are read
+            File second = SampleArchive.fileFor(dir, LocalDate.of(2026, 3, 29));
+            try (RandomAccessFile file = new RandomAccessFile(second, "rw")) {
+                file.setLength(file.length() - 10);
+            }
+            long[] cutCounts = SampleArchive.scan(dir, LocalDate.of(2026, 3, 29), LocalDate.of(2026, 3, 29), (kind, rows, columns) -> { });
+            Assert.assertTrue((cutCounts[2] > 0) && (cutCounts[2] < 3600 + 1800));
+            // garbage after it ends the file as well, the query does not fail
+            try (RandomAccessFile file = new RandomAccessFile(second, "rw")) {
+                file.seek(file.length());
+                for (int i = 0; i < 40; i++) file.writeInt(i == 0 ? SampleArchive.MAGIC : 0x7FFFFFFF);
+            }
+            long[] garbageCounts = SampleArchive.scan(dir, LocalDate.of(2026, 3, 28), LocalDate.of(2026, 3, 29), (kind, rows, columns) -> { });
+            Assert.assertEquals(7200 + 3600 - (3600 + 1800) + cutCounts[2], garbageCounts[2]);
+            // the next archive cuts the file back to the last complete block before it appends, the new rows come after the old ones
+            long good = SampleArchive.validLength(second);
+            Assert.assertTrue(good < second.length());
+            SampleArchive reopened = new SampleArchive(dir, ZONE);
+            for (int i = 0; i < 100; i++) reopened.recordGrid(start + 7200 * 1000L + i * 1000L, 1000, 0, 0, 0);
+            reopened.close();
+            Assert.assertEquals(second.length() - good, reopened.bytesWritten);
+            Assert.assertTrue(reopened.truncatedBytes > 160);
+            long[] appendedCounts = SampleArchive.scan(dir, LocalDate.of(2026, 3, 29), LocalDate.of(2026, 3, 29), (kind, rows, columns) -> { });
+            Assert.assertEquals(cutCounts[2] + 100, appendedCounts[2]);
+            Assert.assertEquals(second.length(), SampleArchive.validLength(second));
+        } finally {
+            for (File file : dir.listFiles()) file.delete();
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.company;
+
+// Fixed size ring of (time stamp, value) samples in primitive arrays
+// Adding a sample allocates nothing, when the ring is full the oldest sample is overwritten
+public class SampleRing {
+
+    private long[] times;
+    private int[] values;
+    private int head = -1;  // index of the newest sample
+    private int size = 0;
+
+    public SampleRing(int capacity) {
+        times = new long[capacity];
+        values = new int[capacity];
+    }
+
+    public synchronized void add(long timeMs, int value) {
+        head = (head + 1) % times.length;
+        times[head] = timeMs;
+        values[head] = value;
+        if (size < times.length) size++;
+    }
+
+    public synchronized void grow(int capacity) {
+        // a larger ring with the samples so far, oldest first; a smaller capacity is ignored
+        if (capacity <= times.length) return;
+        long[] newTimes = new long[capacity];
+        int[] newValues = new int[capacity];
+        for (int i = 0; i < size; i++) {
+            int index = (head - size + 1 + i + times.length) % times.length;
+            newTimes[i] = times[index];
+            newValues[i] = values[index];
+        }
+        times = newTimes;
+        values = newValues;
+        head = size - 1;
+    }
+
+    public synchronized int capacity() {
+        return times.length;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void writeCsv(long fromMs, long toMs, StringBuilder sb) {
+        sb.append("t,v").append(Main.NEW_LINE);
+        for (int i = 0; i < size; i++) {
+            int index = (head - size + 1 + i + times.length) % times.length;
+            if ((times[index] < fromMs) || (times[index] > toMs)) continue;
+            sb.append(times[index]).append(',').append(values[index]).append(Main.NEW_LINE);
+        }
+    }
+
+    public synchronized void writeJson(long fromMs, long toMs, StringBuilder sb) {
+        // columnar, so the time stamps and values are not repeated as keys for every sample
+        StringBuilder v = new StringBuilder();
+        sb.append("\"t\":[");
+        boolean first = true;
+        for (int i = 0; i < size; i++) {
+            int index = (head - size + 1 + i + times.length) % times.length;
+            if ((times[index] < fromMs) || (times[index] > toMs)) continue;
+            if (!first) {
+                sb.append(',');
+                v.append(',');
+            }
+            first = false;
+            sb.append(times[index]);
+            v.append(values[index]);
+        }
+        sb.append("],\"v\":[").append(v).append(']');
+    }
+}
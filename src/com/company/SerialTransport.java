@@ -0,0 +1,51 @@
+package com.company;
+
+import com.fazecast.jSerialComm.SerialPort;
+
+import java.io.IOException;
+
+// RS485 bus on a local serial port (USB dongle) through jSerialComm
+public class SerialTransport implements TwcTransport {
+
+    private final SerialPort port;
+
+    public SerialTransport(String portName) {
+        port = SerialPort.getCommPort(portName);
+        port.setComPortParameters(9600, 8, 1, SerialPort.NO_PARITY, true);
+        port.setRs485ModeParameters(true, false, 5, 5);
+    }
+
+    public boolean open() {
+        if (!port.openPort()) return false;
+        return port.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, READ_TIMEOUT_MS, 0);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        return port.readBytes(buffer, length, offset);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        int written = port.writeBytes(buffer, length, offset);
+        if (written != length) {
+            throw new IOException("wrote " + written + " of " + length + " bytes to " + port.getSystemPortName());
+        }
+    }
+
+    @Override
+    public boolean reopen() {
+        port.closePort();
+        return open();
+    }
+
+    @Override
+    public String name() {
+        return port.getSystemPortName();
+    }
+
+    @Override
+    public void close() {
+        port.closePort();
+    }
+}
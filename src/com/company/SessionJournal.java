@@ -0,0 +1,148 @@
+package com.company;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static com.company.Main.*;
+
+// Append-only journal of the charge sessions (see ChargeSessions), one record per line with its CRC32 at the end
+// append only puts the line in a list, the journal thread writes everything that came in since its last commit with
+// one write and one fsync, at most once per COMMIT_MS, so a burst of records costs one fsync and the control loop never waits for the SD card
+// On opening the lines are read back up to the first one that is cut off or has a bad CRC (a power cut in the middle of a write),
+// the file is truncated there so new records never follow a damaged one
+public class SessionJournal implements Runnable, Closeable {
+
+    static final long COMMIT_MS = 1000;
+
+    private final File file;
+    private final FileChannel channel;
+    private final List<String> recovered;
+    private List<String> pending = new ArrayList<>();  // under this
+    private final Object writeLock = new Object();
+    volatile long commits = 0;
+    volatile long records = 0;
+    volatile long truncatedBytes = 0;
+    volatile Runnable beforeCommit;  // may still append, ChargeSessions puts its checkpoints in here
+
+    public SessionJournal(File file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        List<String> lines = new ArrayList<>();
+        long good = recover(lines);
+        if (good < channel.size()) {
+            truncatedBytes = channel.size() - good;
+            logger.warning("Session journal " + file + ": " + truncatedBytes + " bytes after the last good record dropped");
+            channel.truncate(good);
+            channel.force(true);
+        }
+        channel.position(good);
+        recovered = Collections.unmodifiableList(lines);
+    }
+
+    private long recover(List<String> lines) throws IOException {
+        // reads the whole file, returns the length up to the end of the last good line
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) break;
+        }
+        byte[] bytes = buffer.array();
+        int start = 0;
+        for (int i = 0; i < buffer.position(); i++) {
+            if (bytes[i] != '\n') continue;
+            String record = check(new String(bytes, start, i - start, StandardCharsets.US_ASCII));
+            if (record == null) break;
+            lines.add(record);
+            start = i + 1;
+        }
+        return start;
+    }
+
+    static String line(String record) {
+        return record + " " + crc(record) + "\n";
+    }
+
+    static String check(String line) {
+        // the record without its CRC, null when the CRC does not match
+        int space = line.lastIndexOf(' ');
+        if (space <= 0) return null;
+        String record = line.substring(0, space);
+        return line.substring(space + 1).equals(crc(record)) ? record : null;
+    }
+
+    private static String crc(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.US_ASCII));
+        return String.format("%08x", crc.getValue());
+    }
+
+    public List<String> recovered() {
+        // the records that were in the file when it was opened
+        return recovered;
+    }
+
+    public synchronized void append(String record) {
+        // control loop, goes to disk with the next commit
+        pending.add(line(record));
+    }
+
+    @Override
+    public void run() {
+        // the journal thread: one group commit per COMMIT_MS when there is something to write
+        while (!programStopCalled && !Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(COMMIT_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            commit();
+        }
+    }
+
+    public void commit() {
+        Runnable hook = beforeCommit;
+        if (hook != null) hook.run();
+        List<String> lines;
+        synchronized (this) {
+            if (pending.isEmpty()) return;
+            lines = pending;
+            pending = new ArrayList<>();
+        }
+        StringBuilder sb = new StringBuilder(lines.size() * 48);
+        for (String line : lines) sb.append(line);
+        ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.US_ASCII));
+        synchronized (writeLock) {
+            long end = -1;
+            try {
+                end = channel.position();
+                while (buffer.hasRemaining()) channel.write(buffer);
+                channel.force(false);
+                commits++;
+                records += lines.size();
+            } catch (IOException e) {
+                logger.warning("Session journal " + file + " could not be written, " + lines.size() + " records lost: " + e.getMessage());
+                try {
+                    if (end >= 0) channel.truncate(end);  // no half line for the next commit to follow
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // after the journal thread has stopped
+        commit();
+        synchronized (writeLock) {
+            channel.close();
+        }
+    }
+}
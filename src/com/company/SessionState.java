@@ -0,0 +1,125 @@
+package com.company;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+// What the controller needs to pick up after a restart without a new handshake: the master id, the slaves on the bus
+// and the current they were set to. Saved in state_file when a setpoint changes, every REFRESH_MS while nothing changes and at shutdown
+// Also the month peak of the quarter hour budget (see PeakBudget), that one counts however old the file is
+// The file is written next to itself and then moved over the old one, so a power cut leaves the old or the new state, never half of it
+// A state older than MAX_AGE_MS is not used, the slaves will long have given up on us
+public final class SessionState {
+
+    static final long MAX_AGE_MS = 10 * 60 * 1000L;
+    static final long REFRESH_MS = MAX_AGE_MS / 2;  // an unchanged state is saved again after this, so it does not grow too old
+
+    public static final class Slave {
+        final String id;
+        final String sign;
+        final int maxAmps;
+        final int allocatedAmps;
+        final String bus;  // name of the bus it was on, empty when not known
+
+        Slave(String id, String sign, int maxAmps, int allocatedAmps, String bus) {
+            this.id = id;
+            this.sign = sign;
+            this.maxAmps = maxAmps;
+            this.allocatedAmps = allocatedAmps;
+            this.bus = bus;
+        }
+    }
+
+    final long savedAtMillis;
+    final String masterId;
+    final int setAmps;  // total over all slaves
+    final List<Slave> slaves;
+    final String peakMonth;  // yyyy-MM, empty when there is no peak yet
+    final double monthPeakWatts;
+
+    SessionState(long savedAtMillis, String masterId, int setAmps, List<Slave> slaves, String peakMonth, double monthPeakWatts) {
+        this.savedAtMillis = savedAtMillis;
+        this.masterId = masterId;
+        this.setAmps = setAmps;
+        this.slaves = Collections.unmodifiableList(slaves);
+        this.peakMonth = peakMonth;
+        this.monthPeakWatts = monthPeakWatts;
+    }
+
+    static SessionState of(long now, String masterId, int setAmps, List<TwcSlave> slaveList, String peakMonth, double monthPeakWatts) {
+        List<Slave> list = new ArrayList<>();
+        for (TwcSlave slave : slaveList) {
+            TwcTransport bus = slave.bus;
+            list.add(new Slave(slave.id, slave.sign, slave.maxAmps, slave.allocatedAmps, (bus == null) ? "" : bus.name()));
+        }
+        return new SessionState(now, masterId, setAmps, list, peakMonth, monthPeakWatts);
+    }
+
+    boolean sameAs(SessionState other) {
+        // everything but the time it was saved
+        if ((other == null) || !masterId.equals(other.masterId) || (setAmps != other.setAmps) || (slaves.size() != other.slaves.size())) return false;
+        if (!peakMonth.equals(other.peakMonth) || (monthPeakWatts != other.monthPeakWatts)) return false;
+        for (int i = 0; i < slaves.size(); i++) {
+            Slave a = slaves.get(i);
+            Slave b = other.slaves.get(i);
+            if (!a.id.equals(b.id) || !a.sign.equals(b.sign) || (a.maxAmps != b.maxAmps) || (a.allocatedAmps != b.allocatedAmps)
+                    || !a.bus.equals(b.bus)) return false;
+        }
+        return true;
+    }
+
+    boolean needsSave(SessionState saved) {
+        // this one differs from the saved one, or the saved one is half way to MAX_AGE_MS
+        return !sameAs(saved) || (savedAtMillis - saved.savedAtMillis > REFRESH_MS);
+    }
+
+    void save(File file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("saved_at", Long.toString(savedAtMillis));
+        props.setProperty("master_id", masterId);
+        props.setProperty("set_amps", Integer.toString(setAmps));
+        StringBuilder ids = new StringBuilder();
+        for (Slave slave : slaves) {
+            if (ids.length() > 0) ids.append(',');
+            ids.append(slave.id);
+            props.setProperty("slave." + slave.id, slave.sign + "," + slave.maxAmps + "," + slave.allocatedAmps + "," + slave.bus);
+        }
+        props.setProperty("slaves", ids.toString());
+        props.setProperty("peak_month", peakMonth);
+        props.setProperty("month_peak_watts", Double.toString(monthPeakWatts));
+        Path target = file.getAbsoluteFile().toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp.toFile()), StandardCharsets.ISO_8859_1)) {
+            props.store(writer, "TWC session state, written by the controller");
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static SessionState load(File file) {
+        // null when there is no usable state, the reason is logged
+        if (!file.exists()) return null;
+        try {
+            Properties props = ConfigReloader.read(file);
+            List<Slave> list = new ArrayList<>();
+            for (String id : props.getProperty("slaves", "").split(",")) {
+                if (id.trim().isEmpty()) continue;
+                String[] fields = props.getProperty("slave." + id.trim(), "").split(",");
+                list.add(new Slave(id.trim(), fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), (fields.length > 3) ? fields[3] : ""));
+            }
+            String masterId = props.getProperty("master_id");
+            if (masterId == null) throw new IllegalArgumentException("no master_id");
+            return new SessionState(Long.parseLong(props.getProperty("saved_at")), masterId,
+                    Integer.parseInt(props.getProperty("set_amps")), list, props.getProperty("peak_month", ""),
+                    Double.parseDouble(props.getProperty("month_peak_watts", "0")));
+        } catch (IOException | RuntimeException e) {
+            Main.logger.warning("Session state " + file + " not usable, starting with a handshake: " + e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.company;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class SessionStateTest {
+
+    @Test
+    public void saveLoadTest() throws IOException {
+        TwcSlave first = new TwcSlave("1A01", "77", 32);
+        first.allocatedAmps = 14;
+        TwcSlave second = new TwcSlave("1A02", "77", 80);
+        File file = File.createTempFile("twc", ".state");
+        try {
+            SessionState state = SessionState.of(123456789L, "7777", 14, Arrays.asList(first, second), "2026-10", 4321.5);
+            state.save(file);
+            Assert.assertFalse(new File(file.getPath() + ".tmp").exists());
+            SessionState loaded = SessionState.load(file);
+            Assert.assertNotNull(loaded);
+            Assert.assertEquals(123456789L, loaded.savedAtMillis);
+            Assert.assertTrue(loaded.sameAs(state));
+            Assert.assertFalse(SessionState.of(123456789L + 60000L, "7777", 14, Arrays.asList(first, second), "2026-10", 4321.5).needsSave(loaded));
+            // unchanged state, 11 minutes later: saved again, so a restart does not find it too old
+            Assert.assertTrue(SessionState.of(123456789L + 11 * 60000L, "7777", 14, Arrays.asList(first, second), "2026-10", 4321.5).needsSave(loaded));
+            Assert.assertEquals("1A02", loaded.slaves.get(1).id);
+            Assert.assertEquals(80, loaded.slaves.get(1).maxAmps);
+            Assert.assertEquals(4321.5, loaded.monthPeakWatts, 0.0);
+            first.allocatedAmps = 16;
+            Assert.assertFalse(SessionState.of(123456789L, "7777", 14, Arrays.asList(first, second), "2026-10", 4321.5).sameAs(loaded));
+            // a damaged file is not used
+            Files.write(file.toPath(), "master_id=7777\nslaves=1A01\nslave.1A01=77\n".getBytes(StandardCharsets.ISO_8859_1));
+            Assert.assertNull(SessionState.load(file));
+        } finally {
+            file.delete();
+        }
+        Assert.assertNull(SessionState.load(file));
+    }
+}
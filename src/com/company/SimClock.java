@@ -0,0 +1,36 @@
+package com.company;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Clock that runs 'speed' times faster than the wall clock, for the simulator
+// Waiting on this clock waits the simulated time divided by the speed
+public class SimClock implements TwcClock {
+
+    private final double speed;
+    private final long realStart = System.nanoTime();
+    private final long startMillis;
+
+    public SimClock(double speed, long startMillis) {
+        this.speed = speed;
+        this.startMillis = startMillis;
+    }
+
+    @Override
+    public long nanoTime() {
+        return realStart + (long) ((System.nanoTime() - realStart) * speed);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return startMillis + (nanoTime() - realStart) / 1000000L;
+    }
+
+    @Override
+    public void parkNanos(long nanos) {
+        LockSupport.parkNanos((long) (nanos / speed));
+    }
+
+    public long elapsedNanos() {
+        return nanoTime() - realStart;
+    }
+}
@@ -0,0 +1,151 @@
+package com.company;
+
+import java.io.IOException;
+
+import static com.company.Main.clock;
+import static com.company.Main.programStopCalled;
+
+// Virtual TWC gen2 slave for the simulator, speaks the linkready/heartbeat protocol on a TwcTransport
+// Until a master heartbeat comes in it sends a linkready every second, after that it answers every heartbeat addressed to it
+// The car behind it plugs in at a set time and needs a set amount of energy:
+// 00 ready (no car), 04 plugged in and ready, 08 starting, 01 charging, 03 plugged in but full
+// While charging, the used current ramps towards the setpoint like a real car does
+public class SimulatedSlave implements Runnable, TwcFrameParser.FrameListener {
+
+    static final double RAMP_AMPS_PER_SEC = 2.0;
+    static final long LINKREADY_INTERVAL_NANOS = 1000000000L;
+    static final long LINK_TIMEOUT_NANOS = 10000000000L;  // no heartbeat for this long and we announce ourselves again
+    static final long STARTING_NANOS = 5000000000L;
+    static final double CAR_MIN_AMPS = 5.0;  // the car does not start below this
+
+    final String id;
+    final int maxAmps;
+    final long plugInMs;  // wall clock time (simulated) the car is plugged in
+    final double energyNeededWh;
+    private final TwcTransport port;
+    private final TwcFrameParser parser = new TwcFrameParser(this, false);
+    private final byte[] readBuffer = new byte[256];
+    private final byte[] message = new byte[TwcCodec.MAX_FRAME_LENGTH];
+    private final byte[] frame = new byte[TwcCodec.MAX_FRAME_LENGTH];
+    private final byte[] idBytes;
+    private final byte[] masterId = new byte[2];
+    volatile int status = 0x00;
+    volatile double setAmps = 0.0;
+    volatile double usedAmps = 0.0;
+    volatile double energyWh = 0.0;
+    volatile long heartbeatsAnswered = 0;
+    private boolean linked = false;
+    private boolean ackPending = false;
+    private long lastHeartbeatNanos;
+    private long lastLinkReadyNanos;
+    private long lastUpdateNanos;
+    private long startingSinceNanos;
+
+    public SimulatedSlave(String id, int maxAmps, long plugInMs, double energyNeededWh, TwcTransport port) {
+        this.id = id;
+        this.maxAmps = maxAmps;
+        this.plugInMs = plugInMs;
+        this.energyNeededWh = energyNeededWh;
+        this.port = port;
+        this.idBytes = Main.hexStringToByteArray(id);
+    }
+
+    @Override
+    public void run() {
+        lastUpdateNanos = clock.nanoTime();
+        lastLinkReadyNanos = lastUpdateNanos - LINKREADY_INTERVAL_NANOS;
+        while (!programStopCalled && !Thread.currentThread().isInterrupted()) {
+            int bytesRead = port.read(readBuffer, 0, readBuffer.length);
+            if (bytesRead < 0) break;
+            long now = clock.nanoTime();
+            if (bytesRead > 0) parser.feed(readBuffer, 0, bytesRead, now);
+            updateCar(now);
+            if (linked && (now - lastHeartbeatNanos > LINK_TIMEOUT_NANOS)) linked = false;
+            if (!linked && (now - lastLinkReadyNanos >= LINKREADY_INTERVAL_NANOS)) {
+                sendLinkReady();
+                lastLinkReadyNanos = now;
+            }
+        }
+    }
+
+    @Override
+    public void onFrame(byte[] bytes, int length, long timestampNanos) {
+        // master frames are C0 <escaped message + checksum> C0
+        int n = TwcCodec.unescape(bytes, 1, length - 2, message, 0);
+        if ((n < 9) || (TwcCodec.checksum(message, 0, n - 1) != (message[n - 1] & 0xFF))) return;
+        int type = ((message[0] & 0xFF) << 8) | (message[1] & 0xFF);
+        if ((type == 0xFBE2) || (type == 0xFBE1)) {
+            linked = false;  // master (re)started, announce ourselves
+        } else if ((type == 0xFBE0) && (message[4] == idBytes[0]) && (message[5] == idBytes[1])) {
+            linked = true;
+            lastHeartbeatNanos = timestampNanos;
+            masterId[0] = message[2];
+            masterId[1] = message[3];
+            if (message[6] == 9) {
+                setAmps = (((message[7] & 0xFF) << 8) | (message[8] & 0xFF)) / 100.0;
+                ackPending = true;
+            }
+            sendHeartbeat();
+        }
+    }
+
+    private void updateCar(long now) {
+        double dt = (now - lastUpdateNanos) / 1e9;
+        lastUpdateNanos = now;
+        switch (status) {
+            case 0x00:
+                if (clock.currentTimeMillis() >= plugInMs) status = 0x04;
+                break;
+            case 0x04:
+                if (setAmps >= CAR_MIN_AMPS) {
+                    status = 0x08;
+                    startingSinceNanos = now;
+                }
+                break;
+            case 0x08:
+                if (now - startingSinceNanos >= STARTING_NANOS) status = 0x01;
+                break;
+            case 0x01:
+                double target = Math.min(setAmps, maxAmps);
+                if (usedAmps < target) usedAmps = Math.min(target, usedAmps + RAMP_AMPS_PER_SEC * dt);
+                else usedAmps = Math.max(target, usedAmps - RAMP_AMPS_PER_SEC * dt);
+                energyWh += usedAmps * Main.WATTS_PER_AMP * dt / 3600.0;
+                if (energyWh >= energyNeededWh) {
+                    status = 0x03;
+                    usedAmps = 0.0;
+                }
+                break;
+            default:
+                usedAmps = 0.0;
+        }
+    }
+
+    private void sendLinkReady() {
+        // FDE2 <id> <sign> <max amps> and 8 empty bytes
+        int amps = maxAmps * 100;
+        byte[] m = {(byte) 0xFD, (byte) 0xE2, idBytes[0], idBytes[1], 0x77, (byte) (amps >>> 8), (byte) amps, 0, 0, 0, 0, 0, 0, 0, 0};
+        send(m);
+    }
+
+    private void sendHeartbeat() {
+        // FDE0 <id> <master id> <status> <set amps> <used amps> and 4 empty bytes
+        int set = (int) Math.round(setAmps * 100);
+        int used = (int) Math.round(usedAmps * 100);
+        int reportedStatus = ackPending ? 0x09 : status;
+        ackPending = false;
+        byte[] m = {(byte) 0xFD, (byte) 0xE0, idBytes[0], idBytes[1], masterId[0], masterId[1], (byte) reportedStatus,
+                (byte) (set >>> 8), (byte) set, (byte) (used >>> 8), (byte) used, 0, 0, 0, 0};
+        send(m);
+        heartbeatsAnswered++;
+    }
+
+    private void send(byte[] m) {
+        int length = TwcCodec.encodeFrame(m, 0, m.length, frame, 0);
+        frame[length++] = TwcCodec.FRAME_TRAILER;
+        try {
+            port.write(frame, 0, length);
+        } catch (IOException e) {
+            Main.logger.warning("Simulated slave " + id + " could not send: " + e.getMessage());
+        }
+    }
+}
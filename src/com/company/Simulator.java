@@ -0,0 +1,119 @@
+package com.company;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+
+import static com.company.Main.*;
+
+// Runs the real controller against simulated TWC slaves and a simulated SMA meter, no hardware needed
+// Usage: java -cp TWCtestv3.jar com.company.Simulator [--speed 60] [--slaves 2] [--buses 1] [--hours 4] [--max-power 10000] [--phase-limit 25]
+//        [--controller step|pi] [--interval 60] [--peak-target 4000]
+//        [--profile daily|solar|constant:<W>] [--http-port 8085] [--state-file sim.state] [--archive sim-archive] [--quiet]
+// The slaves and the controller talk over in-memory RS485 buses (the slaves spread over them), the meter multicasts on the loopback interface
+// Everything runs on a clock that goes 'speed' times faster, so a few hours of charging take a few minutes
+public class Simulator {
+
+    static final long SIMULATED_METER_SERIAL = 1900000001L;
+    static final int SIMULATED_METER_PORT = 9523;  // not 9522, so a real meter on the network is never mixed in
+
+    public static void main(String[] args) throws Exception {
+        double speed = 60.0;
+        int slaveCount = 2;
+        int busCount = 1;
+        double hours = 4.0;
+        String profileName = "daily";
+        int httpPort = 0;
+        String archiveDir = null;
+        for (int i = 0; i < args.length; i++) {
+            boolean hasValue = i + 1 < args.length;
+            if ("--quiet".equals(args[i])) setLogging(false);
+            else if ("--speed".equals(args[i]) && hasValue) speed = Double.parseDouble(args[++i]);
+            else if ("--slaves".equals(args[i]) && hasValue) slaveCount = Integer.parseInt(args[++i]);
+            else if ("--buses".equals(args[i]) && hasValue) busCount = Math.max(1, Integer.parseInt(args[++i]));
+            else if ("--hours".equals(args[i]) && hasValue) hours = Double.parseDouble(args[++i]);
+            else if ("--max-power".equals(args[i]) && hasValue) settings = settings.withMaxPowerFromMains(Double.parseDouble(args[++i]));
+            else if ("--phase-limit".equals(args[i]) && hasValue) settings = settings.withPhaseLimitAmps(Integer.parseInt(args[++i]));
+            else if ("--controller".equals(args[i]) && hasValue) chargeController = ChargeController.forName(args[++i]);
+            else if ("--interval".equals(args[i]) && hasValue) settings = settings.withUpdateIntervalSec(Integer.parseInt(args[++i]));
+            else if ("--peak-target".equals(args[i]) && hasValue) settings = settings.withPeakTargetWatts(Double.parseDouble(args[++i]));
+            else if ("--profile".equals(args[i]) && hasValue) profileName = args[++i];
+            else if ("--http-port".equals(args[i]) && hasValue) httpPort = Integer.parseInt(args[++i]);
+            else if ("--state-file".equals(args[i]) && hasValue) stateFile = new File(args[++i]);
+            else if ("--archive".equals(args[i]) && hasValue) archiveDir = args[++i];
+            else {
+                System.out.println("Unknown argument " + args[i]);
+                return;
+            }
+        }
+        // start the simulated day at 16:00 so the evening peak is in it
+        long startMillis = System.currentTimeMillis();
+        startMillis = startMillis - Math.floorMod(startMillis + java.util.TimeZone.getDefault().getOffset(startMillis), 86400000L) + 16 * 3600000L;
+        SimClock simClock = new SimClock(speed, startMillis);
+        clock = simClock;
+        MASTER_ID = "7777";
+        ampAllocator = new FairShareAllocator();
+        smaMeters = new SmaMeterTable(Long.toString(SIMULATED_METER_SERIAL));
+        SMA_MULTICAST_PORT = SIMULATED_METER_PORT;
+        SMA_INTERFACE = "lo";
+        // the slaves and their cars: the first car is plugged in right away, the others a bit later, each needs 20 to 40 kWh
+        MemoryBus[] memoryBuses = new MemoryBus[busCount];
+        for (int i = 0; i < busCount; i++) memoryBuses[i] = new MemoryBus();
+        List<SimulatedSlave> simulatedSlaves = new ArrayList<>();
+        for (int i = 0; i < slaveCount; i++) {
+            String id = String.format("%04X", 0x1A01 + i);
+            SimulatedSlave slave = new SimulatedSlave(id, 32, startMillis + i * 900000L, 20000.0 + 10000.0 * (i % 3), memoryBuses[i % busCount].attach("slave " + id));
+            simulatedSlaves.add(slave);
+            Thread thread = new Thread(slave, "sim-slave-" + id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        SmaEmitter meter = new SmaEmitter(SMA_MULTICAST_IP, SMA_MULTICAST_PORT, SMA_INTERFACE, SIMULATED_METER_SERIAL,
+                LoadProfile.forName(profileName), simulatedSlaves, settings.maxPowerFromMains);
+        Thread meterThread = new Thread(meter, "sim-meter");
+        meterThread.setDaemon(true);
+        meterThread.start();
+        Thread smaThread = new Thread(new SmaThread("sma"), "sma");
+        smaThread.setDaemon(true);
+        smaThread.start();
+        if (archiveDir != null) {
+            sampleArchive = new SampleArchive(new File(archiveDir), java.time.ZoneId.systemDefault());
+            Thread archiveThread = new Thread(sampleArchive, "archive");
+            archiveThread.setDaemon(true);
+            archiveThread.start();
+        }
+        if (httpPort > 0) {
+            HTTP_PORT = httpPort;
+            Thread webServerThread = new Thread(new WebServer("webserver"), "webserver");
+            webServerThread.setDaemon(true);
+            webServerThread.start();
+        }
+        // stop after the simulated time is over
+        final long endNanos = (long) (hours * 3600e9);
+        Thread stopper = new Thread(() -> {
+            while (simClock.elapsedNanos() < endNanos) simClock.parkNanos(Math.min(endNanos - simClock.elapsedNanos(), 60000000000L));
+            requestStop();
+        }, "sim-stop");
+        stopper.setDaemon(true);
+        stopper.start();
+        long wallStart = System.nanoTime();
+        TwcTransport[] masterPorts = new TwcTransport[busCount];
+        for (int i = 0; i < busCount; i++) masterPorts[i] = memoryBuses[i].attach((busCount == 1) ? "master" : "master " + (i + 1));
+        runController(masterPorts);
+        saveState(true);
+        for (TwcTransport port : masterPorts) port.close();
+        if (sampleArchive != null) sampleArchive.close();
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.ROOT, "Simulated %.1f h in %.1f s: peak grid power %.0f W (limit %.0f W), %d s over the limit, peak phase current %.1f A, %d meter packets, highest quarter hour %.0f W",
+                simClock.elapsedNanos() / 3600e9, (System.nanoTime() - wallStart) / 1e9, meter.maxGridWatts, settings.maxPowerFromMains,
+                meter.secondsOverLimit, meter.maxPhaseAmps, meter.packetsSent, peakBudget.monthPeakWatts()));
+        summary.append(String.format(Locale.ROOT, "%n  %d charge sessions, %.1f kWh", chargeSessions.size(), chargeSessions.totalWattHours() / 1000));
+        for (SimulatedSlave slave : simulatedSlaves) {
+            summary.append(String.format(Locale.ROOT, "%n  slave %s: status %02X, %.1f of %.1f kWh charged, %d heartbeats answered",
+                    slave.id, slave.status, slave.energyWh / 1000, slave.energyNeededWh / 1000, slave.heartbeatsAnswered));
+        }
+        logger.log(Level.WARNING, summary.toString());
+    }
+}
@@ -0,0 +1,116 @@
+package com.company;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class SimulatorTest {
+
+    // what the controller side of the bus receives, decoded
+    static class Master implements TwcFrameParser.FrameListener {
+        final MemoryBus.Endpoint port;
+        final TwcFrameParser parser = new TwcFrameParser(this);
+        final BlockingQueue<TwcMessage> messages = new LinkedBlockingQueue<>();
+        final byte[] buffer = new byte[256];
+
+        Master(MemoryBus.Endpoint port) {
+            this.port = port;
+        }
+
+        @Override
+        public void onFrame(byte[] frame, int length, long timestampNanos) {
+            TwcMessage message = new TwcMessage();
+            if (message.decode(frame, 0, length, timestampNanos, port)) messages.add(message);
+        }
+
+        TwcMessage next(TwcMessage.Type type) throws InterruptedException {
+            // the next message of this type within 3 s, null when none came
+            long deadline = System.nanoTime() + 3000000000L;
+            while (System.nanoTime() - deadline < 0) {
+                int n = port.read(buffer, 0, buffer.length);
+                if (n > 0) parser.feed(buffer, 0, n, System.nanoTime());
+                TwcMessage message;
+                while ((message = messages.poll()) != null) {
+                    if (message.type == type) return message;
+                }
+            }
+            return null;
+        }
+
+        void send(String message) throws IOException {
+            byte[] frame = Main.hexStringToByteArray(Main.buildBlock(message));
+            port.write(frame, 0, frame.length);
+        }
+    }
+
+    @Test
+    public void simulatedSlaveTest() throws Exception {
+        // linkready until the master sends a heartbeat, then an answer to every heartbeat addressed to it
+        MemoryBus bus = new MemoryBus();
+        Master master = new Master(bus.attach("master"));
+        SimulatedSlave slave = new SimulatedSlave("1A01", 32, 0L, 20000.0, bus.attach("slave"));
+        Thread thread = new Thread(slave, "sim-slave-test");
+        thread.start();
+        try {
+            TwcMessage linkready = master.next(TwcMessage.Type.SLAVE_LINKREADY);
+            Assert.assertNotNull(linkready);
+            Assert.assertEquals(0x1A01, linkready.sender);
+            Assert.assertEquals(32, linkready.maxAmps());
+            // set to 16 A: the slave acknowledges the command, the next heartbeat has the car starting on 16 A
+            master.send("FBE077771A0109064000000000000000");
+            TwcMessage ack = master.next(TwcMessage.Type.SLAVE_HEARTBEAT);
+            Assert.assertNotNull(ack);
+            Assert.assertEquals(0x1A01, ack.sender);
+            Assert.assertEquals(0x7777, ack.receiver);
+            Assert.assertEquals(0x09, ack.status);
+            Assert.assertEquals(1600, ack.setCentiAmps);
+            master.send("FBE077771A0100000000000000000000");
+            TwcMessage heartbeat = master.next(TwcMessage.Type.SLAVE_HEARTBEAT);
+            Assert.assertNotNull(heartbeat);
+            Assert.assertTrue(TwcMessage.statusText(heartbeat.status), (heartbeat.status == 0x04) || (heartbeat.status == 0x08));
+            Assert.assertEquals(1600, heartbeat.setCentiAmps);
+            // a heartbeat for another slave is not answered
+            master.send("FBE077771A0200000000000000000000");
+            Assert.assertNull(master.next(TwcMessage.Type.SLAVE_HEARTBEAT));
+            Assert.assertEquals(2, slave.heartbeatsAnswered);
+        } finally {
+            thread.interrupt();
+            thread.join(2000);
+        }
+    }
+
+    @Test
+    public void smaEmitterTest() throws Exception {
+        // the house load plus 230 V per amp on every phase of the chargers, in packets SmaParser reads
+        SimulatedSlave charger = new SimulatedSlave("1A01", 32, 0L, 20000.0, new MemoryBus().attach("slave"));
+        charger.usedAmps = 10.0;
+        SmaEmitter emitter = new SmaEmitter("239.12.255.254", 9523, "", 1900000001L, LoadProfile.forName("constant:3000"),
+                Collections.singletonList(charger), 5000.0);
+        int length = emitter.next(System.currentTimeMillis(), 1234L);
+        SmaRecord record = new SmaRecord();
+        Assert.assertEquals(1900000001L, SmaParser.readSerial(ByteBuffer.wrap(emitter.packet), length));
+        Assert.assertTrue(SmaParser.parse(ByteBuffer.wrap(emitter.packet), length, record));
+        Assert.assertEquals(1234L, record.tickerMs);
+        Assert.assertEquals(99000, record.powerDeciWatt(0));
+        for (int phase = 1; phase <= 3; phase++) {
+            Assert.assertEquals(33000, record.powerDeciWatt(phase));
+            Assert.assertEquals(14348, record.currentMilliAmps(phase));
+            Assert.assertEquals(230000, record.voltageMilliVolts(phase));
+        }
+        Assert.assertEquals(9900.0, emitter.maxGridWatts, 1e-6);
+        Assert.assertEquals(1, emitter.secondsOverLimit);
+        // injection comes out negative
+        charger.usedAmps = 0.0;
+        SmaEmitter solar = new SmaEmitter("239.12.255.254", 9523, "", 1900000001L, LoadProfile.forName("constant:-9000"),
+                Collections.singletonList(charger), 5000.0);
+        length = solar.next(System.currentTimeMillis(), 0L);
+        Assert.assertTrue(SmaParser.parse(ByteBuffer.wrap(solar.packet), length, record));
+        Assert.assertEquals(-90000, record.powerDeciWatt(0));
+        Assert.assertEquals(0, solar.secondsOverLimit);
+    }
+}
@@ -0,0 +1,69 @@
+package com.company;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// All TWC slaves seen on the bus, keyed by slave id, in the order they announced themselves
+// The transmit thread walks this round robin, so a second charger only needs a linkready to be picked up
+public class SlaveTable {
+
+    private final Map<String, TwcSlave> slaves = new ConcurrentHashMap<>();
+    private final List<TwcSlave> order = new CopyOnWriteArrayList<>();
+
+    public synchronized TwcSlave register(String id, String sign, int maxAmps) {
+        TwcSlave slave = slaves.get(id);
+        if (slave == null) {
+            slave = new TwcSlave(id, sign, maxAmps);
+            slaves.put(id, slave);
+            order.add(slave);
+        } else {
+            // a slave sends linkready again after a restart of its own
+            slave.sign = sign;
+            slave.maxAmps = maxAmps;
+            slave.lastSeenNanos = Main.clock.nanoTime();
+        }
+        return slave;
+    }
+
+    public synchronized void remove(String id) {
+        // a slave of the saved session that did not answer after a warm start
+        TwcSlave slave = slaves.remove(id);
+        if (slave != null) order.remove(slave);
+    }
+
+    public TwcSlave get(String id) {
+        return slaves.get(id);
+    }
+
+    public TwcSlave get(int number) {
+        // control loop, for every heartbeat: a walk over a few slaves, no key to build
+        for (int i = 0; i < order.size(); i++) {
+            TwcSlave slave = order.get(i);
+            if (slave.number == number) return slave;
+        }
+        return null;
+    }
+
+    public List<TwcSlave> list() {
+        return order;
+    }
+
+    public int size() {
+        return order.size();
+    }
+
+    public double totalUsedAmps() {
+        // control loop, for every heartbeat: by index, an iterator would be an object per call
+        double total = 0.0;
+        for (int i = 0; i < order.size(); i++) total += order.get(i).usedAmps;
+        return total;
+    }
+
+    public int maxAmps() {
+        int max = 0;
+        for (TwcSlave slave : order) max = Math.max(max, slave.maxAmps);
+        return max;
+    }
+}
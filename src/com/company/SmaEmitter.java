@@ -0,0 +1,93 @@
+package com.company;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+
+import static com.company.Main.clock;
+import static com.company.Main.programStopCalled;
+
+// Simulated SMA energy meter, multicasts a Speedwire packet every second of simulated time
+// Grid power per phase is the house load of the profile plus the current of all simulated chargers at 230 V
+// Keeps track of the highest grid power, how long it was above the limit and the highest phase current, for the simulator summary
+// Sent through a DatagramChannel: its socket options are there on Java 8 as well, MulticastSocket only has the deprecated setLoopbackMode
+public class SmaEmitter implements Runnable {
+
+    static final double PHASE_VOLTS = 230.0;
+    static final long PERIOD_NANOS = 1000000000L;
+
+    private final InetSocketAddress group;
+    private final String interfaceName;
+    private final long serial;
+    private final LoadProfile profile;
+    private final List<SimulatedSlave> chargers;
+    private final double limitWatts;
+    final byte[] packet = new byte[SmaPacketBuilder.PACKET_LENGTH];
+    private final ByteBuffer buffer = ByteBuffer.wrap(packet);
+    private final int[] powerDeciWatt = new int[4];
+    private final long[] energyWs = new long[4];
+    private final int[] currentMilliAmps = new int[4];
+    private final int[] voltageMilliVolts = {0, 230000, 230000, 230000};
+    volatile double maxGridWatts = Double.NEGATIVE_INFINITY;
+    volatile long secondsOverLimit = 0;
+    volatile double maxPhaseAmps = 0.0;
+    volatile long packetsSent = 0;
+
+    public SmaEmitter(String multicastIp, int port, String interfaceName, long serial, LoadProfile profile,
+                      List<SimulatedSlave> chargers, double limitWatts) throws UnknownHostException {
+        this.group = new InetSocketAddress(InetAddress.getByName(multicastIp), port);
+        this.interfaceName = interfaceName;
+        this.serial = serial;
+        this.profile = profile;
+        this.chargers = chargers;
+        this.limitWatts = limitWatts;
+    }
+
+    @Override
+    public void run() {
+        try (DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            if (!interfaceName.isEmpty()) channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, NetworkInterface.getByName(interfaceName));
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);  // the controller listens on this host
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 0);  // never leave the host, the real meter may be on the same network
+            long startNanos = clock.nanoTime();
+            long deadline = startNanos;
+            while (!programStopCalled) {
+                deadline += PERIOD_NANOS;
+                long wait = deadline - clock.nanoTime();
+                if (wait > 0) clock.parkNanos(wait);
+                int length = next(clock.currentTimeMillis(), (clock.nanoTime() - startNanos) / 1000000L);
+                buffer.limit(length).position(0);
+                channel.send(buffer, group);
+                packetsSent++;
+            }
+        } catch (IOException e) {
+            Main.logger.warning("Simulated SMA meter stopped: " + e.getMessage());
+        }
+    }
+
+    int next(long timeMs, long tickerMs) {
+        // the packet for timeMs in packet, returns its length
+        fill(timeMs);
+        return SmaPacketBuilder.build(buffer, serial, tickerMs, powerDeciWatt, energyWs, currentMilliAmps, voltageMilliVolts);
+    }
+
+    private void fill(long timeMs) {
+        double chargerAmps = 0.0;
+        for (SimulatedSlave charger : chargers) chargerAmps += charger.usedAmps;
+        double total = 0.0;
+        for (int phase = 1; phase <= 3; phase++) {
+            double watts = profile.phaseWatts(timeMs, phase - 1) + chargerAmps * PHASE_VOLTS;
+            powerDeciWatt[phase] = (int) Math.round(watts * 10);
+            currentMilliAmps[phase] = (int) Math.round(Math.abs(watts) / PHASE_VOLTS * 1000);
+            if (watts / PHASE_VOLTS > maxPhaseAmps) maxPhaseAmps = watts / PHASE_VOLTS;
+            if (watts > 0) energyWs[phase] += Math.round(watts * PERIOD_NANOS / 1e9);
+            total += watts;
+        }
+        powerDeciWatt[0] = (int) Math.round(total * 10);
+        energyWs[0] = energyWs[1] + energyWs[2] + energyWs[3];
+        if (total > maxGridWatts) maxGridWatts = total;
+        if (total > limitWatts) secondsOverLimit++;
+    }
+}
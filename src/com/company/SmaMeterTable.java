@@ -0,0 +1,158 @@
+package com.company;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Every SMA device seen on the multicast group, by serial, and the formula that turns the configured ones into the controller input
+// The formula is a sum of serials, each added or subtracted, for example "3004908651 - 3012345678" for the grid meter
+// minus a meter on the battery branch. The first serial is the main meter, its packets drive the controller
+// Packets of devices that are not in the formula are only counted, the SMA thread looks up the serial before parsing
+// A meter in the formula that sent nothing for STALE_NANOS is left out until it sends again, so a dead second meter
+// falls back to regulating on the main meter alone instead of on a frozen value
+// Only the SMA thread writes, readers (status page, metrics) get the meters array, which is replaced as a whole when a device is added
+public final class SmaMeterTable {
+
+    static final long STALE_NANOS = 5000000000L;  // meters send every second
+    static final int MAX_METERS = 32;  // devices beyond this are not kept, their packets are only counted as filtered
+
+    public static final class Meter {
+        final long serial;
+        final int sign;  // +1 or -1 in the formula, 0 when not configured
+        // last sample of a configured meter: power in 0.1 W and net current in mA, 3 phase total (power only) and L1 to L3
+        // written by the SMA thread, other threads may see a half updated sample, only good for display
+        final int[] powerDeciWatt = new int[4];
+        final int[] currentMilliAmps = new int[4];
+        volatile long packets = 0;
+        volatile long samples = 0;  // packets parsed, configured meters only
+        volatile long lastSeenNanos;
+        volatile double intervalNanos = 0.0;  // running average of the time between packets
+
+        Meter(long serial, int sign) {
+            this.serial = serial;
+            this.sign = sign;
+        }
+
+        public boolean configured() {
+            return sign != 0;
+        }
+
+        public double packetsPerSecond() {
+            return (intervalNanos > 0) ? 1e9 / intervalNanos : 0.0;
+        }
+
+        public double ageSeconds(long now) {
+            return (packets == 0) ? Double.POSITIVE_INFINITY : (now - lastSeenNanos) / 1e9;
+        }
+
+        public boolean isStale(long now) {
+            return (samples == 0) || (now - lastSeenNanos > STALE_NANOS);
+        }
+
+        void store(SmaRecord record) {
+            for (int phase = 0; phase < 4; phase++) {
+                powerDeciWatt[phase] = record.powerDeciWatt(phase);
+                currentMilliAmps[phase] = (phase == 0) ? 0 : record.netCurrentMilliAmps(phase);
+            }
+            samples++;
+        }
+    }
+
+    final String formula;
+    private final Meter[] terms;  // the configured meters, in formula order
+    private volatile Meter[] meters;  // all devices seen, the configured ones first
+
+    public SmaMeterTable(String formula) {
+        // throws IllegalArgumentException when the formula is not serials joined by + and -
+        List<Meter> parsed = new ArrayList<>();
+        String[] tokens = formula.trim().replace("+", " + ").replace("-", " - ").trim().split("\\s+");
+        int sign = 1;
+        boolean expectSerial = true;
+        boolean signGiven = false;
+        for (String token : tokens) {
+            if (token.equals("+") || token.equals("-")) {
+                if (signGiven || (expectSerial && !parsed.isEmpty())) throw new IllegalArgumentException("Two signs in a row in SMA formula: " + formula);
+                sign = token.equals("-") ? -1 : 1;
+                signGiven = true;
+                expectSerial = true;
+                continue;
+            }
+            if (!expectSerial) throw new IllegalArgumentException("Missing + or - before " + token + " in SMA formula: " + formula);
+            long serial;
+            try {
+                serial = Long.parseLong(token);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a serial number in SMA formula: " + token);
+            }
+            if ((serial <= 0) || (serial > 0xFFFFFFFFL)) throw new IllegalArgumentException("Not a serial number in SMA formula: " + token);
+            for (Meter meter : parsed) {
+                if (meter.serial == serial) throw new IllegalArgumentException("Serial " + serial + " twice in SMA formula: " + formula);
+            }
+            parsed.add(new Meter(serial, sign));
+            sign = 1;
+            signGiven = false;
+            expectSerial = false;
+        }
+        if (parsed.isEmpty() || expectSerial) throw new IllegalArgumentException("Incomplete SMA formula: " + formula);
+        this.formula = formula.trim();
+        this.terms = parsed.toArray(new Meter[0]);
+        this.meters = terms.clone();
+    }
+
+    public long mainSerial() {
+        return terms[0].serial;
+    }
+
+    public Meter[] meters() {
+        return meters;
+    }
+
+    public int size() {
+        return meters.length;
+    }
+
+    public Meter seen(long serial, long now) {
+        // SMA thread: a packet of this device came in, returns null when the table is full
+        Meter meter = find(serial);
+        if (meter == null) {
+            if (meters.length >= MAX_METERS) return null;
+            meter = new Meter(serial, 0);
+            Meter[] grown = Arrays.copyOf(meters, meters.length + 1);
+            grown[meters.length] = meter;
+            meters = grown;
+        }
+        if (meter.packets > 0) {
+            long interval = now - meter.lastSeenNanos;
+            meter.intervalNanos = (meter.intervalNanos == 0.0) ? interval : meter.intervalNanos + (interval - meter.intervalNanos) / 8;
+        }
+        meter.lastSeenNanos = now;
+        meter.packets++;
+        return meter;
+    }
+
+    private Meter find(long serial) {
+        for (Meter meter : meters) {
+            if (meter.serial == serial) return meter;
+        }
+        return null;
+    }
+
+    public int evaluate(long now, int[] powerDeciWatt, int[] currentMilliAmps) {
+        // SMA thread: the formula over the last samples, into the 2 arrays (3 phase total and L1 to L3)
+        // returns how many meters were left out because they are stale
+        Arrays.fill(powerDeciWatt, 0);
+        Arrays.fill(currentMilliAmps, 0);
+        int stale = 0;
+        for (Meter term : terms) {
+            if (term.isStale(now)) {
+                stale++;
+                continue;
+            }
+            for (int phase = 0; phase < 4; phase++) {
+                powerDeciWatt[phase] += term.sign * term.powerDeciWatt[phase];
+                currentMilliAmps[phase] += term.sign * term.currentMilliAmps[phase];
+            }
+        }
+        return stale;
+    }
+}
@@ -0,0 +1,60 @@
+package com.company;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class SmaMeterTableTest {
+
+    private static SmaRecord record(int... powerDeciWatt) {
+        // powers for the 3 phase total and L1 to L3, currents at 230 V
+        byte[] packet = new byte[SmaPacketBuilder.PACKET_LENGTH];
+        int[] current = new int[4];
+        for (int phase = 1; phase <= 3; phase++) current[phase] = Math.abs(powerDeciWatt[phase]) * 100 / 230;
+        int length = SmaPacketBuilder.build(ByteBuffer.wrap(packet), 1, 0, powerDeciWatt, new long[4], current, new int[]{0, 230000, 230000, 230000});
+        SmaRecord record = new SmaRecord();
+        Assert.assertTrue(SmaParser.parse(ByteBuffer.wrap(packet), length, record));
+        return record;
+    }
+
+    @Test
+    public void formulaTest() {
+        SmaMeterTable table = new SmaMeterTable(" 3004908651 -3012345678+ 1900000001 ");
+        Assert.assertEquals(3004908651L, table.mainSerial());
+        Assert.assertEquals(3, table.size());
+        Assert.assertEquals(-1, table.meters()[1].sign);
+        Assert.assertEquals(1, table.meters()[2].sign);
+        Assert.assertEquals(-1, new SmaMeterTable("-3004908651").meters()[0].sign);
+        for (String bad : new String[]{"", "3004908651 -", "3004908651 3012345678", "3004908651 - - 3012345678", "abc", "1 + 1", "99999999999"}) {
+            try {
+                new SmaMeterTable(bad);
+                Assert.fail(bad);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void evaluateTest() {
+        SmaMeterTable table = new SmaMeterTable("100 - 200");
+        long now = 1000000000L;
+        int[] power = new int[4];
+        int[] current = new int[4];
+        Assert.assertFalse(table.seen(300, now).configured());  // other device, counted but not configured
+        Assert.assertEquals(3, table.size());
+        table.seen(200, now).store(record(-30000, -10000, -10000, -10000));  // battery branch, 3 kW into the house
+        table.seen(100, now).store(record(50000, 40000, 5000, 5000));
+        Assert.assertEquals(0, table.evaluate(now, power, current));
+        Assert.assertArrayEquals(new int[]{80000, 50000, 15000, 15000}, power);
+        Assert.assertEquals(21738, current[1]);  // 17391 + 4347 mA
+        // the battery meter goes silent: left out, the main meter alone counts
+        now += SmaMeterTable.STALE_NANOS + 1;
+        table.seen(100, now).store(record(50000, 40000, 5000, 5000));
+        Assert.assertEquals(1, table.evaluate(now, power, current));
+        Assert.assertArrayEquals(new int[]{50000, 40000, 5000, 5000}, power);
+        Assert.assertTrue(table.meters()[1].ageSeconds(now) > 5.0);
+        Assert.assertEquals(1.0 / (SmaMeterTable.STALE_NANOS + 1) * 1e9, table.meters()[0].packetsPerSecond(), 1e-9);
+    }
+}
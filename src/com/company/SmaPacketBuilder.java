@@ -0,0 +1,57 @@
+package com.company;
+
+import java.nio.ByteBuffer;
+
+// Builds SMA Speedwire energy meter datagrams laid out like the ones of an SMA home manager 2 (608 bytes)
+// Used by the simulator to stand in for a real meter, see SmaParser for the layout
+public final class SmaPacketBuilder {
+
+    static final int PACKET_LENGTH = 608;
+    static final int SUSY_ID_HOME_MANAGER = 0x0174;
+    static final int FIRMWARE_VERSION = 0x02001252;
+
+    private SmaPacketBuilder() {
+    }
+
+    public static int build(ByteBuffer b, long serial, long tickerMs, int[] powerDeciWatt, long[] energyWs, int[] currentMilliAmps, int[] voltageMilliVolts) {
+        // the arrays hold the 3 phase total at index 0 and L1 to L3 at 1 to 3, current and voltage only use 1 to 3
+        // power is net from the grid (negative is injection), energy is the consumed energy counter
+        // writes from position 0 and returns the packet length
+        b.clear();
+        b.putInt(SmaParser.SMA_SIGNATURE).putInt(0x000402A0).putInt(1);
+        b.putShort((short) 0).putShort((short) 0x0010).putShort((short) SmaParser.PROTOCOL_EMETER).putShort((short) SUSY_ID_HOME_MANAGER);
+        b.putInt((int) serial).putInt((int) tickerMs);
+        for (int phase = 0; phase < 4; phase++) {
+            int base = SmaRecord.PHASE_BASE[phase];
+            int power = powerDeciWatt[phase];
+            // active consumption and injection, then reactive and apparent power, each as actual value and counter
+            putChannel(b, base + SmaRecord.ACTIVE_POWER_POS, Math.max(power, 0), energyWs[phase]);
+            putChannel(b, base + SmaRecord.ACTIVE_POWER_NEG, Math.max(-power, 0), 0);
+            putChannel(b, base + 3, 0, 0);
+            putChannel(b, base + 4, 0, 0);
+            putChannel(b, base + 9, Math.abs(power), 0);
+            putChannel(b, base + 10, 0, 0);
+            if (phase == 0) {
+                putActual(b, 13, 1000);   // power factor
+                putActual(b, 14, 50000);  // frequency in mHz
+            } else {
+                putActual(b, base + SmaRecord.CURRENT, currentMilliAmps[phase]);
+                putActual(b, base + SmaRecord.VOLTAGE, voltageMilliVolts[phase]);
+                putActual(b, base + 13, 1000);
+            }
+        }
+        b.putInt(SmaParser.VERSION_CHANNEL << 24).putInt(FIRMWARE_VERSION);
+        b.putShort(12, (short) (b.position() - 16));
+        b.putInt(0);  // end of data
+        return b.position();
+    }
+
+    private static void putChannel(ByteBuffer b, int index, int actual, long counter) {
+        putActual(b, index, actual);
+        b.putInt((index << 16) | 0x0800).putLong(counter);
+    }
+
+    private static void putActual(ByteBuffer b, int index, int value) {
+        b.putInt((index << 16) | 0x0400).putInt(value);
+    }
+}
@@ -0,0 +1,66 @@
+package com.company;
+
+import java.nio.ByteBuffer;
+
+// Single pass parser for SMA Speedwire energy meter datagrams
+// Works with absolute reads on a ByteBuffer view of the receive buffer, nothing is copied or converted to hex
+// Layout: "SMA\0", tag 02A0 group, data length (byte 12-13), tag 0010, protocol 6069 (byte 16-17),
+// SUSy id (byte 18-19), serial (byte 20-23), ticker (byte 24-27) and from byte 28 on the OBIS channel records
+// Every record is a 4 byte id (channel, index, type, tariff) followed by a value of 'type' bytes, an id of 0 ends the list
+// We walk the records instead of using fixed offsets, those already changed once with a firmware update
+public final class SmaParser {
+
+    static final int SMA_SIGNATURE = 0x534D4100; // "SMA\0"
+    static final int PROTOCOL_EMETER = 0x6069;
+    static final int SERIAL_OFFSET = 20;
+    static final int FIRST_RECORD_OFFSET = 28;
+    static final int VERSION_CHANNEL = 0x90;
+
+    private SmaParser() {
+    }
+
+    public static long readSerial(ByteBuffer packet, int length) {
+        // only looks at the header, so packets of other devices can be dropped before parsing anything else
+        // returns -1 when this is not an SMA energy meter packet
+        if (length < FIRST_RECORD_OFFSET) return -1;
+        if (packet.getInt(0) != SMA_SIGNATURE) return -1;
+        if ((packet.getShort(16) & 0xFFFF) != PROTOCOL_EMETER) return -1;
+        // int is too short and would give negative serial numbers for some devices
+        return packet.getInt(SERIAL_OFFSET) & 0xFFFFFFFFL;
+    }
+
+    public static boolean parse(ByteBuffer packet, int length, SmaRecord record) {
+        record.clear();
+        long serial = readSerial(packet, length);
+        if (serial == -1) return false;
+        record.serial = serial;
+        record.susyId = packet.getShort(18) & 0xFFFF;
+        record.tickerMs = packet.getInt(24) & 0xFFFFFFFFL;
+        int end = Math.min(16 + (packet.getShort(12) & 0xFFFF), length);
+        int position = FIRST_RECORD_OFFSET;
+        while (position + 4 <= end) {
+            int id = packet.getInt(position);
+            if (id == 0) break;  // end of data
+            int channel = id >>> 24;
+            int index = (id >>> 16) & 0xFF;
+            int type = (id >>> 8) & 0xFF;
+            if (channel == VERSION_CHANNEL) {
+                if (position + 8 > end) return false;
+                record.version = packet.getInt(position + 4);
+                position += 8;
+            } else if (type == 4) {
+                if (position + 8 > end) return false;
+                record.setActual(index, packet.getInt(position + 4));
+                position += 8;
+            } else if (type == 8) {
+                if (position + 12 > end) return false;
+                record.setCounter(index, packet.getLong(position + 4));
+                position += 12;
+            } else {
+                return false;  // unknown record type, we can't know how far to skip
+            }
+            record.channelCount++;
+        }
+        return record.channelCount > 0;
+    }
+}
@@ -0,0 +1,58 @@
+package com.company;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+
+import static com.company.Main.parseSmaResponse;
+
+public class SmaParserTest {
+
+    static byte[] buildPacket(long serial, int[] powerDeciWatt) {
+        byte[] packet = new byte[SmaPacketBuilder.PACKET_LENGTH];
+        SmaPacketBuilder.build(ByteBuffer.wrap(packet), serial, 123456, powerDeciWatt, new long[]{4000, 1000, 2000, 1000},
+                new int[]{0, 1000, 2000, 3000}, new int[]{0, 230001, 230002, 230003});
+        return packet;
+    }
+
+    @Test
+    public void readSerialTest() {
+        byte[] packet = buildPacket(3004908651L, new int[]{12345, 1000, 2000, 9345});
+        Assert.assertEquals(3004908651L, SmaParser.readSerial(ByteBuffer.wrap(packet), packet.length));
+        Assert.assertEquals(-1, SmaParser.readSerial(ByteBuffer.wrap(packet), 20));  // too short
+        packet[0] = 0;
+        Assert.assertEquals(-1, SmaParser.readSerial(ByteBuffer.wrap(packet), packet.length));  // not SMA
+    }
+
+    @Test
+    public void parseTest() {
+        byte[] packet = buildPacket(3004908651L, new int[]{-12345, 1000, -2000, -11345});
+        SmaRecord record = new SmaRecord();
+        Assert.assertTrue(SmaParser.parse(ByteBuffer.wrap(packet), packet.length, record));
+        Assert.assertEquals(3004908651L, record.serial);
+        Assert.assertEquals(123456, record.tickerMs);
+        Assert.assertEquals(-12345, record.powerDeciWatt(0));
+        Assert.assertEquals(1000, record.powerDeciWatt(1));
+        Assert.assertEquals(-2000, record.powerDeciWatt(2));
+        Assert.assertEquals(-11345, record.powerDeciWatt(3));
+        Assert.assertEquals(2000, record.currentMilliAmps(2));
+        Assert.assertEquals(-2000, record.netCurrentMilliAmps(2));
+        Assert.assertEquals(230003, record.voltageMilliVolts(3));
+        Assert.assertEquals(50000, record.actual(14));
+        Assert.assertEquals(2000L, record.counter(41));
+        Assert.assertFalse(record.hasActual(5));
+        Assert.assertEquals(0x02001252, record.version);
+    }
+
+    @Test
+    public void parseSmaResponseTest() {
+        byte[] packet = buildPacket(3004908651L, new int[]{54321, 1000, 2000, 3000});
+        Main.smaResponseData smar = parseSmaResponse(packet);
+        Assert.assertNotNull(smar);
+        Assert.assertEquals(new BigDecimal("5432.1"), smar.power3f);
+        Assert.assertEquals(new BigDecimal("100.0"), smar.powerL1);
+        Assert.assertNull(parseSmaResponse(new byte[100]));
+    }
+}
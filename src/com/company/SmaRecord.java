@@ -0,0 +1,89 @@
+package com.company;
+
+import java.util.Arrays;
+
+// One decoded SMA energy meter datagram, re-used for every packet so parsing allocates nothing
+// Values are kept as the fixed-point integers SMA sends, indexed by the OBIS measurement index (byte 2 of the channel id):
+// actual values (type 4): power in 0.1 W, current in mA, voltage in mV, power factor and frequency in 0.001
+// counters (type 8): energy in Ws
+public final class SmaRecord {
+
+    // OBIS measurement index of the first channel of each group, 0 is the 3 phase total, then L1, L2 and L3
+    static final int[] PHASE_BASE = {0, 20, 40, 60};
+    static final int ACTIVE_POWER_POS = 1;
+    static final int ACTIVE_POWER_NEG = 2;
+    static final int CURRENT = 11;   // only per phase
+    static final int VOLTAGE = 12;   // only per phase
+
+    long serial;
+    int susyId;
+    long tickerMs;  // meter time stamp in ms, wraps around
+    int version;
+    int channelCount;
+    final int[] actual = new int[256];
+    final long[] counter = new long[256];
+    // one bit per measurement index, tells which values were present in the last packet
+    final long[] actualPresent = new long[4];
+    final long[] counterPresent = new long[4];
+
+    void clear() {
+        serial = 0;
+        susyId = 0;
+        tickerMs = 0;
+        version = 0;
+        channelCount = 0;
+        Arrays.fill(actualPresent, 0);
+        Arrays.fill(counterPresent, 0);
+    }
+
+    void setActual(int index, int value) {
+        actual[index] = value;
+        actualPresent[index >>> 6] |= 1L << index;
+    }
+
+    void setCounter(int index, long value) {
+        counter[index] = value;
+        counterPresent[index >>> 6] |= 1L << index;
+    }
+
+    public boolean hasActual(int index) {
+        return (actualPresent[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public boolean hasCounter(int index) {
+        return (counterPresent[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public int actual(int index) {
+        return hasActual(index) ? actual[index] : 0;
+    }
+
+    public long counter(int index) {
+        return hasCounter(index) ? counter[index] : 0;
+    }
+
+    public int powerDeciWatt(int phase) {
+        // net active power drawn from the grid in 0.1 W, negative when injecting
+        // phase 0 is the 3 phase total, 1 to 3 are L1 to L3
+        // SMA sends consumption and injection as 2 positive values, at least one of them is always zero
+        int base = PHASE_BASE[phase];
+        return actual(base + ACTIVE_POWER_POS) - actual(base + ACTIVE_POWER_NEG);
+    }
+
+    public int currentMilliAmps(int phase) {
+        // phase 1 to 3, always positive, the direction is in powerDeciWatt
+        return actual(PHASE_BASE[phase] + CURRENT);
+    }
+
+    public int netCurrentMilliAmps(int phase) {
+        // phase 1 to 3, current drawn from the grid with the sign of the power, negative when injecting
+        // a meter that does not send the current gets it from the power at 230 V
+        int power = powerDeciWatt(phase);
+        int current = hasActual(PHASE_BASE[phase] + CURRENT) ? currentMilliAmps(phase) : (int) Math.abs(power * 100L / 230);
+        return (power < 0) ? -current : current;
+    }
+
+    public int voltageMilliVolts(int phase) {
+        return actual(PHASE_BASE[phase] + VOLTAGE);
+    }
+}
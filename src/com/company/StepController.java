@@ -0,0 +1,30 @@
+package com.company;
+
+import static com.company.Main.*;
+
+// The original controller: on the last grid reading, the current goes up or down by at most max_amp_step per update
+// When the cars use nothing, the current is set to what the grid allows right away
+public class StepController implements ChargeController {
+
+    @Override
+    public void onGridSample(long nanos, double gridWatts) {
+        // only the last reading counts, that is currentPowerConsumption
+    }
+
+    @Override
+    public int update(long nanos, ControlSettings s, int setAmps, int usedAmps, int capAmps) {
+        int availableAmps = availableAmps(s, currentPowerConsumption, gridPhaseAmps);
+        int amps = setAmps;
+        if (availableAmps > s.maxAmpStep) {
+            amps += s.maxAmpStep;
+        } else if (availableAmps < -s.maxAmpStep) {
+            amps -= s.maxAmpStep;
+        } else {
+            amps += availableAmps;
+        }
+        if (Math.abs(usedAmps) < 1) {  // car is not actually charging so availableAmps is set value
+            amps = availableAmps;
+        }
+        return amps;
+    }
+}
@@ -0,0 +1,186 @@
+package com.company;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import static com.company.Main.*;
+
+// RS485 bus behind an Ethernet gateway that passes the raw bytes over TCP (gateway in TCP server mode, 9600 8N1 on the RS485 side)
+// In config.txt: rs485_port = tcp://192.168.1.50:4196
+// The socket is non-blocking: the TwcReceiver selector thread reads every TCP bus of the process (see selectableChannel)
+// and reconnects a lost one without holding up the others. read() is only there for a reader thread of its own
+// A write the socket does not take at once waits on a selector of its own for OP_WRITE, so a stalled gateway costs no CPU
+public class TcpTransport implements TwcTransport {
+
+    static final int CONNECT_TIMEOUT_MS = 3000;
+    static final int WRITE_TIMEOUT_MS = 1000;
+
+    private final String host;
+    private final int port;
+    private volatile SocketChannel channel;  // null while not connected
+    private Selector readSelector;  // only for read()
+    private final Object writeLock = new Object();
+    private Selector writeSelector;  // only for a write that has to wait, under writeLock
+
+    public TcpTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    static TcpTransport parse(String address) {
+        // tcp://host:port
+        String rest = address.substring("tcp://".length());
+        int colon = rest.lastIndexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("No port in " + address + ", use tcp://host:port");
+        return new TcpTransport(rest.substring(0, colon), Integer.parseInt(rest.substring(colon + 1)));
+    }
+
+    public synchronized boolean open() {
+        // connects and waits for it, at most CONNECT_TIMEOUT_MS
+        closeChannel();
+        SocketChannel ch = null;
+        try {
+            ch = SocketChannel.open();
+            ch.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            ch.socket().setTcpNoDelay(true);  // a heartbeat is one small write, it has to go out now
+            ch.configureBlocking(false);
+            channel = ch;
+            return true;
+        } catch (IOException e) {
+            closeQuietly(ch);
+            if (logging) logger.warning("Could not connect to " + name() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    synchronized SocketChannel connectLater() throws IOException {
+        // selector side: starts a connect that finishConnect completes when the selector says OP_CONNECT
+        closeChannel();
+        SocketChannel ch = SocketChannel.open();
+        try {
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            ch.connect(new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            closeQuietly(ch);
+            throw e;
+        }
+        return ch;
+    }
+
+    synchronized boolean finishConnect(SocketChannel ch) {
+        try {
+            if (!ch.finishConnect()) return false;
+            channel = ch;
+            return true;
+        } catch (IOException e) {
+            closeQuietly(ch);
+            if (logging) logger.warning("Could not connect to " + name() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public SelectableChannel selectableChannel() {
+        return channel;
+    }
+
+    int readAvailable(byte[] buffer, int offset, int length) {
+        // selector side, what is there now: 0 when nothing, -1 when the connection is lost
+        SocketChannel ch = channel;
+        if (ch == null) return -1;
+        try {
+            return ch.read(ByteBuffer.wrap(buffer, offset, length));
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        SocketChannel ch = channel;
+        if (ch == null) return -1;
+        try {
+            if (readSelector == null) readSelector = Selector.open();
+            SelectionKey key = ch.keyFor(readSelector);
+            if (key == null) ch.register(readSelector, SelectionKey.OP_READ);
+            readSelector.select(READ_TIMEOUT_MS);
+            readSelector.selectedKeys().clear();
+            return ch.read(ByteBuffer.wrap(buffer, offset, length));
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        SocketChannel ch = channel;
+        if (ch == null) throw new IOException(name() + " is not connected");
+        ByteBuffer bytes = ByteBuffer.wrap(buffer, offset, length);
+        long deadline = System.nanoTime() + WRITE_TIMEOUT_MS * 1000000L;
+        synchronized (writeLock) {
+            while (bytes.hasRemaining()) {
+                // a frame is far smaller than the socket buffer, this only waits when the gateway stopped taking bytes
+                if (ch.write(bytes) > 0) continue;
+                long waitMs = (deadline - System.nanoTime()) / 1000000L;
+                if (waitMs <= 0) throw new IOException("gateway " + name() + " took " + (length - bytes.remaining()) + " of " + length + " bytes");
+                if (writeSelector == null) writeSelector = Selector.open();
+                if (ch.keyFor(writeSelector) == null) ch.register(writeSelector, SelectionKey.OP_WRITE);
+                writeSelector.select(waitMs);
+                writeSelector.selectedKeys().clear();
+            }
+        }
+    }
+
+    @Override
+    public boolean reopen() {
+        return open();
+    }
+
+    @Override
+    public String name() {
+        return "tcp://" + host + ":" + port;
+    }
+
+    @Override
+    public synchronized void close() {
+        closeChannel();
+        if (readSelector != null) {
+            try {
+                readSelector.close();
+            } catch (IOException ignored) {
+                // nothing left to do
+            }
+            readSelector = null;
+        }
+        synchronized (writeLock) {
+            if (writeSelector != null) {
+                try {
+                    writeSelector.close();
+                } catch (IOException ignored) {
+                    // nothing left to do
+                }
+                writeSelector = null;
+            }
+        }
+    }
+
+    private void closeChannel() {
+        closeQuietly(channel);
+        channel = null;
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        if (ch == null) return;
+        try {
+            ch.close();
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.company;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class TcpTransportTest {
+
+    static final String LINKREADY = "C0FDE26388950C800000000000000000EEC0FC";
+
+    @After
+    public void cleanUp() {
+        Main.setLogging(true);
+    }
+
+    @Test
+    public void twoGatewaysTest() throws Exception {
+        // two gateways on one selector thread, every frame comes with its bus, a dropped connection is made again
+        Main.setLogging(false);
+        try (ServerSocket first = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             ServerSocket second = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            TcpTransport firstBus = TcpTransport.parse("tcp://127.0.0.1:" + first.getLocalPort());
+            TcpTransport secondBus = new TcpTransport("127.0.0.1", second.getLocalPort());
+            Assert.assertTrue(firstBus.open());
+            Assert.assertTrue(secondBus.open());
+            Socket firstGateway = first.accept();
+            Socket secondGateway = second.accept();
+            TwcReceiver receiver = new TwcReceiver(firstBus, secondBus);
+            Thread selector = new Thread(receiver, "test-select");
+            selector.start();
+            try {
+                send(secondGateway, LINKREADY.substring(0, 20));  // a frame in two pieces, another one comes in between
+                send(firstGateway, LINKREADY);
+                TwcFrame frame = receiver.nextFrame(2000);
+                Assert.assertNotNull(frame);
+                Assert.assertSame(firstBus, frame.bus);
+                send(secondGateway, LINKREADY.substring(20));
+                frame = receiver.nextFrame(2000);
+                Assert.assertNotNull(frame);
+                Assert.assertSame(secondBus, frame.bus);
+                Assert.assertEquals(LINKREADY, frame.toHexString());
+                Assert.assertTrue(frame.valid);
+                // writes go out on the bus they are meant for
+                byte[] heartbeat = Main.hexStringToByteArray(Main.buildBlock(Main.assembleMasterHeartbeat("7777", "6388", 0, 0, 32)));
+                secondBus.write(heartbeat, 0, heartbeat.length);
+                byte[] got = new byte[heartbeat.length];
+                InputStream in = secondGateway.getInputStream();
+                for (int n = 0; n < got.length; ) n += in.read(got, n, got.length - n);
+                Assert.assertArrayEquals(heartbeat, got);
+                // the gateway restarts: the receiver connects again and frames come in as before
+                firstGateway.close();
+                Socket again = first.accept();
+                send(again, LINKREADY);
+                frame = receiver.nextFrame(3000);
+                Assert.assertNotNull(frame);
+                Assert.assertSame(firstBus, frame.bus);
+                Assert.assertEquals(1, receiver.portReopens);
+                again.close();
+            } finally {
+                selector.interrupt();
+                selector.join(2000);
+                firstBus.close();
+                secondBus.close();
+                secondGateway.close();
+            }
+            Assert.assertFalse(selector.isAlive());
+        }
+    }
+
+    @Test
+    public void stalledGatewayTest() throws Exception {
+        // a gateway that takes no more bytes: the write gives up after WRITE_TIMEOUT_MS without spinning on the CPU meanwhile
+        Main.setLogging(false);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isCurrentThreadCpuTimeSupported());
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            TcpTransport bus = new TcpTransport("127.0.0.1", server.getLocalPort());
+            Assert.assertTrue(bus.open());
+            Socket gateway = server.accept();  // connected but never read
+            try {
+                byte[] block = new byte[65536];
+                for (int i = 0; i < 4096; i++) {
+                    long cpu = threads.getCurrentThreadCpuTime();
+                    long start = System.nanoTime();
+                    try {
+                        bus.write(block, 0, block.length);
+                    } catch (IOException e) {
+                        Assert.assertTrue(System.nanoTime() - start >= TcpTransport.WRITE_TIMEOUT_MS * 900000L);
+                        Assert.assertTrue("busy waiting", threads.getCurrentThreadCpuTime() - cpu < TcpTransport.WRITE_TIMEOUT_MS * 200000L);
+                        return;
+                    }
+                }
+                Assert.fail("256 MB taken by a gateway that does not read");
+            } finally {
+                bus.close();
+                gateway.close();
+            }
+        }
+    }
+
+    private static void send(Socket gateway, String hex) throws Exception {
+        OutputStream out = gateway.getOutputStream();
+        out.write(Main.hexStringToByteArray(hex));
+        out.flush();
+    }
+}
@@ -0,0 +1,50 @@
+package com.company;
+
+// History of one signal: every sample for about a day, plus 1 minute and 15 minute min/avg/max tiers
+// All storage is allocated up front, about 1 MB for the raw tier per sample a second, so memory use does not grow while running
+// A signal with more samples a second (the charger total gets one per slave heartbeat) grows the raw tier once with samplesPerSecond
+public class TimeSeries {
+
+    static final int RAW_CAPACITY = 24 * 3600;         // 24 hours at 1 sample per second
+    static final int MINUTE_CAPACITY = 7 * 24 * 60;    // 7 days of 1 minute buckets
+    static final int QUARTER_CAPACITY = 366 * 24 * 4;  // a year of 15 minute buckets
+
+    final String name;
+    final String unit;
+    final SampleRing raw = new SampleRing(RAW_CAPACITY);
+    final AggregateRing minutes = new AggregateRing(60000L, MINUTE_CAPACITY);
+    final AggregateRing quarters = new AggregateRing(900000L, QUARTER_CAPACITY);
+
+    public TimeSeries(String name, String unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    public void samplesPerSecond(int rate) {
+        // keeps the raw tier at 24 hours when rate samples come in every second
+        raw.grow(RAW_CAPACITY * Math.max(1, rate));
+    }
+
+    public void add(long timeMs, int value) {
+        raw.add(timeMs, value);
+        minutes.add(timeMs, value);
+        quarters.add(timeMs, value);
+    }
+
+    public String render(String tier, long fromMs, long toMs, boolean json) {
+        // tier is raw, 1m or 15m
+        StringBuilder sb = new StringBuilder();
+        if (json) {
+            sb.append("{\"series\":\"").append(name).append("\",\"unit\":\"").append(unit).append("\",\"tier\":\"").append(tier).append("\",");
+            if ("1m".equals(tier)) minutes.writeJson(fromMs, toMs, sb);
+            else if ("15m".equals(tier)) quarters.writeJson(fromMs, toMs, sb);
+            else raw.writeJson(fromMs, toMs, sb);
+            sb.append('}');
+        } else {
+            if ("1m".equals(tier)) minutes.writeCsv(fromMs, toMs, sb);
+            else if ("15m".equals(tier)) quarters.writeCsv(fromMs, toMs, sb);
+            else raw.writeCsv(fromMs, toMs, sb);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,57 @@
+package com.company;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimeSeriesTest {
+
+    @Test
+    public void sampleRingWrapTest() {
+        SampleRing ring = new SampleRing(3);
+        for (int i = 1; i <= 5; i++) ring.add(i * 1000L, i * 10);
+        Assert.assertEquals(3, ring.size());
+        StringBuilder sb = new StringBuilder();
+        ring.writeJson(0, Long.MAX_VALUE, sb);
+        Assert.assertEquals("\"t\":[3000,4000,5000],\"v\":[30,40,50]", sb.toString());
+    }
+
+    @Test
+    public void growTest() {
+        // the samples so far stay in order, the ring then wraps at the new size
+        SampleRing ring = new SampleRing(3);
+        for (int i = 1; i <= 5; i++) ring.add(i * 1000L, i * 10);
+        ring.grow(4);
+        ring.grow(2);
+        Assert.assertEquals(4, ring.capacity());
+        for (int i = 6; i <= 7; i++) ring.add(i * 1000L, i * 10);
+        StringBuilder sb = new StringBuilder();
+        ring.writeJson(0, Long.MAX_VALUE, sb);
+        Assert.assertEquals("\"t\":[4000,5000,6000,7000],\"v\":[40,50,60,70]", sb.toString());
+        // with 3 slaves the charger total still covers 24 hours
+        TimeSeries series = new TimeSeries("charger", "cA");
+        series.samplesPerSecond(3);
+        Assert.assertEquals(3 * TimeSeries.RAW_CAPACITY, series.raw.capacity());
+    }
+
+    @Test
+    public void aggregateTest() {
+        AggregateRing ring = new AggregateRing(60000L, 10);
+        ring.add(120000L, 10);
+        ring.add(150000L, 30);
+        ring.add(179999L, 20);
+        ring.add(180000L, -5);
+        Assert.assertEquals(2, ring.size());
+        StringBuilder sb = new StringBuilder();
+        ring.writeCsv(0, Long.MAX_VALUE, sb);
+        Assert.assertEquals("t,min,avg,max,n\r\n120000,10,20,30,3\r\n180000,-5,-5,-5,1\r\n", sb.toString());
+    }
+
+    @Test
+    public void renderRangeTest() {
+        TimeSeries series = new TimeSeries("grid", "dW");
+        for (int i = 0; i < 30; i++) series.add(i * 60000L, i);
+        Assert.assertEquals("{\"series\":\"grid\",\"unit\":\"dW\",\"tier\":\"15m\",\"t\":[900000],\"min\":[15],\"avg\":[22],\"max\":[29]}",
+                series.render("15m", 900000L, 2000000L, true));
+        Assert.assertEquals("t,v\r\n60000,1\r\n120000,2\r\n", series.render("raw", 60000L, 120000L, false));
+    }
+}
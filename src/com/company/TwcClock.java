@@ -0,0 +1,29 @@
+package com.company;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Time source of the control logic
+// Normally the system clock, a capture replay or a simulation puts in its own so the 60 second update interval,
+// the heartbeat deadlines and the history time stamps follow the replayed or simulated time instead of the wall clock
+public interface TwcClock {
+
+    long nanoTime();
+
+    long currentTimeMillis();
+
+    default void parkNanos(long nanos) {
+        LockSupport.parkNanos(nanos);
+    }
+
+    TwcClock SYSTEM = new TwcClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+}
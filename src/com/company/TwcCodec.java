@@ -0,0 +1,152 @@
+package com.company;
+
+import java.nio.ByteBuffer;
+
+// Binary codec for the frames on the TWC RS485 bus
+// A frame on the wire looks like C0 <escaped message + checksum> C0, the slave adds an extra FC at the end
+// Escaping is SLIP-style: a C0 inside the message is sent as DB DC, a DB is sent as DB DD
+// All methods work on byte arrays supplied by the caller, so nothing is allocated per frame
+public final class TwcCodec {
+
+    static final byte FRAME_DELIMITER = (byte) 0xC0;
+    static final byte FRAME_TRAILER = (byte) 0xFC;
+    static final byte ESCAPE = (byte) 0xDB;
+    static final byte ESCAPED_DELIMITER = (byte) 0xDC;
+    static final byte ESCAPED_ESCAPE = (byte) 0xDD;
+    // longest message is 19 bytes + checksum, escaping can double that, plus delimiters and trailer
+    static final int MAX_FRAME_LENGTH = 48;
+
+    private TwcCodec() {
+    }
+
+    public static int checksum(byte[] message, int offset, int length) {
+        // do not include first byte in checksum calculation
+        int checksum = 0;
+        for (int i = offset + 1; i < offset + length; i++) {
+            checksum += message[i] & 0xFF;
+        }
+        return checksum & 0xFF;  // only the least significant byte matters
+    }
+
+    public static int escape(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        // returns the number of bytes written to dst, which needs room for 2 * length bytes
+        int d = dstOffset;
+        for (int i = srcOffset; i < srcOffset + length; i++) {
+            d = escapeByte(src[i], dst, d);
+        }
+        return d - dstOffset;
+    }
+
+    public static int unescape(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        // returns the number of bytes written to dst
+        // the result is never longer than the input, so this can run in place when dstOffset <= srcOffset
+        int d = dstOffset;
+        int end = srcOffset + length;
+        int i = srcOffset;
+        while (i < end) {
+            byte b = src[i++];
+            if ((b == ESCAPE) && (i < end)) {
+                if (src[i] == ESCAPED_DELIMITER) {
+                    b = FRAME_DELIMITER;
+                    i++;
+                } else if (src[i] == ESCAPED_ESCAPE) {
+                    i++;
+                }
+            }
+            dst[d++] = b;
+        }
+        return d - dstOffset;
+    }
+
+    public static int encodeFrame(byte[] message, int offset, int length, byte[] dst, int dstOffset) {
+        // calculates the checksum, escapes message + checksum and puts C0 in front and at the end
+        // returns the number of bytes written to dst
+        int d = dstOffset;
+        dst[d++] = FRAME_DELIMITER;
+        d += escape(message, offset, length, dst, d);
+        d = escapeByte((byte) checksum(message, offset, length), dst, d);
+        dst[d++] = FRAME_DELIMITER;
+        return d - dstOffset;
+    }
+
+    public static int encodeFrame(byte[] message, int offset, int length, ByteBuffer dst) {
+        // same as above but writes at the position of the buffer and advances it
+        int start = dst.position();
+        dst.put(FRAME_DELIMITER);
+        for (int i = offset; i < offset + length; i++) {
+            putEscaped(message[i], dst);
+        }
+        putEscaped((byte) checksum(message, offset, length), dst);
+        dst.put(FRAME_DELIMITER);
+        return dst.position() - start;
+    }
+
+    public static boolean isValidFrame(byte[] frame, int offset, int length) {
+        // frame must start with C0, end with C0 FC and the checksum must match
+        // the message is de-escaped on the fly, so the frame itself is left untouched
+        if (length < 4) return false;
+        int end = offset + length;
+        if ((frame[offset] != FRAME_DELIMITER) || (frame[end - 2] != FRAME_DELIMITER) || (frame[end - 1] != FRAME_TRAILER))
+            return false;
+        int count = 0;
+        int sum = 0;
+        int last = 0;
+        int i = offset + 1;
+        while (i < end - 2) {
+            byte b = frame[i++];
+            if ((b == ESCAPE) && (i < end - 2)) {
+                if (frame[i] == ESCAPED_DELIMITER) {
+                    b = FRAME_DELIMITER;
+                    i++;
+                } else if (frame[i] == ESCAPED_ESCAPE) {
+                    i++;
+                }
+            }
+            last = b & 0xFF;
+            if (count > 0) sum += last;  // first byte doesn't count
+            count++;
+        }
+        if (count < 2) return false;
+        return ((sum - last) & 0xFF) == last;  // last byte is the checksum itself
+    }
+
+    public static int findLastFrameEnd(byte[] buffer, int offset, int length) {
+        // returns the index just after the last C0 FC in the buffer, or -1 if there is none
+        for (int i = offset + length - 2; i >= offset; i--) {
+            if ((buffer[i] == FRAME_DELIMITER) && (buffer[i + 1] == FRAME_TRAILER)) return i + 2;
+        }
+        return -1;
+    }
+
+    public static int findFrameStart(byte[] buffer, int offset, int frameEnd) {
+        // returns the index of the C0 that opens the frame ending at frameEnd, or -1 if there is none
+        // escaping guarantees there is no C0 inside the message, so the first one going backwards is the start
+        for (int i = frameEnd - 3; i >= offset; i--) {
+            if (buffer[i] == FRAME_DELIMITER) return i;
+        }
+        return -1;
+    }
+
+    private static int escapeByte(byte b, byte[] dst, int d) {
+        if (b == FRAME_DELIMITER) {
+            dst[d++] = ESCAPE;
+            dst[d++] = ESCAPED_DELIMITER;
+        } else if (b == ESCAPE) {
+            dst[d++] = ESCAPE;
+            dst[d++] = ESCAPED_ESCAPE;
+        } else {
+            dst[d++] = b;
+        }
+        return d;
+    }
+
+    private static void putEscaped(byte b, ByteBuffer dst) {
+        if (b == FRAME_DELIMITER) {
+            dst.put(ESCAPE).put(ESCAPED_DELIMITER);
+        } else if (b == ESCAPE) {
+            dst.put(ESCAPE).put(ESCAPED_ESCAPE);
+        } else {
+            dst.put(b);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.company;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.company.Main.byteArrayToHexString;
+import static com.company.Main.hexStringToByteArray;
+
+public class TwcCodecTest {
+
+    @Test
+    public void checksumTest() {
+        byte[] message = hexStringToByteArray("FDE06388777709051404D200000000");
+        Assert.assertEquals(0xB1, TwcCodec.checksum(message, 0, message.length));
+        message = hexStringToByteArray("F2E26388950C800000000000000000");
+        Assert.assertEquals(0xEE, TwcCodec.checksum(message, 0, message.length));  // first byte doesn't count
+    }
+
+    @Test
+    public void escapeTest() {
+        byte[] message = hexStringToByteArray("FDE2638895C000DB0E");
+        byte[] escaped = new byte[message.length * 2];
+        int length = TwcCodec.escape(message, 0, message.length, escaped, 0);
+        Assert.assertEquals("FDE2638895DBDC00DBDD0E", byteArrayToHexString(escaped, 0, length));
+    }
+
+    @Test
+    public void unescapeInPlaceTest() {
+        byte[] message = hexStringToByteArray("FDE2638895DBDC00DBDD0E");
+        int length = TwcCodec.unescape(message, 0, message.length, message, 0);
+        Assert.assertEquals("FDE2638895C000DB0E", byteArrayToHexString(message, 0, length));
+    }
+
+    @Test
+    public void encodeFrameTest() {
+        byte[] message = hexStringToByteArray("FDE06388777709051404DA00000000");
+        byte[] frame = new byte[TwcCodec.MAX_FRAME_LENGTH];
+        int length = TwcCodec.encodeFrame(message, 0, message.length, frame, 0);
+        Assert.assertEquals("C0FDE06388777709051404DA00000000B9C0", byteArrayToHexString(frame, 0, length));
+        ByteBuffer buffer = ByteBuffer.allocate(TwcCodec.MAX_FRAME_LENGTH);
+        Assert.assertEquals(length, TwcCodec.encodeFrame(message, 0, message.length, buffer));
+        Assert.assertEquals("C0FDE06388777709051404DA00000000B9C0", byteArrayToHexString(buffer.array(), 0, buffer.position()));
+    }
+
+    @Test
+    public void isValidFrameTest() {
+        byte[] frame = hexStringToByteArray("C0FDE06388777709051404DBDC000000009FC0FC");
+        Assert.assertTrue(TwcCodec.isValidFrame(frame, 0, frame.length));
+        frame = hexStringToByteArray("FFC0FBE0777763880903200000000000E5C0FCFF");
+        Assert.assertTrue(TwcCodec.isValidFrame(frame, 1, frame.length - 2));
+        frame = hexStringToByteArray("C0FDE063887777090000000000000000C3C0FC");
+        Assert.assertFalse(TwcCodec.isValidFrame(frame, 0, frame.length));  // wrong checksum
+        frame = hexStringToByteArray("C0FDE063887777090000000000000000C2C0C0");
+        Assert.assertFalse(TwcCodec.isValidFrame(frame, 0, frame.length));  // must end with C0FC
+    }
+
+    @Test
+    public void findFrameTest() {
+        byte[] raw = hexStringToByteArray("C0FDE0638877FFC0FDE26388760C800000000000000000CFC0FC");
+        int frameEnd = TwcCodec.findLastFrameEnd(raw, 0, raw.length);
+        Assert.assertEquals(raw.length, frameEnd);
+        Assert.assertEquals(7, TwcCodec.findFrameStart(raw, 0, frameEnd));
+        raw = hexStringToByteArray("6388090320C0");
+        Assert.assertEquals(-1, TwcCodec.findLastFrameEnd(raw, 0, raw.length));
+    }
+}
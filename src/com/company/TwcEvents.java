@@ -0,0 +1,129 @@
+package com.company;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+
+import static com.company.Main.*;
+
+// Changes of the TWC slaves, for the ones that want to know: the log, the web stream and the charge session accounting
+// onHeartbeat brings a slave up to date with its last FDE0 and tells the listeners only what changed,
+// so a charger that reports the same status and current every second costs a few compares and nothing else
+// Listeners are called on the control loop and should not block
+public class TwcEvents {
+
+    static final long SILENCE_NANOS = 10 * 1000000000L;  // a slave not heard for longer than this was gone
+
+    public interface Listener {
+
+        default void slaveJoined(TwcSlave slave, boolean known) {
+            // a linkready, known is true for a slave that was in the table already
+        }
+
+        default void heardAgain(TwcSlave slave, TwcMessage message) {
+            // first heartbeat after SILENCE_NANOS without one, slave.lastSeenNanos is still the time of the one before
+        }
+
+        default void statusChanged(TwcSlave slave, int previous, TwcMessage message) {
+            // the status byte, acknowledgements (06, 07, 09) are not a status
+        }
+
+        default void currentChanged(TwcSlave slave, TwcMessage message) {
+            // the set or used current the slave reports, slave.reportedSetAmps and slave.usedAmps have the new values
+        }
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    volatile long events = 0;
+
+    public TwcEvents(Listener... listeners) {
+        for (Listener listener : listeners) add(listener);
+    }
+
+    public void add(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void remove(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void onLinkready(TwcSlave slave, boolean known) {
+        events++;
+        for (int i = 0; i < listeners.size(); i++) listeners.get(i).slaveJoined(slave, known);
+    }
+
+    public void onHeartbeat(TwcSlave slave, TwcMessage message) {
+        // a slave heartbeat of this slave, decoded in message
+        if (message.nanos - slave.lastSeenNanos > SILENCE_NANOS) {
+            events++;
+            for (int i = 0; i < listeners.size(); i++) listeners.get(i).heardAgain(slave, message);
+        }
+        slave.lastSeenNanos = message.nanos;
+        if (message.bus != null) slave.bus = message.bus;  // a charger that was moved to another bus
+        if (!message.isAcknowledgement() && (message.status != slave.status)) {
+            int previous = slave.status;
+            slave.status = message.status;
+            events++;
+            for (int i = 0; i < listeners.size(); i++) listeners.get(i).statusChanged(slave, previous, message);
+        }
+        double setAmps = message.setCentiAmps / 100.0;
+        double usedAmps = message.usedCentiAmps / 100.0;
+        if ((setAmps != slave.reportedSetAmps) || (usedAmps != slave.usedAmps)) {
+            slave.reportedSetAmps = setAmps;
+            slave.usedAmps = usedAmps;
+            events++;
+            for (int i = 0; i < listeners.size(); i++) listeners.get(i).currentChanged(slave, message);
+        }
+    }
+
+    // what used to be logged for every heartbeat, now only when it changes
+    static final Listener LOG = new Listener() {
+
+        @Override
+        public void slaveJoined(TwcSlave slave, boolean known) {
+            if (logging) {
+                logger.info("SlaveId " + slave.id + ", SlaveSign " + slave.sign + ", max amps " + slave.maxAmps +
+                        (known ? ", already known" : ", " + slaves.size() + " slave(s) on the bus"));
+            }
+        }
+
+        @Override
+        public void heardAgain(TwcSlave slave, TwcMessage message) {
+            if (logging) logger.info("Slave " + slave.id + " heard again after " + (message.nanos - slave.lastSeenNanos) / 1000000000L + " s");
+        }
+
+        @Override
+        public void statusChanged(TwcSlave slave, int previous, TwcMessage message) {
+            if (logging) logger.info("Slave " + slave.id + ": " + TwcMessage.statusText(message.status));
+        }
+
+        @Override
+        public void currentChanged(TwcSlave slave, TwcMessage message) {
+            if (logging) {
+                logger.log(Level.INFO, "Slave {0} reports charging current {1} A set, {2} A used", new Object[]{slave.id, slave.reportedSetAmps, slave.usedAmps});
+            }
+        }
+    };
+
+    // the "twc" event of /api/stream, when the status or the current of a slave changed
+    static final Listener STREAM = new Listener() {
+
+        @Override
+        public void statusChanged(TwcSlave slave, int previous, TwcMessage message) {
+            if ((message.setCentiAmps / 100.0 == slave.reportedSetAmps) && (message.usedCentiAmps / 100.0 == slave.usedAmps)) publish(slave, message);
+            // otherwise currentChanged follows and publishes both
+        }
+
+        @Override
+        public void currentChanged(TwcSlave slave, TwcMessage message) {
+            publish(slave, message);
+        }
+
+        private void publish(TwcSlave slave, TwcMessage message) {
+            if (!hasStreamSubscribers()) return;
+            publishEvent("twc", "{\"time\":" + message.millis + ",\"slave\":\"" + slave.id + "\",\"status\":" + slave.status +
+                    ",\"setAmps\":" + (message.setCentiAmps / 100.0) + ",\"usedAmps\":" + (message.usedCentiAmps / 100.0) + "}");
+        }
+    };
+}
@@ -0,0 +1,24 @@
+package com.company;
+
+// One complete frame as it came in from the RS485 bus, still escaped and including C0 ... C0 FC
+// timestampNanos is Main.clock.nanoTime() (the injected TwcClock, simulated time in the simulator) of the read that delivered the last byte of the frame
+public final class TwcFrame {
+
+    final byte[] bytes;
+    final int length;
+    final long timestampNanos;
+    final boolean valid;
+    final TwcTransport bus;  // where it came in
+
+    TwcFrame(byte[] bytes, int length, long timestampNanos, boolean valid, TwcTransport bus) {
+        this.bytes = bytes;
+        this.length = length;
+        this.timestampNanos = timestampNanos;
+        this.valid = valid;
+        this.bus = bus;
+    }
+
+    public String toHexString() {
+        return Main.byteArrayToHexString(bytes, 0, length);
+    }
+}
@@ -0,0 +1,88 @@
+package com.company;
+
+// Incremental parser for the TWC RS485 byte stream
+// Bytes can be fed in any chunk size, every complete C0 ... C0 FC frame is handed to the listener
+// as soon as its last byte comes in, so concatenated or partial reads no longer lose frames
+// The frame bytes are passed in the parser's own buffer, the listener has to copy what it wants to keep
+// Frames from the master end at the closing C0 without FC, a parser made with withTrailer false accepts those
+public final class TwcFrameParser {
+
+    public interface FrameListener {
+        void onFrame(byte[] frame, int length, long timestampNanos);
+    }
+
+    private static final int IDLE = 0;       // waiting for an opening C0
+    private static final int IN_FRAME = 1;   // collecting message bytes
+    private static final int END_SEEN = 2;   // closing C0 seen, waiting for FC
+
+    private final FrameListener listener;
+    private final boolean withTrailer;
+    private final byte[] frame = new byte[TwcCodec.MAX_FRAME_LENGTH];
+    private int length = 0;
+    private int state = IDLE;
+    // frames that were closed by C0 but not followed by FC, these are the master frames echoed on the bus
+    long unterminatedFrames = 0;
+    // frames that grew longer than any valid TWC frame, mostly line noise
+    long oversizedFrames = 0;
+
+    public TwcFrameParser(FrameListener listener) {
+        this(listener, true);
+    }
+
+    public TwcFrameParser(FrameListener listener, boolean withTrailer) {
+        this.listener = listener;
+        this.withTrailer = withTrailer;
+    }
+
+    public void feed(byte[] buffer, int offset, int count, long timestampNanos) {
+        for (int i = offset; i < offset + count; i++) {
+            byte b = buffer[i];
+            switch (state) {
+                case IDLE:
+                    if (b == TwcCodec.FRAME_DELIMITER) startFrame();
+                    break;
+                case IN_FRAME:
+                    if (b == TwcCodec.FRAME_DELIMITER) {
+                        if (length > 1) {
+                            frame[length++] = b;
+                            if (withTrailer) {
+                                state = END_SEEN;
+                            } else {
+                                state = IDLE;
+                                listener.onFrame(frame, length, timestampNanos);
+                            }
+                        }  // else C0 C0, keep the second one as the start
+                    } else if (length >= frame.length - 2) {
+                        oversizedFrames++;
+                        state = IDLE;
+                    } else {
+                        frame[length++] = b;
+                    }
+                    break;
+                case END_SEEN:
+                    if (b == TwcCodec.FRAME_TRAILER) {
+                        frame[length++] = b;
+                        state = IDLE;
+                        listener.onFrame(frame, length, timestampNanos);
+                    } else {
+                        // the C0 did not close a frame after all, it opened the next one
+                        unterminatedFrames++;
+                        startFrame();
+                        if (b != TwcCodec.FRAME_DELIMITER) frame[length++] = b;
+                    }
+                    break;
+            }
+        }
+    }
+
+    public void reset() {
+        state = IDLE;
+        length = 0;
+    }
+
+    private void startFrame() {
+        frame[0] = TwcCodec.FRAME_DELIMITER;
+        length = 1;
+        state = IN_FRAME;
+    }
+}
@@ -0,0 +1,51 @@
+package com.company;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.company.Main.byteArrayToHexString;
+import static com.company.Main.hexStringToByteArray;
+
+public class TwcFrameParserTest {
+
+    private final List<String> frames = new ArrayList<>();
+    private final List<Long> timestamps = new ArrayList<>();
+    private final TwcFrameParser parser = new TwcFrameParser((frame, length, timestampNanos) -> {
+        frames.add(byteArrayToHexString(frame, 0, length));
+        timestamps.add(timestampNanos);
+    });
+
+    @Test
+    public void concatenatedFramesTest() {
+        byte[] raw = hexStringToByteArray("C0FDE26388610C800000000000000000BAC0FCC0FDE06388777709051404DBDC000000009FC0FC");
+        parser.feed(raw, 0, raw.length, 1);
+        Assert.assertEquals(2, frames.size());
+        Assert.assertEquals("C0FDE26388610C800000000000000000BAC0FC", frames.get(0));
+        Assert.assertEquals("C0FDE06388777709051404DBDC000000009FC0FC", frames.get(1));
+    }
+
+    @Test
+    public void partialReadsTest() {
+        byte[] raw = hexStringToByteArray("63880903200000000000E5C0C0FDE26388950C800000000000000000EEC0FC");
+        parser.feed(raw, 0, 20, 1);
+        Assert.assertEquals(0, frames.size());
+        parser.feed(raw, 20, raw.length - 21, 2);
+        Assert.assertEquals(0, frames.size());
+        parser.feed(raw, raw.length - 1, 1, 3);  // the FC completes the frame
+        Assert.assertEquals(1, frames.size());
+        Assert.assertEquals("C0FDE26388950C800000000000000000EEC0FC", frames.get(0));
+        Assert.assertEquals(3L, (long) timestamps.get(0));
+    }
+
+    @Test
+    public void masterEchoAndNoiseTest() {
+        byte[] raw = hexStringToByteArray("C0FBE0777763880903200000000000E5C0C0FDE0638877FFC0FDE26388760C800000000000000000CFC0FC");
+        parser.feed(raw, 0, raw.length, 1);
+        Assert.assertEquals(1, frames.size());
+        Assert.assertEquals("C0FDE26388760C800000000000000000CFC0FC", frames.get(0));
+        Assert.assertEquals(2, parser.unterminatedFrames);
+    }
+}
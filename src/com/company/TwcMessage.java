@@ -0,0 +1,133 @@
+package com.company;
+
+// One TWC message decoded from a frame, the fields read at fixed offsets of the unescaped message
+// The control loop keeps one instance and decodes every frame into it (decode), so nothing is allocated per frame
+// Layouts, after C0 and de-escaping, the checksum last:
+//   slave linkready  FD E2 <slave id 2> <sign 1> <max current 0.01 A 2> <zeros>
+//   master heartbeat FB E0 <master id 2> <slave id 2> <command 1> <current 0.01 A 2> <zeros>
+//   slave heartbeat  FD E0 <slave id 2> <master id 2> <status 1> <set current 0.01 A 2> <used current 0.01 A 2> <zeros>
+// The type comes from the first two bytes through TYPES, the meaning of a status byte from STATUS_TEXT
+public final class TwcMessage {
+
+    public enum Type {
+        SLAVE_LINKREADY(0xFDE2, 9),
+        MASTER_LINKREADY(0xFBE2, 7),
+        MASTER_LINKREADY1(0xFCE1, 7),
+        MASTER_HEARTBEAT(0xFBE0, 10),
+        SLAVE_HEARTBEAT(0xFDE0, 12),
+        UNKNOWN(-1, 0);
+
+        final int code;
+        final int minLength;  // message with checksum, shorter ones are not decoded
+
+        Type(int code, int minLength) {
+            this.code = code;
+            this.minLength = minLength;
+        }
+    }
+
+    static final Type[] TYPES = Type.values();
+    static final int MAX_LENGTH = TwcCodec.MAX_FRAME_LENGTH;
+
+    // indexed by the status byte of a slave heartbeat, null for the ones the TWC does not send
+    static final String[] STATUS_TEXT = new String[256];
+    static final boolean[] ACKNOWLEDGEMENT = new boolean[256];  // says nothing about the car
+
+    static {
+        STATUS_TEXT[0x00] = "Charger ready";
+        STATUS_TEXT[0x01] = "Car plugged in, charging";
+        STATUS_TEXT[0x02] = "Error status";
+        STATUS_TEXT[0x03] = "Car plugged in, not charging";
+        STATUS_TEXT[0x04] = "Car plugged in, ready to charge";
+        STATUS_TEXT[0x05] = "Busy";
+        STATUS_TEXT[0x06] = "Slave acknowledges reception of command code 6";
+        STATUS_TEXT[0x07] = "Slave acknowledges reception of command code 7";
+        STATUS_TEXT[0x08] = "Car plugged in, starting to charge";
+        STATUS_TEXT[0x09] = "Slave acknowledges reception of command code 9";
+        ACKNOWLEDGEMENT[0x06] = true;
+        ACKNOWLEDGEMENT[0x07] = true;
+        ACKNOWLEDGEMENT[0x09] = true;
+    }
+
+    final byte[] data = new byte[MAX_LENGTH];  // the unescaped message
+    int length;
+    Type type = Type.UNKNOWN;
+    int sender;  // the id of the one that sent it, 2 bytes
+    int receiver;  // heartbeats only
+    int sign;  // slave linkready
+    int maxCentiAmps;  // slave linkready
+    int command;  // master heartbeat
+    int status;  // slave heartbeat
+    int setCentiAmps;  // the current in a master heartbeat, the one the slave is set to in a slave heartbeat
+    int usedCentiAmps;  // slave heartbeat
+    long nanos;  // when it came in, on Main.clock
+    long millis;  // the same on the wall clock, set by the caller of decode
+    TwcTransport bus;
+
+    public boolean decode(byte[] frame, int offset, int frameLength, long nanos, TwcTransport bus) {
+        // frame as it came in: C0 <escaped message + checksum> C0 FC (the FC may be missing), false when it is not one we know
+        this.nanos = nanos;
+        this.bus = bus;
+        type = Type.UNKNOWN;
+        int end = offset + frameLength;
+        if ((end > offset) && (frame[end - 1] == TwcCodec.FRAME_TRAILER)) end--;
+        if ((end > offset) && (frame[end - 1] == TwcCodec.FRAME_DELIMITER)) end--;
+        int start = ((frameLength > 0) && (frame[offset] == TwcCodec.FRAME_DELIMITER)) ? offset + 1 : offset;
+        if ((end - start < 2) || (end - start > MAX_LENGTH)) return false;
+        length = TwcCodec.unescape(frame, start, end - start, data, 0);
+        int code = word(0);
+        for (Type candidate : TYPES) {
+            if ((candidate.code == code) && (length >= candidate.minLength)) type = candidate;
+        }
+        switch (type) {
+            case SLAVE_LINKREADY:
+                sender = word(2);
+                sign = data[4] & 0xFF;
+                maxCentiAmps = word(5);
+                return true;
+            case MASTER_HEARTBEAT:
+                sender = word(2);
+                receiver = word(4);
+                command = data[6] & 0xFF;
+                setCentiAmps = word(7);
+                return true;
+            case SLAVE_HEARTBEAT:
+                sender = word(2);
+                receiver = word(4);
+                status = data[6] & 0xFF;
+                setCentiAmps = word(7);
+                usedCentiAmps = word(9);
+                return true;
+            case MASTER_LINKREADY:
+            case MASTER_LINKREADY1:
+                sender = word(2);
+                sign = data[4] & 0xFF;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private int word(int at) {
+        return ((data[at] & 0xFF) << 8) | (data[at + 1] & 0xFF);
+    }
+
+    public int maxAmps() {
+        // rating of the charger, 32 or 80
+        return maxCentiAmps / 100;
+    }
+
+    public boolean isAcknowledgement() {
+        return ACKNOWLEDGEMENT[status];
+    }
+
+    public static String statusText(int status) {
+        String text = ((status >= 0) && (status < 256)) ? STATUS_TEXT[status] : null;
+        return (text == null) ? "Unknown TWC status " + Main.byteToHexString(status) : text;
+    }
+
+    public static String id(int id) {
+        // the 2 byte id as the 4 hex digits used everywhere else
+        return Main.byteToHexString(id >>> 8) + Main.byteToHexString(id);
+    }
+}
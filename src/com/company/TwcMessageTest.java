@@ -0,0 +1,133 @@
+package com.company;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TwcMessageTest {
+
+    static final byte[] HEARTBEAT = Main.hexStringToByteArray("C0FDE06388777701051404D200000000B1C0FC");
+
+    @After
+    public void cleanUp() {
+        Main.clock = TwcClock.SYSTEM;
+        Main.setLogging(true);
+    }
+
+    @Test
+    public void decodeTest() {
+        TwcMessage message = new TwcMessage();
+        Assert.assertTrue(message.decode(HEARTBEAT, 0, HEARTBEAT.length, 42, null));
+        Assert.assertEquals(TwcMessage.Type.SLAVE_HEARTBEAT, message.type);
+        Assert.assertEquals(0x6388, message.sender);
+        Assert.assertEquals(0x7777, message.receiver);
+        Assert.assertEquals(0x01, message.status);
+        Assert.assertEquals(1300, message.setCentiAmps);
+        Assert.assertEquals(1234, message.usedCentiAmps);
+        Assert.assertEquals(42, message.nanos);
+        Assert.assertEquals("6388", TwcMessage.id(message.sender));
+        // an 80 A charger, the rating is read where it is and not found anywhere in the frame
+        byte[] linkready = Main.hexStringToByteArray("C0FDE20C80951F40000000000000000000C0FC");
+        Assert.assertTrue(message.decode(linkready, 0, linkready.length, 0, null));
+        Assert.assertEquals(TwcMessage.Type.SLAVE_LINKREADY, message.type);
+        Assert.assertEquals(0x0C80, message.sender);
+        Assert.assertEquals(0x95, message.sign);
+        Assert.assertEquals(80, message.maxAmps());
+        // a C0 in the message goes over the bus as DB DC, the fields after it stay where they are
+        byte[] escaped = Main.hexStringToByteArray("C0FDE063DBDC777704DBDC00DBDD000000000000C0");
+        Assert.assertTrue(message.decode(escaped, 0, escaped.length, 0, null));
+        Assert.assertEquals(0x63C0, message.sender);
+        Assert.assertEquals(0x04, message.status);
+        Assert.assertEquals(0xC000, message.setCentiAmps);
+        Assert.assertEquals(0xDB00, message.usedCentiAmps);
+        // the master heartbeat and frames that are too short or not known
+        byte[] master = Main.hexStringToByteArray("C0FBE0777763880905DC000000000000A8C0");
+        Assert.assertTrue(message.decode(master, 0, master.length, 0, null));
+        Assert.assertEquals(TwcMessage.Type.MASTER_HEARTBEAT, message.type);
+        Assert.assertEquals(0x6388, message.receiver);
+        Assert.assertEquals(0x09, message.command);
+        Assert.assertEquals(1500, message.setCentiAmps);
+        Assert.assertFalse(message.decode(HEARTBEAT, 0, 8, 0, null));
+        Assert.assertFalse(message.decode(Main.hexStringToByteArray("C0FDEB6388C0"), 0, 6, 0, null));
+        Assert.assertEquals(TwcMessage.Type.UNKNOWN, message.type);
+        Assert.assertEquals("Car plugged in, charging", TwcMessage.statusText(0x01));
+        Assert.assertEquals("Unknown TWC status 0A", TwcMessage.statusText(0x0A));
+    }
+
+    @Test
+    public void changeOnlyTest() {
+        // a hundred times the same heartbeat is one status and one current change, an acknowledgement is not a status
+        Main.setLogging(false);
+        int[] counts = new int[3];
+        TwcEvents events = new TwcEvents(new TwcEvents.Listener() {
+            @Override
+            public void statusChanged(TwcSlave slave, int previous, TwcMessage message) {
+                counts[0]++;
+            }
+
+            @Override
+            public void currentChanged(TwcSlave slave, TwcMessage message) {
+                counts[1]++;
+            }
+
+            @Override
+            public void heardAgain(TwcSlave slave, TwcMessage message) {
+                counts[2]++;
+            }
+        });
+        TwcSlave slave = new TwcSlave("6388", "95", 32);
+        TwcMessage message = new TwcMessage();
+        long nanos = slave.lastSeenNanos;
+        for (int i = 0; i < 100; i++) {
+            message.decode(HEARTBEAT, 0, HEARTBEAT.length, nanos += 1000000000L, null);
+            events.onHeartbeat(slave, message);
+        }
+        Assert.assertArrayEquals(new int[]{1, 1, 0}, counts);
+        Assert.assertEquals(0x01, slave.status);
+        Assert.assertEquals(12.34, slave.usedAmps, 0);
+        Assert.assertEquals(13.0, slave.reportedSetAmps, 0);
+        message.status = 0x09;  // as if decoded from an acknowledgement
+        events.onHeartbeat(slave, message);
+        Assert.assertArrayEquals(new int[]{1, 1, 0}, counts);
+        Assert.assertEquals(0x01, slave.status);
+        // after a minute without a heartbeat it is heard again, with another current
+        message.nanos += 60 * 1000000000L;
+        message.usedCentiAmps = 0;
+        events.onHeartbeat(slave, message);
+        Assert.assertArrayEquals(new int[]{1, 2, 1}, counts);
+        Assert.assertEquals(message.nanos, slave.lastSeenNanos);
+    }
+
+    @Test
+    public void replayClockTest() {
+        // on a clock far from System.nanoTime, as in a replay, the first heartbeat is not a slave heard again
+        Main.clock = new TwcClock() {
+            @Override
+            public long nanoTime() {
+                return 5000000000000L;
+            }
+
+            @Override
+            public long currentTimeMillis() {
+                return 1790000000000L;
+            }
+        };
+        int[] heardAgain = new int[1];
+        TwcEvents events = new TwcEvents(new TwcEvents.Listener() {
+            @Override
+            public void heardAgain(TwcSlave slave, TwcMessage message) {
+                heardAgain[0]++;
+            }
+        });
+        SlaveTable table = new SlaveTable();
+        TwcSlave slave = table.register("6388", "95", 32);
+        TwcMessage message = new TwcMessage();
+        message.decode(HEARTBEAT, 0, HEARTBEAT.length, Main.clock.nanoTime() + 1000000000L, null);
+        events.onHeartbeat(slave, message);
+        Assert.assertEquals(0, heardAgain[0]);
+        Assert.assertEquals(message.nanos, slave.lastSeenNanos);
+        // a linkready again restarts the silence on the same clock
+        Assert.assertSame(slave, table.register("6388", "95", 32));
+        Assert.assertEquals(Main.clock.nanoTime(), slave.lastSeenNanos);
+    }
+}
@@ -0,0 +1,177 @@
+package com.company;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.company.Main.*;
+
+// Receive engine for the RS485 buses
+// Every bus has its own TwcFrameParser, complete frames of all buses go into one queue with their bus and the timestamp
+// the moment the last byte landed, there are no fixed sleeps
+// A serial port (or memory bus) gets a thread that does blocking reads with a short timeout, all buses behind a TCP gateway
+// share one selector thread (run), so a process driving many gateways still has only a few threads
+public class TwcReceiver implements Runnable {
+
+    static final int QUEUE_SIZE = 64;
+    static final long RECONNECT_NANOS = 1000000000L;
+
+    private final List<Input> inputs = new ArrayList<>();
+    private final BlockingQueue<TwcFrame> frames = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    volatile long framesReceived = 0;
+    volatile long checksumFailures = 0;
+    volatile long framesDropped = 0;
+    volatile long portReopens = 0;
+
+    public TwcReceiver(TwcTransport... buses) {
+        for (TwcTransport bus : buses) inputs.add(new Input(bus));
+    }
+
+    public void start() {
+        // the reader threads for the blocking buses and the selector thread when there are TCP buses
+        boolean selecting = false;
+        for (Input input : inputs) {
+            if (input.bus instanceof TcpTransport) selecting = true;
+            else startWorker(input, (inputs.size() == 1) ? "rs485-receive" : "rs485-receive " + input.bus.name());
+        }
+        if (selecting) startWorker(this, "rs485-select");
+    }
+
+    // one bus and its parser
+    final class Input implements Runnable, TwcFrameParser.FrameListener {
+        final TwcTransport bus;
+        private final TwcFrameParser parser = new TwcFrameParser(this);
+        private final byte[] readBuffer = new byte[1024];
+        private SelectionKey key;  // selector thread only
+        private long retryNanos;
+
+        Input(TwcTransport bus) {
+            this.bus = bus;
+        }
+
+        @Override
+        public void run() {
+            while (!programStopCalled && !Thread.currentThread().isInterrupted()) {
+                int bytesRead = bus.read(readBuffer, 0, readBuffer.length);
+                if (bytesRead > 0) {
+                    parser.feed(readBuffer, 0, bytesRead, clock.nanoTime());
+                } else if (bytesRead < 0) {
+                    reopenPort();
+                }
+            }
+        }
+
+        @Override
+        public void onFrame(byte[] frame, int length, long timestampNanos) {
+            received(bus, frame, length, timestampNanos);
+        }
+
+        private void reopenPort() {
+            logger.warning("Serial Port " + bus.name() + " is closed, attempting to re-open");
+            parser.reset();
+            if (bus.reopen()) {
+                countReopen();
+                logger.warning("Serial Port " + bus.name() + " is re-opened");
+            } else {
+                if (logging) logger.warning("Serial Port " + bus.name() + " could not be re-opened, retrying");
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        // the selector thread of the TCP buses
+        try (Selector selector = Selector.open()) {
+            while (!programStopCalled && !Thread.currentThread().isInterrupted()) {
+                for (Input input : inputs) {
+                    if ((input.bus instanceof TcpTransport) && ((input.key == null) || !input.key.isValid())) register(selector, input);
+                }
+                selector.select(TwcTransport.READ_TIMEOUT_MS);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) continue;
+                    Input input = (Input) key.attachment();
+                    TcpTransport tcp = (TcpTransport) input.bus;
+                    if (key.isConnectable()) {
+                        // a failed connect closes the channel, that cancels the key and register tries again after RECONNECT_NANOS
+                        if (tcp.finishConnect((SocketChannel) key.channel())) {
+                            key.interestOps(SelectionKey.OP_READ);
+                            countReopen();
+                            logger.warning("Gateway " + tcp.name() + " is connected again");
+                        }
+                    } else if (key.isReadable()) {
+                        int bytesRead = tcp.readAvailable(input.readBuffer, 0, input.readBuffer.length);
+                        if (bytesRead > 0) input.parser.feed(input.readBuffer, 0, bytesRead, clock.nanoTime());
+                        else if (bytesRead < 0) lost(input);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            logger.severe("RS485 selector failed, no more frames from the TCP buses: " + e);
+        }
+    }
+
+    private void register(Selector selector, Input input) throws IOException {
+        // a connected channel is read, a lost one gets a new connect once a second
+        TcpTransport tcp = (TcpTransport) input.bus;
+        SelectableChannel channel = tcp.selectableChannel();
+        if ((channel != null) && channel.isOpen()) {
+            input.key = channel.register(selector, SelectionKey.OP_READ, input);
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - input.retryNanos < 0) return;
+        input.retryNanos = now + RECONNECT_NANOS;
+        input.parser.reset();
+        try {
+            input.key = tcp.connectLater().register(selector, SelectionKey.OP_CONNECT, input);
+        } catch (IOException e) {
+            if (logging) logger.warning("Could not connect to " + tcp.name() + ": " + e.getMessage());
+        }
+    }
+
+    private void lost(Input input) {
+        logger.warning("Gateway " + input.bus.name() + " connection lost, reconnecting");
+        if (input.key != null) input.key.cancel();
+        input.key = null;
+        ((TcpTransport) input.bus).close();
+        input.retryNanos = System.nanoTime() + RECONNECT_NANOS;
+    }
+
+    private synchronized void countReopen() {
+        portReopens++;
+    }
+
+    private synchronized void received(TwcTransport bus, byte[] frame, int length, long timestampNanos) {
+        // from the reader threads and the selector thread
+        if (frameJournal != null) frameJournal.append(FrameJournal.RECEIVED, timestampNanos, frame, 0, length);
+        boolean valid = TwcCodec.isValidFrame(frame, 0, length);
+        if (valid) framesReceived++;
+        else checksumFailures++;
+        byte[] copy = new byte[length];
+        System.arraycopy(frame, 0, copy, 0, length);
+        TwcFrame twcFrame = new TwcFrame(copy, length, timestampNanos, valid, bus);
+        while (!frames.offer(twcFrame)) {
+            // the control loop is not keeping up, the oldest frame is the least interesting one
+            frames.poll();
+            framesDropped++;
+        }
+    }
+
+    public TwcFrame nextFrame(long timeoutMs) throws InterruptedException {
+        // returns the next frame in order of arrival, or null when nothing came in within the timeout
+        return frames.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+}
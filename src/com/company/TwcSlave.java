@@ -0,0 +1,54 @@
+package com.company;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Session state of one TWC slave on a bus, created when its linkready (FDE2) comes in
+// Written by the receive/control thread, read by the transmit thread and the web server
+public class TwcSlave {
+
+    static final int NO_SETPOINT = -1;
+    static final int STATUS_UNKNOWN = -1;
+
+    final String id;  // 2 byte hex id the slave chose itself
+    final int number;  // the same id as a number, the way TwcMessage has it
+    volatile String sign;
+    volatile int maxAmps;  // rating of the charger, 32 or 80
+    volatile int status = STATUS_UNKNOWN;  // first data byte of the last FDE0 heartbeat
+    volatile double reportedSetAmps = 0.0;
+    volatile double usedAmps = 0.0;
+    volatile int allocatedAmps = 0;  // last setpoint the allocator gave this slave
+    volatile long lastSeenNanos;
+    volatile TwcTransport bus;  // the bus it was last heard on, null (the first bus) until then
+    private final AtomicInteger pendingSetpoint = new AtomicInteger(NO_SETPOINT);
+
+    TwcSlave(String id, String sign, int maxAmps) {
+        this.id = id;
+        this.number = Integer.parseInt(id, 16);
+        this.sign = sign;
+        this.maxAmps = maxAmps;
+        this.lastSeenNanos = Main.clock.nanoTime(); // the clock the heartbeat time stamps come from
+    }
+
+    public boolean isCarPluggedIn() {
+        return carPluggedIn(status);
+    }
+
+    static boolean carPluggedIn(int status) {
+        // charging, not charging, ready to charge or starting to charge
+        return (status == 0x01) || (status == 0x03) || (status == 0x04) || (status == 0x08);
+    }
+
+    public void requestSetpoint(int amps) {
+        // replaces any setpoint that has not been sent yet, only the latest one matters
+        pendingSetpoint.set(amps);
+    }
+
+    int takeSetpoint() {
+        return pendingSetpoint.getAndSet(NO_SETPOINT);
+    }
+
+    void restoreSetpoint(int amps) {
+        // put a setpoint that could not be sent back, unless a newer one was queued in the meantime
+        pendingSetpoint.compareAndSet(NO_SETPOINT, amps);
+    }
+}
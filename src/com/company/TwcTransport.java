@@ -0,0 +1,29 @@
+package com.company;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+
+// Byte pipe to an RS485 bus, so the receive and transmit side don't depend on how the bus is reached
+// A local serial port (SerialTransport), an Ethernet gateway (TcpTransport) or an in-memory bus (MemoryBus)
+public interface TwcTransport extends Closeable {
+
+    int READ_TIMEOUT_MS = 100;  // only bounds how fast a reader notices a stop
+
+    // blocks until at least one byte came in or about READ_TIMEOUT_MS passed
+    // returns the number of bytes read, 0 on a timeout and -1 when the connection is lost
+    int read(byte[] buffer, int offset, int length);
+
+    // writes all bytes or throws
+    void write(byte[] buffer, int offset, int length) throws IOException;
+
+    // tries to get a lost connection back, returns true when it is usable again
+    boolean reopen();
+
+    String name();
+
+    // the non-blocking channel when this bus can share the selector thread of TwcReceiver, null when it needs a reader thread
+    default SelectableChannel selectableChannel() {
+        return null;
+    }
+}